@@ -105,6 +105,9 @@ public class CommandLineContext implements JspCompilationContext {
     boolean classNameLocked;
     boolean outputInDirs;
 
+    // files asked for while translating - includes, TLDs, etc
+    java.util.Vector filesRead = new java.util.Vector();
+
     public CommandLineContext(JasperLoader newLoader, String newClassPath,
                               String newJspFile, String newUriBase,
                               String newUriRoot, boolean newErrPage,
@@ -356,6 +359,7 @@ public class CommandLineContext implements JspCompilationContext {
         // next, try it as an absolute name
         if (in == null) try {
             in = new FileInputStream(res);
+            filesRead.addElement(res);
         } catch (IOException ioe) {
             in = null;
         }
@@ -377,8 +381,18 @@ public class CommandLineContext implements JspCompilationContext {
             path = path.substring(1);
         }
         File f = new File(uriRoot, path.replace('/', File.separatorChar));
+        filesRead.addElement(f.getAbsolutePath());
         return f.getAbsolutePath();
     }
 
+    /**
+     * The paths resolved with getRealPath() or opened with
+     * getResourceAsStream() - the dependencies of the page, and
+     * also directories and missing files.
+     */
+    public java.util.Enumeration getFilesRead() {
+        return filesRead.elements();
+    }
+
 }
 
@@ -68,6 +68,8 @@ import javax.servlet.ServletContext;
 
 import org.apache.tomcat.logging.Logger;
 
+import org.apache.jasper.compiler.FreshnessChecker;
+
 /**
  * A class to hold all init parameters specific to the JSP engine. 
  *
@@ -94,6 +96,12 @@ public final class EmbededServletOptions implements Options {
      * This seems like a really nice feature to have for debugging.
      */
     public boolean mappedFile = false;
+
+    /**
+     * Encode the template text once, when the page class is loaded,
+     * and write it to the response as bytes when possible.
+     */
+    public boolean templateBytes = false;
     
     /**
      * Do you want stack traces and such displayed in the client's
@@ -146,6 +154,27 @@ public final class EmbededServletOptions implements Options {
      */
     private String javaEncoding;
 
+    /**
+     * Pages compiled at the same time - one per processor by default.
+     */
+    public int compileParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How long a request waits for the recompile of a page before
+     * using the old version, in ms. 0 waits until it's compiled.
+     */
+    public long compileTimeout = 0;
+
+    /**
+     * When to check the pages for changes - on each request by default.
+     */
+    public int checkPolicy = FreshnessChecker.ALWAYS;
+
+    /**
+     * ms between the checks for the "interval" and "watch" policies.
+     */
+    public long checkInterval = 2000;
+
     /**
      * Are we keeping generated code around?
      */
@@ -166,6 +195,13 @@ public final class EmbededServletOptions implements Options {
     public boolean getMappedFile() {
         return mappedFile;
     }
+
+    /**
+     * Is the template text pre-encoded?
+     */
+    public boolean getTemplateBytes() {
+        return templateBytes;
+    }
     
     /**
      * Should errors be sent to client or thrown into stderr?
@@ -228,6 +264,34 @@ public final class EmbededServletOptions implements Options {
 	return javaEncoding;
     }
 
+    /**
+     * How many pages can be compiled at the same time?
+     */
+    public int getCompileParallelism() {
+        return compileParallelism;
+    }
+
+    /**
+     * How long to wait for a page being recompiled?
+     */
+    public long getCompileTimeout() {
+        return compileTimeout;
+    }
+
+    /**
+     * When to check the pages for changes?
+     */
+    public int getCheckPolicy() {
+        return checkPolicy;
+    }
+
+    /**
+     * How often to check the pages?
+     */
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
     /**
      * Create an EmbededServletOptions object using data available from
      * ServletConfig and ServletContext. 
@@ -260,6 +324,15 @@ public final class EmbededServletOptions implements Options {
                 this.mappedFile = false;
             else Constants.message ("jsp.warning.mappedFile", Logger.WARNING);
         }
+
+        String bytes = config.getInitParameter("templatebytes");
+        if (bytes != null) {
+            if (bytes.equalsIgnoreCase("true"))
+                this.templateBytes = true;
+            else if (bytes.equalsIgnoreCase("false"))
+                this.templateBytes = false;
+            else Constants.message ("jsp.warning.templateBytes", Logger.WARNING);
+        }
 	
         String senderr = config.getInitParameter("sendErrToClient");
         if (senderr != null) {
@@ -341,6 +414,45 @@ public final class EmbededServletOptions implements Options {
         }
 
         this.javaEncoding = config.getInitParameter("javaEncoding");
+
+        String parallelism = config.getInitParameter("compileParallelism");
+        if (parallelism != null) {
+            try {
+                this.compileParallelism = Integer.parseInt(parallelism);
+            } catch(NumberFormatException ex) {
+                Constants.message ("jsp.warning.compileParallelism", Logger.WARNING);
+            }
+        }
+
+        String timeout = config.getInitParameter("compileTimeout");
+        if (timeout != null) {
+            try {
+                this.compileTimeout = Long.parseLong(timeout);
+            } catch(NumberFormatException ex) {
+                Constants.message ("jsp.warning.compileTimeout", Logger.WARNING);
+            }
+        }
+
+        String policy = config.getInitParameter("checkPolicy");
+        if (policy != null) {
+            int p = FreshnessChecker.getPolicy(policy);
+            if (p >= 0)
+                this.checkPolicy = p;
+            else
+                Constants.message ("jsp.warning.checkPolicy", Logger.WARNING);
+        }
+
+        String interval = config.getInitParameter("checkInterval");
+        if (interval != null) {
+            try {
+                this.checkInterval = Long.parseLong(interval);
+                if (this.checkInterval <= 0)
+                    throw new NumberFormatException(interval);
+            } catch(NumberFormatException ex) {
+                this.checkInterval = 2000;
+                Constants.message ("jsp.warning.checkInterval", Logger.WARNING);
+            }
+        }
     }
 }
 
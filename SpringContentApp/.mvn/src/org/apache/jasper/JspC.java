@@ -63,12 +63,16 @@ package org.apache.jasper;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.jasper.compiler.JspReader;
 import org.apache.jasper.compiler.ServletWriter;
 import org.apache.jasper.compiler.TagLibraries;
 import org.apache.jasper.compiler.Compiler;
 import org.apache.jasper.compiler.CommandLineCompiler;
+import org.apache.jasper.compiler.JavaxToolsCompiler;
+import org.apache.jasper.compiler.FreshnessChecker;
 
 //import org.apache.jasper.runtime.JspLoader;
 import org.apache.jasper.servlet.JasperLoader;
@@ -101,7 +105,10 @@ public class JspC implements Options { //, JspCompilationContext {
     public static final String SWITCH_WEBAPP_INC = "-webinc";
     public static final String SWITCH_WEBAPP_XML = "-webxml";
     public static final String SWITCH_MAPPED = "-mapped";
+    public static final String SWITCH_TEMPLATE_BYTES = "-templatebytes";
     public static final String SWITCH_DIE = "-die";
+    public static final String SWITCH_COMPILE = "-compile";
+    public static final String SWITCH_THREADS = "-threads";
 
     public static final int NO_WEBXML = 0;
     public static final int INC_WEBXML = 10;
@@ -116,6 +123,16 @@ public class JspC implements Options { //, JspCompilationContext {
     
     boolean largeFile = false;
     boolean mappedFile = false;
+    boolean templateBytes = false;
+
+    // compile the generated servlets too
+    boolean compile = false;
+    // pages translated at the same time
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    // dependencies of the pages in scratchDir, to skip the unchanged
+    // ones. XXX keyed by uri - one webapp per output dir
+    JspManifest manifest;
 
     int jspVerbosityLevel = Logger.INFORMATION;
 
@@ -164,6 +181,10 @@ public class JspC implements Options { //, JspCompilationContext {
 		return mappedFile;
 	}
 
+    public boolean getTemplateBytes() {
+        return templateBytes;
+    }
+
     // Off-line compiler, no need for security manager
     public Object getProtectionDomain() {
 	return null;
@@ -209,6 +230,24 @@ public class JspC implements Options { //, JspCompilationContext {
 	return "UTF-8";
     }
 
+    public int getCompileParallelism() {
+        return threads;
+    }
+
+    public long getCompileTimeout() {
+        // nothing to fall back to
+        return 0;
+    }
+
+    public int getCheckPolicy() {
+        // JspC uses its manifest
+        return FreshnessChecker.ALWAYS;
+    }
+
+    public long getCheckInterval() {
+        return 0;
+    }
+
     public String getClassPath() {
         return System.getProperty("java.class.path");
     }
@@ -308,6 +347,8 @@ public class JspC implements Options { //, JspCompilationContext {
                 }
             } else if (tok.equals(SWITCH_MAPPED)) {
                 mappedFile = true;
+            } else if (tok.equals(SWITCH_TEMPLATE_BYTES)) {
+                templateBytes = true;
             } else if (tok.startsWith(SWITCH_DIE)) {
                 try {
                     dieLevel = Integer.parseInt(
@@ -316,6 +357,16 @@ public class JspC implements Options { //, JspCompilationContext {
                     dieLevel = DEFAULT_DIE_LEVEL;
                 }
                 die = dieLevel;
+            } else if (tok.equals(SWITCH_COMPILE)) {
+                compile = true;
+            } else if (tok.equals(SWITCH_THREADS)) {
+                tok = nextArg();
+                try {
+                    threads = Math.max(1, Integer.parseInt(tok));
+                } catch (NumberFormatException nfe) {
+                    log.println("Thread count " + tok
+                        + " is not valid.  Option ignored.");
+                }
             } else {
                 pushBackArg();
                 // Not a recognized Option?  Start treting them as JSP Pages
@@ -323,23 +374,88 @@ public class JspC implements Options { //, JspCompilationContext {
             }
         }
 
-        Constants.jasperLog = new TomcatLogger();
-        Constants.jasperLog.setVerbosityLevel(verbosityLevel);
+        // keep the logger of the server if we run inside it
+        if (Constants.jasperLog == null) {
+            Constants.jasperLog = new TomcatLogger();
+            Constants.jasperLog.setVerbosityLevel(verbosityLevel);
+        }
 
     }
     
     public boolean parseFile(PrintStream log, String file, Writer servletout, Writer mappingout)
     {
+        if (manifest == null) {
+            // not called from parseFiles()
+            manifest = new JspManifest();
+        }
+        PageResult r[] = { translate(log, file, targetClassName) };
+        if (r[0] != null) {
+            targetClassName = null;
+        }
+        compilePages(r);
+        return writeMapping(r[0], servletout, mappingout);
+    }
+
+    /**
+     * A translated page.
+     */
+    static class PageResult {
+        String file;
+        String servletName;
+        String javaFile;
+        String classFile;
+        // WEB-INF/classes and WEB-INF/lib jars
+        String webappClassPath;
+        // null if the page was up to date
+        JspManifest.Page entry;
+    }
+
+    /**
+     * Translate all the pages, at the same time. The results are in
+     * the same order as the files, null for the pages that failed.
+     */
+    PageResult[] translatePages(final PrintStream log, final String files[]) {
+        final PageResult r[] = new PageResult[files.length];
+        final String firstClassName = targetClassName;
+        Vector tasks = new Vector();
+        for (int i = 0; i < files.length; i++) {
+            final int n = i;
+            tasks.addElement(new Callable() {
+                public Object call() {
+                    r[n] = translate(log, files[n],
+                                     (n == 0) ? firstClassName : null);
+                    return null;
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
         try {
-            JasperLoader loader =
-                    new JasperLoader();
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+        if ((r.length > 0) && (r[0] != null)) {
+            targetClassName = null;
+        }
+        return r;
+    }
+
+    /**
+     * Translate one page, unless it and all it depends on are unchanged
+     * since the last run.
+     */
+    PageResult translate(PrintStream log, String file, String className)
+    {
+        try {
+            TrackingLoader loader =
+                    new TrackingLoader();
 	    loader.setParentClassLoader(getClass().getClassLoader());
 	    loader.setOptions( this);
             CommandLineContext clctxt = new CommandLineContext(
                     loader, getClassPath(), file, uriBase, uriRoot, false,
                     this);
-            if ((targetClassName != null) && (targetClassName.length() > 0)) {
-                clctxt.setServletClassName(targetClassName);
+            if ((className != null) && (className.length() > 0)) {
+                clctxt.setServletClassName(className);
                 clctxt.lockClassName();
             }
             if (targetPackage != null) {
@@ -373,16 +489,167 @@ public class JspC implements Options { //, JspCompilationContext {
             }
             CommandLineCompiler clc = new CommandLineCompiler(clctxt);
 
-            clc.compile();
-
-            targetClassName = null;
-            String thisServletName;
+            PageResult r = new PageResult();
+            r.file = file;
             if  (clc.getPackageName() == null) {
-                thisServletName = clc.getClassName();
+                r.servletName = clc.getClassName();
              } else {
-                thisServletName = clc.getPackageName()
+                r.servletName = clc.getPackageName()
                     + '.' + clc.getClassName();
             }
+            r.javaFile = clc.getJavaFileName();
+            r.webappClassPath = loader.getClassPath();
+            r.classFile = new File(scratchDir, r.servletName.replace('.',
+                    File.separatorChar) + ".class").getPath();
+
+            String uri = pageUri(file);
+            PageResolver resolver = new PageResolver(uriDir, loader);
+            JspManifest.Page old = manifest.getPage(uri);
+            if ((old != null) && old.getClassName().equals(r.servletName)
+                && new File(compile ? r.classFile : r.javaFile).exists()
+                && manifest.isCurrent(old, resolver)) {
+                Constants.message("jspc.message.upToDate",
+                        new Object[] {file}, Logger.INFORMATION);
+                return r;
+            }
+            manifest.removePage(uri);
+
+            // hash the page before translating it - a change made
+            // meanwhile is seen by the next run
+            r.entry = new JspManifest.Page(uri, r.servletName,
+                    manifest.getHash("uri", uri, resolver));
+            clc.compile();
+            addDependencies(r.entry, clctxt, loader, resolver);
+            return r;
+        } catch (JasperException je) {
+            //je.printStackTrace(log);
+            Constants.message("jspc.error.jasperException", 
+                    new Object[] {file, je}, Logger.ERROR);
+            if (dieLevel != NO_DIE_LEVEL) {
+                dieOnExit = true;
+            }
+        } catch (FileNotFoundException fne) {
+                Constants.message("jspc.error.fileDoesNotExist", 
+                        new Object[] {fne.getMessage()}, Logger.WARNING);
+        } catch (Exception e) {
+            Constants.message("jspc.error.generalException", 
+                    new Object[] {file, e}, Logger.ERROR);
+            if (dieLevel != NO_DIE_LEVEL) {
+                dieOnExit = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compile the translated pages in one compiler task ( if -compile
+     * was given ), and record the good ones in the manifest.
+     */
+    void compilePages(PageResult r[]) {
+        Vector todo = new Vector();
+        for (int i = 0; i < r.length; i++) {
+            if ((r[i] != null) && (r[i].entry != null)) {
+                todo.addElement(r[i]);
+            }
+        }
+        if (todo.size() == 0) {
+            return;
+        }
+        boolean status[] = new boolean[todo.size()];
+        String messages[] = new String[todo.size()];
+        if (compile) {
+            String sources[] = new String[todo.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = ((PageResult) todo.elementAt(i)).javaFile;
+            }
+            String sep = System.getProperty("path.separator");
+            // all pages of a webapp have the same classpath
+            JavaxToolsCompiler javac = new JavaxToolsCompiler();
+            javac.setEncoding(getJavaEncoding());
+            javac.setClasspath(getClassPath() + sep
+                    + ((PageResult) todo.elementAt(0)).webappClassPath
+                    + scratchDir);
+            javac.setOutputDir(scratchDir.getAbsolutePath());
+            javac.setClassDebugInfo(getClassDebugInfo());
+            javac.compile(sources, status, messages);
+            javac.release();
+        } else {
+            for (int i = 0; i < status.length; i++) {
+                status[i] = true;
+            }
+        }
+        for (int i = 0; i < status.length; i++) {
+            PageResult p = (PageResult) todo.elementAt(i);
+            if (status[i]) {
+                manifest.putPage(p.entry);
+                continue;
+            }
+            Constants.message("jspc.error.compile",
+                    new Object[] {p.file, messages[i]}, Logger.ERROR);
+            if (dieLevel != NO_DIE_LEVEL) {
+                dieOnExit = true;
+            }
+            for (int j = 0; j < r.length; j++) {
+                if (r[j] == p) {
+                    r[j] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record what the page read while it was translated: files in the
+     * webapp by uri, others by path, and the webapp classes.
+     */
+    void addDependencies(JspManifest.Page entry, CommandLineContext clctxt,
+                         TrackingLoader loader, PageResolver resolver)
+        throws IOException
+    {
+        String root = new File(clctxt.getRealPath("/")).getCanonicalPath();
+        if (!root.endsWith(File.separator)) {
+            root = root + File.separator;
+        }
+        String page = new File(clctxt.getRealPath(entry.getUri()))
+            .getCanonicalPath();
+        Hashtable seen = new Hashtable();
+        Enumeration e = clctxt.getFilesRead();
+        while (e.hasMoreElements()) {
+            File f = new File((String) e.nextElement());
+            if (!f.isFile()) {
+                continue;
+            }
+            String path = f.getCanonicalPath();
+            if (path.equals(page) || (seen.put(path, path) != null)) {
+                continue;
+            }
+            if (path.startsWith(root)) {
+                String uri = "/" + path.substring(root.length())
+                    .replace(File.separatorChar, '/');
+                entry.addDependency("uri", uri,
+                        manifest.getHash("uri", uri, resolver));
+            } else {
+                entry.addDependency("path", path,
+                        manifest.getHash("path", path, resolver));
+            }
+        }
+        e = loader.getLoadedClasses();
+        while (e.hasMoreElements()) {
+            String name = (String) e.nextElement();
+            entry.addDependency("class", name,
+                    manifest.getHash("class", name, resolver));
+        }
+    }
+
+    /**
+     * Write the web.xml fragments of a page.
+     */
+    boolean writeMapping(PageResult r, Writer servletout, Writer mappingout)
+    {
+        if (r == null) {
+            return false;
+        }
+        try {
+            String thisServletName = r.servletName;
             if (servletout != null) {
                 servletout.write("\n\t<servlet>\n\t\t<servlet-name>");
                 servletout.write(thisServletName);
@@ -394,23 +661,13 @@ public class JspC implements Options { //, JspCompilationContext {
                 mappingout.write("\n\t<servlet-mapping>\n\t\t<servlet-name>");
                 mappingout.write(thisServletName);
                 mappingout.write("</servlet-name>\n\t\t<url-pattern>");
-                mappingout.write(file.replace('\\', '/'));
+                mappingout.write(r.file.replace('\\', '/'));
                 mappingout.write("</url-pattern>\n\t</servlet-mapping>\n");
             }
             return true;
-        } catch (JasperException je) {
-            //je.printStackTrace(log);
-            Constants.message("jspc.error.jasperException", 
-                    new Object[] {file, je}, Logger.ERROR);
-            if (dieLevel != NO_DIE_LEVEL) {
-                dieOnExit = true;
-            }
-        } catch (FileNotFoundException fne) {
-                Constants.message("jspc.error.fileDoesNotExist", 
-                        new Object[] {fne.getMessage()}, Logger.WARNING);
         } catch (Exception e) {
             Constants.message("jspc.error.generalException", 
-                    new Object[] {file, e}, Logger.ERROR);
+                    new Object[] {r.file, e}, Logger.ERROR);
             if (dieLevel != NO_DIE_LEVEL) {
                 dieOnExit = true;
             }
@@ -418,6 +675,64 @@ public class JspC implements Options { //, JspCompilationContext {
         return false;
     }
 
+    /**
+     * The uri of a page, as used in the manifest.
+     */
+    static String pageUri(String file) {
+        String uri = file.replace('\\', '/');
+        if (uri.startsWith("./")) {
+            uri = uri.substring(1);
+        }
+        if (!uri.startsWith("/")) {
+            uri = "/" + uri;
+        }
+        return uri;
+    }
+
+    /**
+     * Remembers the webapp classes loaded while translating a page -
+     * tag handlers, beans used by the page.
+     */
+    static class TrackingLoader extends JasperLoader {
+        Vector loaded = new Vector();
+
+        protected Class defClass(String className, byte[] classData) {
+            loaded.addElement(className);
+            return super.defClass(className, classData);
+        }
+
+        Enumeration getLoadedClasses() {
+            return loaded.elements();
+        }
+
+        byte[] getClassBytes(String className) {
+            return loadClassDataFromJar(className);
+        }
+    }
+
+    /**
+     * Current content of the dependencies of a page.
+     */
+    static class PageResolver implements JspManifest.Resolver {
+        File root;
+        TrackingLoader loader;
+
+        PageResolver(File root, TrackingLoader loader) {
+            this.root = root;
+            this.loader = loader;
+        }
+
+        // not clctxt.getRealPath() - it would record the file as read
+        public byte[] getResource(String uri) throws IOException {
+            return JspManifest.readFile(new File(root,
+                    uri.substring(1).replace('/', File.separatorChar)));
+        }
+
+        public byte[] getClassData(String className) {
+            return loader.getClassBytes(className);
+        }
+    }
+
 
     public void parseFiles(PrintStream log)  throws JasperException {
 
@@ -433,6 +748,15 @@ public class JspC implements Options { //, JspCompilationContext {
             scratchDir = new File(new File(temp).getAbsolutePath());
         }
 
+        File manifestFile = new File(scratchDir, JspManifest.FILE);
+        try {
+            manifest = JspManifest.read(manifestFile);
+        } catch (IOException ioe) {
+            // start again from scratch
+            Constants.message("jspc.error.manifest",
+                    new Object[] {manifestFile, ioe}, Logger.WARNING);
+            manifest = new JspManifest();
+        }
  
         File f = new File(args[argPos]);
         while (!f.exists()) {
@@ -617,10 +941,10 @@ public class JspC implements Options { //, JspCompilationContext {
                     mappingout = null;
                 }
 
-                Enumeration e = pages.elements();
-                while (e.hasMoreElements())
+                String files[] = new String[pages.size()];
+                for (int i = 0; i < files.length; i++)
                 {
-                    String nextjsp = e.nextElement().toString();
+                    String nextjsp = pages.elementAt(i).toString();
                     try {
                         if (ubase != null) {
                             File fjsp = new File(nextjsp);
@@ -638,7 +962,12 @@ public class JspC implements Options { //, JspCompilationContext {
                         nextjsp = nextjsp.substring(2);
                     }
 
-                    parseFile(log, nextjsp, servletout, mappingout);
+                    files[i] = nextjsp;
+                }
+                PageResult r[] = translatePages(log, files);
+                compilePages(r);
+                for (int i = 0; i < r.length; i++) {
+                    writeMapping(r[i], servletout, mappingout);
                 }
                 uriRoot = oldRoot;
                 ubase = ubaseOld;
@@ -675,6 +1004,12 @@ public class JspC implements Options { //, JspCompilationContext {
             }
             file = nextFile();
         }
+        try {
+            manifest.write(manifestFile);
+        } catch (IOException ioe) {
+            Constants.message("jspc.error.manifest",
+                    new Object[] {manifestFile, ioe}, Logger.WARNING);
+        }
         if (dieOnExit) {
             System.exit(die);
         }
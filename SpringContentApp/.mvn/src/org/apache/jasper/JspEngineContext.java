@@ -79,6 +79,7 @@ import org.apache.jasper.compiler.TagLibraries;
 import org.apache.jasper.compiler.Compiler;
 import org.apache.jasper.compiler.JspCompiler;
 import org.apache.jasper.compiler.SunJavaCompiler;
+import org.apache.jasper.compiler.JavaxToolsCompiler;
 import org.apache.jasper.compiler.JavaCompiler;
 
 import org.apache.tomcat.logging.Logger;
@@ -291,7 +292,8 @@ public class JspEngineContext implements JspCompilationContext {
     /**
      * Create a "Compiler" object based on some init param data. If	
      * jspCompilerPlugin is not specified or is not available, the 
-     * SunJavaCompiler is used.
+     * JavaxToolsCompiler is used - or SunJavaCompiler if the VM has
+     * no javax.tools compiler.
      */
     public Compiler createCompiler() throws JasperException {
 	String compilerPath = options.getJspCompilerPath();
@@ -305,10 +307,10 @@ public class JspEngineContext implements JspCompilationContext {
 		Constants.message("jsp.warning.compiler.class.cantcreate",
 				  new Object[] { jspCompilerPlugin, ex }, 
 				  Logger.FATAL);
-                javac = new SunJavaCompiler();
+                javac = createDefaultCompiler();
 	    }
 	} else {
-            javac = new SunJavaCompiler();
+            javac = createDefaultCompiler();
 	}
 
         if (compilerPath != null)
@@ -319,6 +321,12 @@ public class JspEngineContext implements JspCompilationContext {
          
         return jspCompiler;
     }
+
+    static JavaCompiler createDefaultCompiler() {
+	if (JavaxToolsCompiler.isAvailable())
+	    return new JavaxToolsCompiler();
+	return new SunJavaCompiler();
+    }
     
     /** 
      * Get the full value of a URI relative to this compilations context
@@ -0,0 +1,337 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.jasper;
+
+import java.io.*;
+import java.util.*;
+import java.security.MessageDigest;
+
+/**
+ * Dependencies of precompiled JSP pages, written by JspC next to the
+ * generated classes.
+ *
+ * For each page it records the servlet class and a hash of the page,
+ * of the files it read while being translated ( includes, TLDs, taglib
+ * jars ) and of the webapp classes it loaded ( tag handlers, beans ).
+ * If none of them changed the page doesn't need to be translated
+ * again - JspC skips it, and JspInterceptor can map the class without
+ * checking the page.
+ *
+ * Format - one line per entry, a page followed by its dependencies:
+ * <pre>
+ * page /dir/a.jsp dir.a HASH
+ * uri /WEB-INF/tlds/x.tld HASH      ( file in the webapp )
+ * path /opt/lib/x.jar HASH          ( file outside the webapp )
+ * class foo.BarTag HASH
+ * </pre>
+ * Spaces and '%' in names are written as %20 and %25.
+ */
+public class JspManifest {
+    public static final String FILE="jspc.manifest";
+
+    Hashtable pages=new Hashtable();
+    // kind:name -> hash. A manifest lives for one JspC run or one
+    // context init, files are not expected to change meanwhile.
+    Hashtable hashes=new Hashtable();
+
+    /** Reads the current content of the dependencies, to check
+     *  the hashes.
+     */
+    public static interface Resolver {
+	/** Content of a file in the webapp, null if missing */
+	public byte[] getResource( String uri ) throws IOException;
+	/** Content of a webapp class, null if missing */
+	public byte[] getClassData( String className ) throws IOException;
+    }
+
+    /** A page and its dependencies.
+     */
+    public static class Page {
+	String uri;
+	String className;
+	String hash;
+	// kind, name, hash
+	Vector deps=new Vector();
+
+	public Page( String uri, String className, String hash ) {
+	    this.uri=uri;
+	    this.className=className;
+	    this.hash=hash;
+	}
+
+	public String getUri() {
+	    return uri;
+	}
+
+	public String getClassName() {
+	    return className;
+	}
+
+	public void addDependency( String kind, String name, String hash ) {
+	    deps.addElement( new String[] { kind, name, hash } );
+	}
+    }
+
+    public JspManifest() {
+    }
+
+    public Page getPage( String uri ) {
+	return (Page)pages.get( uri );
+    }
+
+    public void putPage( Page p ) {
+	pages.put( p.uri, p );
+    }
+
+    public void removePage( String uri ) {
+	pages.remove( uri );
+    }
+
+    public Enumeration getPages() {
+	return pages.elements();
+    }
+
+    public int size() {
+	return pages.size();
+    }
+
+    /** Did the page or any of its dependencies change ?
+     */
+    public boolean isCurrent( Page p, Resolver r ) {
+	try {
+	    if( ! p.hash.equals( getHash( "uri", p.uri, r )))
+		return false;
+	    for( int i=0; i< p.deps.size(); i++ ) {
+		String d[]=(String[])p.deps.elementAt(i);
+		if( ! d[2].equals( getHash( d[0], d[1], r )))
+		    return false;
+	    }
+	    return true;
+	} catch( IOException ex ) {
+	    return false;
+	}
+    }
+
+    /** Hash of the current content of a dependency. Cached, most pages
+     *  share the same TLDs and tag classes.
+     */
+    public String getHash( String kind, String name, Resolver r )
+	throws IOException
+    {
+	String key=kind + ":" + name;
+	String h=(String)hashes.get( key );
+	if( h != null )
+	    return h;
+	byte data[];
+	if( "class".equals( kind ))
+	    data=r.getClassData( name );
+	else if( "path".equals( kind ))
+	    data=readFile( new File( name ));
+	else
+	    data=r.getResource( name );
+	h=hash( data );
+	hashes.put( key, h );
+	return h;
+    }
+
+    // -------------------- Read / write --------------------
+
+    /** Read a manifest, an empty one if the file doesn't exist.
+     */
+    public static JspManifest read( File f ) throws IOException {
+	JspManifest m=new JspManifest();
+	if( ! f.exists() )
+	    return m;
+	BufferedReader in=new BufferedReader( new InputStreamReader
+	    ( new FileInputStream( f ), "UTF8" ));
+	try {
+	    Page p=null;
+	    String line;
+	    while( (line=in.readLine()) != null ) {
+		if( line.length()==0 || line.startsWith( "#" ))
+		    continue;
+		StringTokenizer st=new StringTokenizer( line, " " );
+		if( st.countTokens() != 3 && st.countTokens() != 4 )
+		    throw new IOException( "Bad line in " + f + ": " + line );
+		String kind=st.nextToken();
+		if( "page".equals( kind )) {
+		    p=new Page( decode( st.nextToken() ), st.nextToken(),
+				st.nextToken() );
+		    m.putPage( p );
+		} else if( p != null ) {
+		    p.addDependency( kind, decode( st.nextToken() ),
+				     st.nextToken() );
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+	return m;
+    }
+
+    /** Write the manifest - to a temp file first, so a reader never
+     *  sees it half written.
+     */
+    public synchronized void write( File f ) throws IOException {
+	File tmp=new File( f.getPath() + ".tmp" );
+	PrintWriter out=new PrintWriter( new OutputStreamWriter
+	    ( new FileOutputStream( tmp ), "UTF8" ));
+	out.print( "# JSP dependencies - generated by JspC\n" );
+	Enumeration en=pages.elements();
+	while( en.hasMoreElements() ) {
+	    Page p=(Page)en.nextElement();
+	    out.print( "page " + encode( p.uri ) + " " + p.className + " " +
+		       p.hash + "\n" );
+	    for( int i=0; i< p.deps.size(); i++ ) {
+		String d[]=(String[])p.deps.elementAt(i);
+		out.print( d[0] + " " + encode( d[1] ) + " " + d[2] + "\n" );
+	    }
+	}
+	out.close();
+	if( out.checkError() )
+	    throw new IOException( "Error writing " + tmp );
+	f.delete();
+	if( ! tmp.renameTo( f ))
+	    throw new IOException( "Can't rename " + tmp + " to " + f );
+    }
+
+    // -------------------- Utils --------------------
+
+    static String encode( String s ) {
+	if( s.indexOf( ' ' ) < 0 && s.indexOf( '%' ) < 0 )
+	    return s;
+	StringBuffer sb=new StringBuffer();
+	for( int i=0; i< s.length(); i++ ) {
+	    char c=s.charAt( i );
+	    if( c==' ' )
+		sb.append( "%20" );
+	    else if( c=='%' )
+		sb.append( "%25" );
+	    else
+		sb.append( c );
+	}
+	return sb.toString();
+    }
+
+    static String decode( String s ) {
+	if( s.indexOf( '%' ) < 0 )
+	    return s;
+	StringBuffer sb=new StringBuffer();
+	for( int i=0; i< s.length(); i++ ) {
+	    char c=s.charAt( i );
+	    if( c=='%' && i + 2 < s.length() ) {
+		sb.append( (char)Integer.parseInt( s.substring( i+1, i+3 ), 16 ));
+		i+=2;
+	    } else {
+		sb.append( c );
+	    }
+	}
+	return sb.toString();
+    }
+
+    /** MD5 of the data, as hex. "-" for a missing file.
+     */
+    public static String hash( byte data[] ) {
+	if( data==null )
+	    return "-";
+	try {
+	    byte d[]=MessageDigest.getInstance( "MD5" ).digest( data );
+	    StringBuffer sb=new StringBuffer( d.length * 2 );
+	    for( int i=0; i< d.length; i++ ) {
+		sb.append( Character.forDigit( (d[i] >> 4) & 0xF, 16 ));
+		sb.append( Character.forDigit( d[i] & 0xF, 16 ));
+	    }
+	    return sb.toString();
+	} catch( java.security.NoSuchAlgorithmException ex ) {
+	    // MD5 is required in every VM
+	    throw new RuntimeException( ex.toString() );
+	}
+    }
+
+    /** Content of a file, null if it doesn't exist.
+     */
+    public static byte[] readFile( File f ) throws IOException {
+	if( ! f.isFile() )
+	    return null;
+	return readStream( new FileInputStream( f ));
+    }
+
+    /** Read and close the stream, null for a null stream.
+     */
+    public static byte[] readStream( InputStream in ) throws IOException {
+	if( in==null )
+	    return null;
+	try {
+	    ByteArrayOutputStream bout=new ByteArrayOutputStream();
+	    byte buf[]=new byte[4096];
+	    int n;
+	    while( (n=in.read( buf )) > 0 )
+		bout.write( buf, 0, n );
+	    return bout.toByteArray();
+	} finally {
+	    in.close();
+	}
+    }
+}
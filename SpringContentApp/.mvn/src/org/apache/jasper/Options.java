@@ -87,6 +87,12 @@ public interface Options {
      * Are we supporting HTML mapped servlets?
      */
     public boolean getMappedFile();
+
+    /**
+     * Should the template text be kept in the page class encoded in the
+     * page charset, and written as bytes?
+     */
+    public boolean getTemplateBytes();
     
     
     /**
@@ -136,4 +142,27 @@ public interface Options {
      * page servlet.
      */
     public String getJavaEncoding();
+
+    /**
+     * How many pages can be compiled at the same time?
+     * 0 for no limit.
+     */
+    public int getCompileParallelism();
+
+    /**
+     * How long ( ms ) does a request for a page being recompiled wait
+     * before it uses the previous version? 0 to wait for the compile.
+     */
+    public long getCompileTimeout();
+
+    /**
+     * When are the pages checked for changes? One of the
+     * FreshnessChecker policies.
+     */
+    public int getCheckPolicy();
+
+    /**
+     * ms between two checks, for the "interval" and "watch" policies.
+     */
+    public long getCheckInterval();
 }
@@ -66,13 +66,20 @@ package org.apache.jasper.compiler;
  * file. Typically this is HTML which lands up as strings in
  * out.println(...). 
  *
+ * With a textId the text is kept in static fields of the page class,
+ * as a String and as bytes encoded in the page charset ( _jspx_charset,
+ * declared by JspParseEventListener ). The bytes are written to the
+ * response when possible, see JspRuntimeLibrary.write().
+ *
  * @author Anil K. Vijendran
  */
 public class CharDataGenerator 
     extends GeneratorBase
-    implements ServiceMethodPhase
+    implements ServiceMethodPhase, ClassDeclarationPhase
 {
     char[] chars;
+    // -1 - no fields, the text is written with out.write("...")
+    int textId = -1;
 
     // process in 32k chunks
     private static final int MAXSIZE = 32 * 1024;
@@ -81,21 +88,70 @@ public class CharDataGenerator
 	this.chars = chars;
     }
 
+    public CharDataGenerator(char[] chars, int textId) {
+	this.chars = chars;
+	this.textId = textId;
+    }
+
     public void generate(ServletWriter writer, Class phase) {
-	writer.indent();
+	boolean fields = phase.equals(ClassDeclarationPhase.class);
+	if (fields && textId < 0)
+	    return;
 	int current	= 0;
 	int limit       = chars.length;
+	int n = 0;
 	while (current < limit) {
 	    int from = current;
-	    int to = Math.min(current + MAXSIZE, limit);
-	    generateChunk(writer, from, to);
+	    int to = nextChunk(from);
+	    if (fields)
+		generateField(writer, from, to, n++);
+	    else if (textId >= 0)
+		generateBytesChunk(writer, n++);
+	    else
+		generateChunk(writer, from, to);
 	    current = to;
 	}
     }
 
+    public boolean generateCoordinates(Class phase) {
+	return !phase.equals(ClassDeclarationPhase.class);
+    }
+
+    /**
+     * End of the chunk that starts at from
+     */
+    int nextChunk(int from) {
+	return Math.min(from + MAXSIZE, chars.length);
+    }
+
     private void generateChunk(ServletWriter writer, int from, int to) {
+	writer.indent();
 	writer.print("out.write(\"");
-	// Generate the char data:
+	writer.print(quote(from, to));
+	writer.print("\");\n");
+    }
+
+    private void generateField(ServletWriter writer, int from, int to, int n) {
+	String name = textId + "_" + n;
+	writer.indent();
+	writer.print("private static final String _jspx_text" + name + " = \"");
+	writer.print(quote(from, to));
+	writer.print("\";\n");
+	writer.println("private static final byte[] _jspx_bytes" + name +
+		       " = JspRuntimeLibrary.getBytes(_jspx_text" + name +
+		       ", _jspx_charset);");
+    }
+
+    private void generateBytesChunk(ServletWriter writer, int n) {
+	String name = textId + "_" + n;
+	writer.println("JspRuntimeLibrary.write(out, _jspx_bytes" + name +
+		       ", _jspx_charset, _jspx_text" + name + ");");
+    }
+
+    /**
+     * The chars, as the content of a java string literal
+     */
+    String quote(int from, int to) {
 	StringBuffer sb = new StringBuffer();
 	for (int i = from ; i < to ; i++) {
 	    int ch = chars[i];
@@ -125,10 +181,6 @@ public class CharDataGenerator
 		sb.append((char) ch);
 	    }
 	}
-	writer.print(sb.toString());
-	writer.print("\");\n");
+	return sb.toString();
     }
-
-
-
 }
@@ -229,6 +229,13 @@ class ConstantPool {
     public static final int NAMEANDTYPE = 12;
     public static final int ASCIZ = 1;
     public static final int UNICODE = 2;
+    // since JDK 1.7 - javac uses them for string concatenation
+    public static final int METHODHANDLE = 15;
+    public static final int METHODTYPE = 16;
+    public static final int DYNAMIC = 17;
+    public static final int INVOKEDYNAMIC = 18;
+    public static final int MODULE = 19;
+    public static final int PACKAGE = 20;
 
 
     /**
@@ -312,6 +319,25 @@ class ConstantPool {
 		}
 		strValue = xxBuf.toString();
 		break;
+	    // not needed for the class name - skip them. The indexes
+	    // are not all in the constant pool.
+	    case METHODHANDLE:
+		name = "Method Handle";
+		din.readUnsignedByte();
+		din.readUnsignedShort();
+		break;
+	    case METHODTYPE:
+	    case MODULE:
+	    case PACKAGE:
+		name = "Method Type";
+		din.readUnsignedShort();
+		break;
+	    case DYNAMIC:
+	    case INVOKEDYNAMIC:
+		name = "Invoke Dynamic";
+		din.readUnsignedShort();
+		din.readUnsignedShort();
+		break;
 	    default:
 		System.err.println(Constants.getString("jsp.warning.bad.type"));
 	}
@@ -0,0 +1,227 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.jasper.compiler;
+
+import java.util.Hashtable;
+
+/**
+ * Single-flight compilation of JSP pages.
+ *
+ * A page is compiled by one thread at a time: the other requests for
+ * the same page wait for that compile instead of starting their own,
+ * and get its result ( or its exception ). Different pages are
+ * compiled at the same time, up to the parallelism - over it, the
+ * compiles wait for a slot.
+ *
+ * A request that has an older version of the page to use can give up
+ * waiting after a timeout. A queued compile that nobody waits for any
+ * more is dropped.
+ *
+ * The compile runs in the thread that asked for it first.
+ */
+public class CompileQueue {
+    int parallelism;
+    int running=0;
+    // key -> Flight, while the page is queued or compiling
+    Hashtable flights=new Hashtable();
+
+    /** A compile to run.
+     */
+    public static interface Task {
+	public void compile() throws Exception;
+    }
+
+    static final class Flight {
+	boolean started;
+	boolean done;
+	// threads in compile() for the page, one of them starts it
+	int waiters;
+	Exception error;
+    }
+
+    /**
+     * @param parallelism max pages compiled at the same time, 0 for
+     *        no limit
+     */
+    public CompileQueue( int parallelism ) {
+	this.parallelism=parallelism;
+    }
+
+    public synchronized void setParallelism( int parallelism ) {
+	this.parallelism=parallelism;
+	notifyAll();
+    }
+
+    public int getParallelism() {
+	return parallelism;
+    }
+
+    /**
+     * Compile the page, or wait for the compile of it that another
+     * thread started.
+     *
+     * @param key the page - compares with equals()
+     * @param timeout ms to wait, if the caller can use an older
+     *        version of the page. 0 waits until the page is compiled.
+     * @return false if the timeout expired
+     * @exception Exception the exception of the compile
+     */
+    public boolean compile( Object key, Task task, long timeout )
+	throws Exception
+    {
+	long deadline=( timeout > 0 ) ? System.currentTimeMillis() + timeout
+	    : 0;
+	Flight f;
+	synchronized( this ) {
+	    f=(Flight)flights.get( key );
+	    if( f==null ) {
+		f=new Flight();
+		flights.put( key, f );
+	    }
+	    f.waiters++;
+	    while( ! f.done &&
+		   ( f.started || ( parallelism > 0 &&
+				    running >= parallelism ))) {
+		if( ! await( deadline )) {
+		    f.waiters--;
+		    // the other waiters will start it - if there are none
+		    // the next request for the page queues it again
+		    if( ! f.started && f.waiters==0 )
+			flights.remove( key );
+		    return false;
+		}
+	    }
+	    f.waiters--;
+	    if( f.done ) {
+		if( f.error != null )
+		    throw f.error;
+		return true;
+	    }
+	    f.started=true;
+	    running++;
+	}
+
+	try {
+	    task.compile();
+	} catch( Exception ex ) {
+	    f.error=ex;
+	    throw ex;
+	} finally {
+	    synchronized( this ) {
+		running--;
+		f.done=true;
+		flights.remove( key );
+		notifyAll();
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Wait for the compile of the page, if one is running. A queued
+     * compile is left to compile().
+     *
+     * @return false if the timeout expired
+     */
+    public boolean waitFor( Object key, long timeout )
+	throws Exception
+    {
+	long deadline=( timeout > 0 ) ? System.currentTimeMillis() + timeout
+	    : 0;
+	synchronized( this ) {
+	    Flight f=(Flight)flights.get( key );
+	    if( f==null || ! f.started )
+		return true;
+	    while( ! f.done ) {
+		if( ! await( deadline ))
+		    return false;
+	    }
+	    if( f.error != null )
+		throw f.error;
+	    return true;
+	}
+    }
+
+    /** Is the page queued or compiling ?
+     */
+    public synchronized boolean isCompiling( Object key ) {
+	return flights.get( key ) != null;
+    }
+
+    // wait for a compile to end, false if past the deadline
+    private boolean await( long deadline ) {
+	long wait=0;
+	if( deadline > 0 ) {
+	    wait=deadline - System.currentTimeMillis();
+	    if( wait <= 0 )
+		return false;
+	}
+	try {
+	    wait( wait );
+	} catch( InterruptedException ex ) {
+	}
+	return true;
+    }
+}
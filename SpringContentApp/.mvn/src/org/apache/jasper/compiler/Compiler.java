@@ -67,6 +67,8 @@ import java.io.PrintWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.CharArrayWriter;
+import java.io.Writer;
 
 import org.apache.jasper.JspCompilationContext;
 import org.apache.jasper.Constants;
@@ -170,31 +172,39 @@ public class Compiler {
             jspEncoding
         );
 
-	OutputStreamWriter osw; 
-	try {
-	    osw = new OutputStreamWriter(
-		      new FileOutputStream(javaFileName),javaEncoding);
-	} catch (java.io.UnsupportedEncodingException ex) {
-	    // Try to get the java encoding from the "javaEncoding"
-	    // init parameter for JspServlet.
-	    javaEncoding = ctxt.getOptions().getJavaEncoding();
-	    if (javaEncoding != null) {
-		try {
-		    osw = new OutputStreamWriter(
-			      new FileOutputStream(javaFileName),javaEncoding);
-		} catch (java.io.UnsupportedEncodingException ex2) {
-		    // no luck :-(
+	// The javax.tools compiler reads the source from memory - the
+	// .java file is written only if we keep it
+	CharArrayWriter source = null;
+	Writer osw;
+	if (javac instanceof JavaxToolsCompiler && !ctxt.keepGenerated()) {
+	    source = new CharArrayWriter(8192);
+	    osw = source;
+	} else {
+	    try {
+		osw = new OutputStreamWriter(
+			  new FileOutputStream(javaFileName),javaEncoding);
+	    } catch (java.io.UnsupportedEncodingException ex) {
+		// Try to get the java encoding from the "javaEncoding"
+		// init parameter for JspServlet.
+		javaEncoding = ctxt.getOptions().getJavaEncoding();
+		if (javaEncoding != null) {
+		    try {
+			osw = new OutputStreamWriter(
+				  new FileOutputStream(javaFileName),javaEncoding);
+		    } catch (java.io.UnsupportedEncodingException ex2) {
+			// no luck :-(
+			throw new JasperException(
+			    Constants.getString("jsp.error.invalid.javaEncoding",
+						new Object[] { 
+						    "UTF8", 
+						    javaEncoding,
+						}));
+		    }
+		} else {
 		    throw new JasperException(
-			Constants.getString("jsp.error.invalid.javaEncoding",
-					    new Object[] { 
-						"UTF8", 
-						javaEncoding,
-					    }));
+			Constants.getString("jsp.error.needAlternateJavaEncoding",
+					    new Object[] { "UTF8" }));		
 		}
-	    } else {
-		throw new JasperException(
-		    Constants.getString("jsp.error.needAlternateJavaEncoding",
-					new Object[] { "UTF8" }));		
 	    }
 	}
 	ServletWriter writer = new ServletWriter(new PrintWriter(osw));
@@ -270,9 +280,14 @@ public class Compiler {
         /**
          * Execute the compiler
          */
-        boolean status = javac.compile(javaFileName);
-
-        if (!ctxt.keepGenerated()) {
+        boolean status;
+        if (source != null)
+            status = ((JavaxToolsCompiler) javac).compile(javaFileName,
+                                                          source.toCharArray());
+        else
+            status = javac.compile(javaFileName);
+
+        if (!ctxt.keepGenerated() && source == null) {
             File javaFile = new File(javaFileName);
             javaFile.delete();
         }
@@ -0,0 +1,317 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+import org.apache.tomcat.util.Scheduler;
+
+/**
+ * Decides when a JSP page has to be checked for changes, so a request
+ * doesn't need to stat the page ( and its class ) every time.
+ *
+ * Policies:
+ * <ul>
+ * <li>always - every request checks the files ( the old behavior,
+ *     and the default )
+ * <li>never - pages are checked once, when first used. For
+ *     production, where the pages don't change.
+ * <li>interval - the pages are stat-ed every interval ms in the
+ *     Scheduler thread, and marked dirty if they changed
+ * <li>watch - the directories of the pages are registered with a
+ *     WatchService, and its events are read every interval ms
+ * </ul>
+ *
+ * With all but "always" the request path only reads a volatile flag,
+ * and does the full check when the page is dirty.
+ *
+ * Only the page itself is followed - like before, a change in a
+ * static include doesn't cause a recompile.
+ */
+public class FreshnessChecker implements Runnable {
+    public static final int ALWAYS=0;
+    public static final int NEVER=1;
+    public static final int INTERVAL=2;
+    public static final int WATCH=3;
+
+    static final String names[]={ "always", "never", "interval", "watch" };
+
+    int policy;
+    long interval;
+    // canonical path -> Page
+    Hashtable pages=new Hashtable();
+    Scheduler.Task task;
+
+    WatchService watcher;
+    // dir path -> WatchKey, WatchKey -> dir
+    Hashtable dirKeys=new Hashtable();
+    Hashtable keyDirs=new Hashtable();
+
+    /** A page followed by the checker.
+     */
+    public static final class Page {
+	File source;
+	volatile boolean dirty=true;
+	volatile long lastModified;
+	// false if the directory can't be watched - stat it instead
+	boolean watched;
+
+	Page( File source ) {
+	    this.source=source;
+	}
+
+	public File getSource() {
+	    return source;
+	}
+    }
+
+    /**
+     * @param policy ALWAYS, NEVER, INTERVAL or WATCH
+     * @param interval ms between checks for INTERVAL and WATCH
+     */
+    public FreshnessChecker( int policy, long interval ) {
+	this.policy=policy;
+	this.interval=interval;
+    }
+
+    /** The policy for a name, -1 if unknown
+     */
+    public static int getPolicy( String name ) {
+	for( int i=0; i<names.length; i++ )
+	    if( names[i].equalsIgnoreCase( name ))
+		return i;
+	return -1;
+    }
+
+    public int getPolicy() {
+	return policy;
+    }
+
+    /** Follow a page. A new page is dirty - the first request checks it.
+     *
+     *  @return null with the "always" policy - there is nothing to follow
+     */
+    public Page getPage( File source ) {
+	if( policy==ALWAYS )
+	    return null;
+	String path;
+	try {
+	    source=source.getCanonicalFile();
+	} catch( IOException ex ) {
+	    source=source.getAbsoluteFile();
+	}
+	path=source.getPath();
+	synchronized( this ) {
+	    Page p=(Page)pages.get( path );
+	    if( p != null )
+		return p;
+	    p=new Page( source );
+	    if( policy==WATCH )
+		p.watched=watch( source.getParentFile() );
+	    pages.put( path, p );
+	    if( task==null && ( policy==INTERVAL || policy==WATCH ))
+		task=Scheduler.getDefault().schedule( "JspFreshness", this,
+						      interval );
+	    return p;
+	}
+    }
+
+    /** Does the page need a full check ? With "always" it does.
+     */
+    public boolean isDirty( Page p ) {
+	return policy==ALWAYS || p.dirty;
+    }
+
+    /** Start a full check of the page: it is not dirty anymore, and a
+     *  change made from now on marks it again.
+     *
+     *  @return the lastModified of the page source
+     */
+    public long check( Page p ) {
+	p.dirty=false;
+	p.lastModified=p.source.lastModified();
+	return p.lastModified;
+    }
+
+    /** The check or the compile failed - the next request tries again.
+     */
+    public void setDirty( Page p ) {
+	p.dirty=true;
+    }
+
+    /** Stop the background checks
+     */
+    public synchronized void stop() {
+	if( task != null ) {
+	    task.cancel();
+	    task=null;
+	}
+	if( watcher != null ) {
+	    try {
+		watcher.close();
+	    } catch( IOException ex ) {
+	    }
+	    watcher=null;
+	}
+	pages.clear();
+	dirKeys.clear();
+	keyDirs.clear();
+    }
+
+    // -------------------- Background check --------------------
+
+    /** Runs in the Scheduler thread.
+     */
+    public void run() {
+	if( policy==WATCH )
+	    readEvents();
+	Enumeration en=pages.elements();
+	while( en.hasMoreElements() ) {
+	    Page p=(Page)en.nextElement();
+	    if( p.dirty || ( policy==WATCH && p.watched ))
+		continue;
+	    if( p.source.lastModified() != p.lastModified )
+		p.dirty=true;
+	}
+    }
+
+    private synchronized boolean watch( File dir ) {
+	if( dir==null )
+	    return false;
+	if( dirKeys.get( dir.getPath() ) != null )
+	    return true;
+	try {
+	    if( watcher==null )
+		watcher=FileSystems.getDefault().newWatchService();
+	    WatchKey k=dir.toPath().register
+		( watcher, new WatchEvent.Kind[] {
+		    StandardWatchEventKinds.ENTRY_CREATE,
+		    StandardWatchEventKinds.ENTRY_MODIFY,
+		    StandardWatchEventKinds.ENTRY_DELETE } );
+	    dirKeys.put( dir.getPath(), k );
+	    keyDirs.put( k, dir );
+	    return true;
+	} catch( Exception ex ) {
+	    // unsupported file system, too many watches - poll it
+	    return false;
+	}
+    }
+
+    private void readEvents() {
+	WatchService w=watcher;
+	if( w==null )
+	    return;
+	WatchKey k;
+	try {
+	    while( (k=w.poll()) != null ) {
+		File dir=(File)keyDirs.get( k );
+		Iterator it=k.pollEvents().iterator();
+		while( it.hasNext() ) {
+		    WatchEvent e=(WatchEvent)it.next();
+		    if( dir==null )
+			continue;
+		    if( e.kind()==StandardWatchEventKinds.OVERFLOW ) {
+			markDir( dir, true );
+			continue;
+		    }
+		    Page p=(Page)pages.get( new File( dir, e.context().toString()).
+					    getPath() );
+		    if( p != null )
+			p.dirty=true;
+		}
+		if( ! k.reset() && dir != null ) {
+		    // the directory is gone - back to stat
+		    synchronized( this ) {
+			dirKeys.remove( dir.getPath() );
+			keyDirs.remove( k );
+		    }
+		    markDir( dir, false );
+		}
+	    }
+	} catch( java.nio.file.ClosedWatchServiceException ex ) {
+	    // stopped
+	}
+    }
+
+    private void markDir( File dir, boolean watched ) {
+	Enumeration en=pages.elements();
+	while( en.hasMoreElements() ) {
+	    Page p=(Page)en.nextElement();
+	    if( dir.equals( p.source.getParentFile() )) {
+		p.dirty=true;
+		p.watched=watched;
+	    }
+	}
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Compile with the javax.tools compiler of the running JDK, in
+ * process.
+ *
+ * Pages compiled at the same time with the same settings share one
+ * compiler task: the first thread compiles everything that is queued,
+ * the others wait for their result. The file manager - with the
+ * opened classpath jars - is kept between tasks, and recreated when a
+ * jar on the classpath changes, or closed with release() when the
+ * context is destroyed.
+ *
+ * The source can be passed in memory ( compile( name, char[] ) ), so
+ * the .java file is written only if it is kept. The classes are
+ * written to the output dir, where the loaders expect them.
+ *
+ * Needs a JDK - ToolProvider has no compiler in a JRE.
+ */
+public class JavaxToolsCompiler implements JavaCompiler {
+
+    String encoding;
+    String classpath;
+    String compilerPath;
+    String outdir;
+    OutputStream out;
+    boolean classDebugInfo=false;
+
+    // Batch for each set of options, shared by all instances
+    static Hashtable batches=new Hashtable();
+
+    /**
+     * Is there a system compiler in this VM ?
+     */
+    public static boolean isAvailable() {
+	try {
+	    return ToolProvider.getSystemJavaCompiler() != null;
+	} catch( Throwable t ) {
+	    // pre-1.6 VM
+	    return false;
+	}
+    }
+
+    /**
+     * Not used - the compiler of the running JDK is used.
+     */ 
+    public void setCompilerPath(String compilerPath) {
+	this.compilerPath = compilerPath;
+    }
+
+    /**
+     * Set the encoding (character set) of the source
+     */ 
+    public void setEncoding(String encoding) {
+	this.encoding = encoding;
+    }
+
+    /**
+     * Set the class path for the compiler
+     */ 
+    public void setClasspath(String classpath) {
+	this.classpath = classpath;
+    }
+
+    /**
+     * Set the output directory
+     */ 
+    public void setOutputDir(String outdir) {
+	this.outdir = outdir;
+    }
+
+    /**
+     * Set where you want the compiler output (messages) to go 
+     */ 
+    public void setMsgOutput(OutputStream out) {
+	this.out = out;
+    }
+
+    /**
+     * Set if you want debugging information in the class file 
+     */ 
+    public void setClassDebugInfo(boolean classDebugInfo) {
+	this.classDebugInfo = classDebugInfo;
+    }
+
+    /**
+     * Compile a source file
+     */
+    public boolean compile(String source) {
+	return compile( new Unit( source, null ));
+    }
+
+    /**
+     * Compile a source held in memory. The file name is used for
+     * messages and to find the class name.
+     */
+    public boolean compile(String javaFileName, char source[]) {
+	return compile( new Unit( javaFileName, source ));
+    }
+
+    /**
+     * Compile several source files in one task.
+     *
+     * @return false if any of them failed
+     */
+    public boolean compile(String sources[]) {
+	boolean status[]=new boolean[ sources.length ];
+	String messages[]=new String[ sources.length ];
+	compile( sources, status, messages );
+	boolean ok=true;
+	for( int i=0; i<sources.length; i++ ) {
+	    ok = ok && status[i];
+	    writeMessages( messages[i] );
+	}
+	return ok;
+    }
+
+    /**
+     * Compile several source files in one task, and return the result
+     * and the messages of each - nothing is written to the message
+     * output. A file with errors doesn't prevent the others from
+     * being compiled.
+     */
+    public void compile(String sources[], boolean status[],
+			String messages[])
+    {
+	Unit units[]=new Unit[ sources.length ];
+	for( int i=0; i<sources.length; i++ )
+	    units[i]=new Unit( sources[i], null );
+	Batch batch=getBatch();
+	batch.add( units );
+	for( int i=0; i<units.length; i++ ) {
+	    batch.waitFor( units[i] );
+	    status[i]=units[i].status;
+	    messages[i]=units[i].messages.toString();
+	}
+    }
+
+    // -------------------- Internal --------------------
+
+    private boolean compile( Unit unit ) {
+	Batch batch=getBatch();
+	batch.add( new Unit[] { unit } );
+	batch.waitFor( unit );
+	writeMessages( unit.messages.toString() );
+	return unit.status;
+    }
+
+    private void writeMessages( String messages ) {
+	if( out==null || messages.length()==0 )
+	    return;
+	try {
+	    out.write( messages.getBytes() );
+	} catch( IOException ex ) {
+	}
+    }
+
+    /**
+     * Close the file manager of this compiler's settings. A later
+     * compile opens a new one.
+     */
+    public void release() {
+	Batch b;
+	synchronized( batches ) {
+	    b=(Batch)batches.remove( getKey() );
+	}
+	if( b != null )
+	    b.close();
+    }
+
+    /**
+     * Close the file managers of all the compilers writing to outdir -
+     * called when the context or JspServlet using it is destroyed.
+     */
+    public static void release( String outdir ) {
+	File dir=new File( outdir ).getAbsoluteFile();
+	Vector released=new Vector();
+	synchronized( batches ) {
+	    Iterator it=batches.values().iterator();
+	    while( it.hasNext() ) {
+		Batch b=(Batch)it.next();
+		if( dir.equals( new File( b.outdir ).getAbsoluteFile() )) {
+		    it.remove();
+		    released.addElement( b );
+		}
+	    }
+	}
+	for( int i=0; i<released.size(); i++ )
+	    ((Batch)released.elementAt( i )).close();
+    }
+
+    private String getKey() {
+	return classpath + "|" + outdir + "|" + encoding + "|" +
+	    classDebugInfo;
+    }
+
+    private Batch getBatch() {
+	String key=getKey();
+	synchronized( batches ) {
+	    Batch b=(Batch)batches.get( key );
+	    if( b==null ) {
+		// one per context and settings, until release()
+		b=new Batch( classpath, outdir, encoding, classDebugInfo );
+		batches.put( key, b );
+	    }
+	    return b;
+	}
+    }
+
+    /** A page to compile, and the result.
+     */
+    static final class Unit {
+	String fileName;
+	char source[];
+	JavaFileObject fo;
+	boolean done;
+	boolean status;
+	StringBuffer messages=new StringBuffer();
+
+	Unit( String fileName, char source[] ) {
+	    this.fileName=fileName;
+	    this.source=source;
+	}
+    }
+
+    /** Source kept in memory.
+     */
+    static final class MemorySource extends SimpleJavaFileObject {
+	char source[];
+
+	MemorySource( String fileName, char source[] ) {
+	    super( new File( fileName ).toURI(), JavaFileObject.Kind.SOURCE );
+	    this.source=source;
+	}
+
+	public CharSequence getCharContent( boolean ignoreErrors ) {
+	    return new String( source );
+	}
+    }
+
+    /** Compiles the queued pages of one context.
+     */
+    static final class Batch {
+	String classpath;
+	String outdir;
+	Vector options=new Vector();
+
+	javax.tools.JavaCompiler javac;
+	StandardJavaFileManager fm;
+	File jars[];
+	long jarStamp;
+
+	Vector pending=new Vector();
+	boolean running=false;
+	// released - the file manager is closed when the queue is done
+	boolean closed=false;
+
+	Batch( String classpath, String outdir, String encoding,
+	       boolean debug )
+	{
+	    this.classpath=classpath;
+	    this.outdir=outdir;
+	    if( encoding != null ) {
+		options.addElement( "-encoding" );
+		options.addElement( encoding );
+	    }
+	    options.addElement( debug ? "-g" : "-g:none" );
+	    options.addElement( "-nowarn" );
+	    // sources found on the classpath are not ours to write
+	    options.addElement( "-implicit:none" );
+	}
+
+	synchronized void add( Unit units[] ) {
+	    for( int i=0; i<units.length; i++ )
+		pending.addElement( units[i] );
+	}
+
+	/** Wait until the unit is compiled - or compile the queue
+	 *  if no other thread does it.
+	 */
+	void waitFor( Unit unit ) {
+	    synchronized( this ) {
+		while( ! unit.done && running ) {
+		    try {
+			wait();
+		    } catch( InterruptedException ex ) {
+		    }
+		}
+		if( unit.done )
+		    return;
+		running=true;
+	    }
+	    try {
+		while( true ) {
+		    Unit units[];
+		    synchronized( this ) {
+			notifyAll();
+			if( pending.size()==0 ) {
+			    running=false;
+			    if( closed )
+				closeFileManager();
+			    return;
+			}
+			units=new Unit[ pending.size() ];
+			pending.copyInto( units );
+			pending.removeAllElements();
+		    }
+		    run( units );
+		}
+	    } finally {
+		synchronized( this ) {
+		    if( running ) {
+			// runtime exception - fail what is queued
+			running=false;
+			for( int i=0; i<pending.size(); i++ )
+			    ((Unit)pending.elementAt(i)).done=true;
+			pending.removeAllElements();
+			notifyAll();
+		    }
+		}
+	    }
+	}
+
+	/** Compile the units. If some have errors the others are
+	 *  compiled again without them - javac doesn't write any class
+	 *  if there is an error.
+	 */
+	void run( Unit units[] ) {
+	    try {
+		init();
+	    } catch( Exception ex ) {
+		fail( units, "Can't start the java compiler: " + ex );
+		return;
+	    }
+	    Vector todo=new Vector( Arrays.asList( units ));
+	    while( todo.size() > 0 ) {
+		DiagnosticCollector diags=new DiagnosticCollector();
+		Vector files=new Vector();
+		for( int i=0; i<todo.size(); i++ ) {
+		    Unit u=(Unit)todo.elementAt(i);
+		    if( u.fo==null ) {
+			if( u.source != null ) {
+			    u.fo=new MemorySource( u.fileName, u.source );
+			} else {
+			    Iterator it=fm.getJavaFileObjects
+				( new String[] { u.fileName } ).iterator();
+			    u.fo=(JavaFileObject)it.next();
+			}
+		    }
+		    files.addElement( u.fo );
+		}
+		boolean ok;
+		StringWriter other=new StringWriter();
+		try {
+		    ok=javac.getTask( new PrintWriter( other ), fm, diags,
+				      options, null, files ).call().booleanValue();
+		} catch( RuntimeException ex ) {
+		    fail( todo, "Compiler error: " + ex );
+		    return;
+		}
+		Vector failed=new Vector();
+		Iterator it=diags.getDiagnostics().iterator();
+		while( it.hasNext() ) {
+		    Diagnostic d=(Diagnostic)it.next();
+		    Unit u=find( todo, d.getSource() );
+		    String msg=format( d );
+		    if( d.getKind()==Diagnostic.Kind.NOTE )
+			continue;
+		    if( u==null ) {
+			// classpath problem, etc - report it for all
+			for( int i=0; i<todo.size(); i++ )
+			    ((Unit)todo.elementAt(i)).messages.append( msg );
+		    } else {
+			u.messages.append( msg );
+			if( d.getKind()==Diagnostic.Kind.ERROR &&
+			    ! failed.contains( u ))
+			    failed.addElement( u );
+		    }
+		}
+		if( ok ) {
+		    done( todo, true );
+		    return;
+		}
+		if( failed.size()==0 || failed.size()==todo.size() ) {
+		    // nothing to retry
+		    for( int i=0; i<todo.size(); i++ )
+			((Unit)todo.elementAt(i)).messages.append
+			    ( other.toString() );
+		    done( todo, false );
+		    return;
+		}
+		done( failed, false );
+		todo.removeAll( failed );
+	    }
+	}
+
+	/** Close the file manager now, or after the running compile.
+	 */
+	void close() {
+	    synchronized( this ) {
+		closed=true;
+		if( ! running )
+		    closeFileManager();
+	    }
+	}
+
+	void closeFileManager() {
+	    if( fm==null )
+		return;
+	    try {
+		fm.close();
+	    } catch( IOException ex ) {
+	    }
+	    fm=null;
+	    javac=null;
+	}
+
+	/** Open the file manager, or reopen it if a jar changed.
+	 */
+	void init() throws IOException {
+	    if( javac==null ) {
+		javac=ToolProvider.getSystemJavaCompiler();
+		if( javac==null )
+		    throw new IOException( "no system compiler, a JDK is required" );
+		Vector path=new Vector();
+		Vector jarV=new Vector();
+		StringTokenizer st=new StringTokenizer( classpath,
+							File.pathSeparator );
+		while( st.hasMoreTokens() ) {
+		    String s=st.nextToken();
+		    if( "null".equals( s ) || s.length()==0 )
+			continue; // unset tc_path_add
+		    File f=new File( s );
+		    path.addElement( f );
+		    if( f.isFile() )
+			jarV.addElement( f );
+		}
+		jars=new File[ jarV.size() ];
+		jarV.copyInto( jars );
+		fm=javac.getStandardFileManager( null, null, null );
+		fm.setLocation( StandardLocation.CLASS_PATH, path );
+		fm.setLocation( StandardLocation.CLASS_OUTPUT,
+				Arrays.asList( new File[] { new File( outdir ) }));
+		jarStamp=stamp();
+		return;
+	    }
+	    long s=stamp();
+	    if( s != jarStamp ) {
+		// the file manager keeps the jars open - and their index
+		fm.close();
+		javac=null;
+		init();
+	    }
+	}
+
+	long stamp() {
+	    long s=0;
+	    for( int i=0; i<jars.length; i++ )
+		s = s * 31 + jars[i].lastModified() + jars[i].length();
+	    return s;
+	}
+
+	Unit find( Vector units, Object source ) {
+	    if( source==null )
+		return null;
+	    for( int i=0; i<units.size(); i++ ) {
+		Unit u=(Unit)units.elementAt(i);
+		if( u.fo==source )
+		    return u;
+	    }
+	    return null;
+	}
+
+	String format( Diagnostic d ) {
+	    StringBuffer sb=new StringBuffer();
+	    if( d.getSource() != null ) {
+		sb.append( ((JavaFileObject)d.getSource()).getName() );
+		sb.append( ":" ).append( d.getLineNumber() ).append( ": " );
+	    }
+	    sb.append( d.getMessage( Locale.getDefault() ));
+	    sb.append( "\n" );
+	    return sb.toString();
+	}
+
+	void fail( Unit units[], String msg ) {
+	    fail( new Vector( Arrays.asList( units )), msg );
+	}
+
+	void fail( Vector units, String msg ) {
+	    for( int i=0; i<units.size(); i++ )
+		((Unit)units.elementAt(i)).messages.append( msg ).append( "\n" );
+	    done( units, false );
+	}
+
+	void done( Vector units, boolean status ) {
+	    synchronized( this ) {
+		for( int i=0; i<units.size(); i++ ) {
+		    Unit u=(Unit)units.elementAt(i);
+		    u.status=status;
+		    u.done=true;
+		    u.fo=null;
+		    u.source=null;
+		}
+	    }
+	}
+    }
+}
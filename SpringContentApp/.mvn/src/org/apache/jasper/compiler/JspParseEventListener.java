@@ -124,6 +124,8 @@ public class JspParseEventListener extends BaseJspListener {
 
     /* support for large files */
     int stringId = 0;
+    /* template text kept as bytes */
+    int textId = 0;
     Vector vector = new Vector();
     String dataFile;
 
@@ -259,6 +261,9 @@ public class JspParseEventListener extends BaseJspListener {
 
 	writer.pushIndent();
 	writer.println();
+	if (ctxt.getOptions().getTemplateBytes())
+	    writer.println("private static final String _jspx_charset = " +
+			   writer.quoteString(getCharset()) + ";");
 	generateAll(ClassDeclarationPhase.class);
 	writer.println();
 
@@ -343,6 +348,24 @@ public class JspParseEventListener extends BaseJspListener {
         writer.println("out = pageContext.getOut();");
     }
 
+    /**
+     * The charset of the page response - like the generated
+     * setContentType(), ISO-8859-1 if the contentType doesn't have one
+     */
+    String getCharset() {
+	String ct = servletContentType;
+	int loc = ct.indexOf("charset=");
+	if (loc < 0)
+	    return "ISO-8859-1";
+	String charset = ct.substring(loc + 8).trim();
+	int end = charset.indexOf(';');
+	if (end >= 0)
+	    charset = charset.substring(0, end).trim();
+	if (charset.startsWith("\"") && charset.endsWith("\"") && charset.length() > 1)
+	    charset = charset.substring(1, charset.length() - 1);
+	return charset;
+    }
+
     private void generateFooter() throws JasperException {
 	writer.popIndent();
 	//writer.println("} catch (Throwable t) {");
@@ -882,12 +905,15 @@ public class JspParseEventListener extends BaseJspListener {
     public void handleCharData(Mark start, Mark stop, char[] chars) throws JasperException {
         GeneratorBase cdg;
 
+        boolean bytes = ctxt.getOptions().getTemplateBytes();
+
         if (ctxt.getOptions().getLargeFile())
-            cdg = new StoredCharDataGenerator(vector, dataFile, stringId++, chars);
+            cdg = new StoredCharDataGenerator(vector, dataFile, stringId++, chars,
+                                              bytes);
         else if(ctxt.getOptions().getMappedFile())
-            cdg = new MappedCharDataGenerator(chars);
+            cdg = new MappedCharDataGenerator(chars, bytes ? textId++ : -1);
 	else
-	    cdg = new CharDataGenerator(chars);
+	    cdg = new CharDataGenerator(chars, bytes ? textId++ : -1);
 
 
         Generator gen
@@ -77,46 +77,18 @@ public class MappedCharDataGenerator extends CharDataGenerator {
 	super(chars);
     }
 
-    public void generate(ServletWriter writer, Class phase) {
-	writer.indent();
-	writer.print("out.write(\"");
-	// Generate the char data:
-	int limit       = chars.length;
-	StringBuffer sb = new StringBuffer();
-	for (int i = 0 ; i < limit ; i++) {
-	    int ch = chars[i];
-	    switch(ch) {
-	    case '"':
-		sb.append("\\\"");
-		break;
-	    case '\\':
-		sb.append("\\\\");
-		break;
-	    case '\r':
-		sb.append("\\r");
-		break;
-		/*
-		  case '\'':
-		  sb.append('\\');
-		  sb.append('\'');
-		  break;
-		*/
-	    case '\n':
-		sb.append("\\n");
-		writer.print(sb.toString());
-		writer.print("\");\n");
-		sb = new StringBuffer();
-		writer.indent();
-		writer.print("out.write(\"");
-		break;
-	    case '\t':
-		sb.append("\\t");
-		break;
-	    default:
-		sb.append((char) ch);
-	    }
-	}
-	writer.print(sb.toString());
-	writer.print("\");\n");
+    public MappedCharDataGenerator(char[] chars, int textId) {
+	super(chars, textId);
+    }
+
+    /**
+     * One chunk per line
+     */
+    int nextChunk(int from) {
+	int limit = chars.length;
+	for (int i = from ; i < limit ; i++)
+	    if (chars[i] == '\n')
+		return i + 1;
+	return limit;
     }
 }
@@ -66,6 +66,9 @@ import java.util.Vector;
  * StoredCharDataGenerator generates HTML and other data present in
  * JSP files to be stored/serialized into a .dat file. 
  *
+ * With bytes the data is also encoded in the page charset when it is
+ * loaded, and written as bytes when possible.
+ *
  * @author Anil K. Vijendran
  */
 public class StoredCharDataGenerator 
@@ -76,6 +79,7 @@ public class StoredCharDataGenerator
     char[] chars;
     Vector vector;
     String fileName;
+    boolean bytes;
     
     public StoredCharDataGenerator(Vector vector, String fileName, 
                                    int stringId, char[] chars) {
@@ -85,13 +89,23 @@ public class StoredCharDataGenerator
         this.fileName = fileName;
     }
 
+    public StoredCharDataGenerator(Vector vector, String fileName, 
+                                   int stringId, char[] chars,
+                                   boolean bytes) {
+        this(vector, fileName, stringId, chars);
+        this.bytes = bytes;
+    }
+
     private final String getStringVar() {
         return "_jspx_html_data["+stringId+"]";
     }
 
     private final void generateRef(ServletWriter writer) {
-        if (stringId == 0)
+        if (stringId == 0) {
             writer.println("static char[][] _jspx_html_data = null;");
+            if (bytes)
+                writer.println("static byte[][] _jspx_html_bytes = null;");
+        }
     }
 
     private final void generateInit(ServletWriter writer) {
@@ -104,6 +118,8 @@ public class StoredCharDataGenerator
             writer.println("FileInputStream fin = new FileInputStream("+name+");");
             writer.println("oin = new ObjectInputStream(fin);");
             writer.println("_jspx_html_data = (char[][]) oin.readObject();");
+            if (bytes)
+                writer.println("_jspx_html_bytes = JspRuntimeLibrary.getBytes(_jspx_html_data, _jspx_charset);");
             writer.popIndent();
             writer.println("} catch (Exception ex) {");
             writer.pushIndent();
@@ -121,7 +137,11 @@ public class StoredCharDataGenerator
     }
 
     private final void generatePrint(ServletWriter writer) {
-        writer.println("out.print("+getStringVar()+");");
+        if (bytes)
+            writer.println("JspRuntimeLibrary.write(out, _jspx_html_bytes["+stringId+
+                           "], _jspx_charset, "+getStringVar()+");");
+        else
+            writer.println("out.print("+getStringVar()+");");
         vector.addElement(chars);
     }
 
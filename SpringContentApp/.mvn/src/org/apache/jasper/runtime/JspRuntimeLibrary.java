@@ -71,6 +71,7 @@ import java.io.Writer;
 import java.io.Reader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 
 import java.beans.PropertyDescriptor;
 import java.beans.IndexedPropertyDescriptor;
@@ -80,6 +81,7 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.JspWriter;
 
 import org.apache.jasper.JasperException;
 import org.apache.jasper.Constants;
@@ -625,7 +627,46 @@ public class JspRuntimeLibrary {
 
 	return method;
     }
-    
+
+    /**
+     * Encode the template text of a page, when its class is loaded.
+     * null if enc is not supported - the chars will be written.
+     */
+    public static byte[] getBytes(String s, String enc) {
+        try {
+            return s.getBytes(enc);
+        } catch (UnsupportedEncodingException ex) {
+            return null;
+        }
+    }
+
+    public static byte[][] getBytes(char data[][], String enc) {
+        byte b[][] = new byte[data.length][];
+        for (int i = 0; i < data.length; i++)
+            b[i] = getBytes(new String(data[i]), enc);
+        return b;
+    }
+
+    /**
+     * Write template text encoded by getBytes(). The bytes are used if
+     * out is the page writer ( not a BodyContent ) and the response
+     * uses the same encoding.
+     */
+    public static void write(JspWriter out, byte b[], String enc, String s)
+        throws IOException
+    {
+        if (b == null || !(out instanceof JspWriterImpl) ||
+            !((JspWriterImpl) out).writeBytes(b, enc, s.length()))
+            out.write(s);
+    }
+
+    public static void write(JspWriter out, byte b[], String enc, char c[])
+        throws IOException
+    {
+        if (b == null || !(out instanceof JspWriterImpl) ||
+            !((JspWriterImpl) out).writeBytes(b, enc, c.length))
+            out.write(c);
+    }
 }
 
 
@@ -381,6 +381,29 @@ public class JspWriterImpl extends JspWriter {
 	write(s, 0, s.length());
     }
 
+    /**
+     * Write template text already encoded in enc, straight to the
+     * response stream. It is done only if the text would leave the
+     * buffer anyway - no buffer, the buffer was already flushed, or the
+     * text doesn't fit - so clear() works as before.
+     *
+     * @param  chars  Length of the text in chars
+     * @return false if the bytes were not written - write the chars
+     */
+    boolean writeBytes(byte b[], String enc, int chars) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            if (bufferSize != 0 && !flushed &&
+                (!autoFlush || nextChar + chars <= bufferSize))
+                return false;
+            initOut();
+            if (!(out instanceof ByteWriter))
+                return false;
+            flushBuffer();
+            return ((ByteWriter) out).write(b, 0, b.length, enc);
+        }
+    }
+
 
     static String lineSeparator = System.getProperty("line.separator");
 
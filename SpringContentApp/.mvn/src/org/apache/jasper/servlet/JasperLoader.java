@@ -265,7 +265,7 @@ public class JasperLoader extends org.apache.jasper.runtime.JspLoader {
 
 //     private Vector jars = new Vector();
     
-    private byte[] loadClassDataFromJar(String className) {
+    protected byte[] loadClassDataFromJar(String className) {
         String entryName = className.replace('.','/')+".class";
 	InputStream classStream = null;
 	//System.out.println("Loading " + className);
@@ -80,6 +80,9 @@ import org.apache.jasper.EmbededServletOptions;
 import org.apache.jasper.JspCompilationContext;
 import org.apache.jasper.JspEngineContext;
 import org.apache.jasper.compiler.Mangler;
+import org.apache.jasper.compiler.CompileQueue;
+import org.apache.jasper.compiler.FreshnessChecker;
+import org.apache.jasper.compiler.JavaxToolsCompiler;
 import org.apache.jasper.runtime.*;
 
 import org.apache.jasper.compiler.Compiler;
@@ -183,6 +186,8 @@ public class JspServlet extends HttpServlet {
         String jspUri;
         boolean isErrorPage;
         Class servletClass;
+        // null if the page is checked on every request
+        FreshnessChecker.Page page;
 
         JspServletWrapper(String jspUri, boolean isErrorPage) {
             this.jspUri = jspUri;
@@ -338,6 +343,8 @@ public class JspServlet extends HttpServlet {
     protected ClassLoader parentClassLoader;
     protected ServletEngine engine;
     protected String serverInfo;
+    protected CompileQueue compiles;
+    protected FreshnessChecker checker;
 
     /** Set to true to provide Too Much Information on errors */
     private final boolean insecure_TMI = false;
@@ -361,6 +368,9 @@ public class JspServlet extends HttpServlet {
         this.serverInfo = context.getServerInfo();
 
         options = new EmbededServletOptions(config, context);
+        compiles = new CompileQueue(options.getCompileParallelism());
+        checker = new FreshnessChecker(options.getCheckPolicy(),
+                                       options.getCheckInterval());
 
         parentClassLoader = (ClassLoader) context.getAttribute(Constants.SERVLET_CLASS_LOADER);
         if(parentClassLoader == null)
@@ -422,6 +432,9 @@ public class JspServlet extends HttpServlet {
             wrapper = (JspServletWrapper) jsps.get(jspUri);
             if(wrapper == null) {
                 wrapper = new JspServletWrapper(jspUri, isErrorPage);
+                String realPath = context.getRealPath(jspUri);
+                if(realPath != null)
+                    wrapper.page = checker.getPage(new File(realPath));
                 jsps.put(jspUri, wrapper);
             }
         }
@@ -520,9 +533,11 @@ public class JspServlet extends HttpServlet {
         if(Constants.jasperLog != null)
             Constants.jasperLog.log("JspServlet.destroy()", Logger.INFORMATION);
 
+        checker.stop();
         Enumeration servlets = jsps.elements();
         while(servlets.hasMoreElements())
             ((JspServletWrapper) servlets.nextElement()).destroy();
+        JavaxToolsCompiler.release(options.getScratchDir().getAbsolutePath());
     }
 
 
@@ -555,71 +570,89 @@ public class JspServlet extends HttpServlet {
      * compiler.isOutDated() is outside the synchronization block on purpose.  
      * The expectation is that for the vast majority of cases the JSP source file 
      * will not have changed and there will be no need to recompile the 
-     * implementation class.  For those cases when a compile is required, we 
-     * enter a block that is synchronized on the JspServletWrapper object for 
-     * this JSP page.  Because the initial out dated check is unsynchronized, it 
-     * is possible for more than one request to attempt to enter the synchronized 
-     * compile block.  The compile() method contains performs an outdated check 
-     * of its own.  The first thread into the block will cause a compile, the 
-     * subsequent threads will essentially skip the compilation and instantiation 
-     * steps.  
-     * 
-     * One other thing to note is that there is a window of time between the 
-     * compiler.compile() call and the end of the synchronized block where a new 
-     * thread entering doLoadJSP() will be told that that implementation class is 
-     * up to date even though the code in the synchronized block has not 
-     * completed loading and instantiating the class.  In this case doLoadJSP() 
-     * will return false without attempting to compile the class.  This is OK 
-     * because the JspServletWrapper.getServlet() method used by the 
-     * JspServletWrapper.service() method is synchronized.  Thus, the service 
-     * method will not receive the servlet class until it has been completely loaded and 
-     * instantiated.  
-     * 
-     * The bottom line is that we avoid synchronizing a fairly expensive 
-     * operation (isOutDated) but pay a small price of some unnecessary 
-     * compilation attempts in the atypical case of a modified JSP file.  
+     * implementation class.
+     *
+     * The compile goes through the CompileQueue: the first thread that
+     * finds the page out dated compiles it, the other requests for the
+     * page wait for that compile and use its result. Different pages
+     * are compiled at the same time, up to compileParallelism.
+     *
+     * Creating a compiler opens the associated .class file, so it is
+     * still synchronized on the JspServletWrapper, like the compile.
+     * A request for a page that is already loaded doesn't wait for a
+     * compile in progress longer than compileTimeout ( if set ) - it
+     * is served by the old servlet.  The JspServletWrapper.getServlet()
+     * method is synchronized, so a request never sees a servlet that
+     * is not completely loaded and instantiated.
+     *
+     * Unless the checkPolicy is "always", the files are only checked
+     * when the FreshnessChecker marked the page dirty - otherwise the
+     * request just reads a flag.
      */
     protected boolean doLoadJSP(String jspUri, String classpath, 
                                 boolean isErrorPage, HttpServletRequest req, HttpServletResponse res) 
     throws JasperException, FileNotFoundException 
     {
-        JspServletWrapper jsw=(JspServletWrapper) jsps.get(jspUri);
+        final JspServletWrapper jsw=(JspServletWrapper) jsps.get(jspUri);
         if( jsw==null ) {
             throw new JasperException("Can't happen - JspServletWrapper=null");
         }
-        JspCompilationContext ctxt = new JspEngineContext(loader, classpath,
+        // Nothing changed since the last check
+        if( jsw.page != null && !checker.isDirty(jsw.page) && jsw.isInstantiated() )
+            return false;
+
+        final JspCompilationContext ctxt = new JspEngineContext(loader, classpath,
                                                           context, jspUri, 
                                                           isErrorPage, options,
                                                           req, res);
-        boolean outDated = false; 
+        final boolean outDated[] = { false }; 
+        long timeout = jsw.isInstantiated() ? options.getCompileTimeout() : 0;
 
         Compiler compiler = null;
-        synchronized(jsw){
-            /*
-             * Creating a compiler opens the associated .class file (if it exists)
-             * and reads the actual class name.  If we allow a compiler to be
-             * created while a compile is going on then bad things can happen.
-             */
-            compiler = ctxt.createCompiler();
-        }
-
+        boolean checked = false;
         try {
+            // A compile of the page is running - wait for it, or use
+            // the old servlet meanwhile
+            if( !compiles.waitFor(jsw, timeout) )
+                return false;
+
+            synchronized(jsw){
+                /*
+                 * Creating a compiler opens the associated .class file (if it exists)
+                 * and reads the actual class name.  If we allow a compiler to be
+                 * created while a compile is going on then bad things can happen.
+                 */
+                compiler = ctxt.createCompiler();
+            }
 
-
-            outDated = compiler.isOutDated();
-            if(!jsw.isInstantiated() || outDated ) {
-                synchronized(jsw){
-                    outDated = compiler.compile();
-                    if(!jsw.isInstantiated() || outDated) {
-                        if( null ==ctxt.getServletClassName() ) {
-                            compiler.computeServletClassName();
+            // a change made from now on marks the page again
+            if( jsw.page != null )
+                checker.check(jsw.page);
+            outDated[0] = compiler.isOutDated();
+            if(!jsw.isInstantiated() || outDated[0] ) {
+                final Compiler fcompiler = compiler;
+                boolean compiled = compiles.compile(jsw, new CompileQueue.Task() {
+                    public void compile() throws Exception {
+                        synchronized(jsw){
+                            outDated[0] = fcompiler.compile();
+                            if(!jsw.isInstantiated() || outDated[0]) {
+                                if( null ==ctxt.getServletClassName() ) {
+                                    fcompiler.computeServletClassName();
+                                }
+                                jsw.instantiateServlet(loader.loadClass(ctxt.getFullClassName()));
+                            }
                         }
-                        jsw.instantiateServlet(loader.loadClass(ctxt.getFullClassName()));
                     }
-                }
+                }, timeout);
+                // timed out - the old servlet serves this request, and
+                // the page stays dirty so a later request compiles it
+                if( !compiled )
+                    return false;
             }
+            checked = true;
         } catch(FileNotFoundException ex) {
-            compiler.removeGeneratedFiles();
+            if( compiler != null )
+                compiler.removeGeneratedFiles();
             throw ex;
         } catch(JasperException ex) {
             throw ex;
@@ -629,9 +662,13 @@ public class JspServlet extends HttpServlet {
         } catch(Exception ex) {
             throw new JasperException(Constants.getString("jsp.error.unable.compile"),
                                       ex);
+        } finally {
+            // try again on the next request
+            if( !checked && jsw.page != null )
+                checker.setDirty(jsw.page);
         }
 
-        return outDated;
+        return outDated[0];
     }
 
     /**
@@ -124,6 +124,16 @@ public class LoaderInterceptor extends BaseInterceptor {
 	}
     }
 
+    /** Stop the background reload checks of the context loader
+     */
+    public void contextShutdown( Context context )
+	throws TomcatException
+    {
+	ServletLoader loader=context.getServletLoader();
+	if( loader instanceof AdaptiveServletLoader )
+	    ((AdaptiveServletLoader)loader).stop();
+    }
+
     private void getJars(Vector v, File f) {
         FilenameFilter jarfilter = new FilenameFilter() {
 		public boolean accept(File dir, String fname) {
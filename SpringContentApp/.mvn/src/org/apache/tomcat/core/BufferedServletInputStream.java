@@ -116,6 +116,19 @@ public class BufferedServletInputStream extends ServletInputStream {
 	this.limit = limit;
     }
     
+    /** Read and discard the rest of the body, so the next request
+     *  on the same connection can be read. Works only if a limit is set.
+     */
+    public void skipRemaining() throws IOException {
+	if( limit == -1 ) return;
+	byte skipBuf[]=null;
+	while( bytesRead < limit ) {
+	    if( skipBuf==null ) skipBuf=new byte[512];
+	    if( read( skipBuf, 0, skipBuf.length ) <= 0 )
+		break;
+	}
+    }
+    
     public int read() throws IOException {
 	if (limit != -1) {
 	    if (bytesRead < limit) {
@@ -65,6 +65,7 @@
 package org.apache.tomcat.core;
 
 import org.apache.tomcat.util.StringManager;
+import org.apache.tomcat.util.GzipOutputStream;
 import java.io.*;
 import javax.servlet.ServletOutputStream;
 
@@ -103,6 +104,10 @@ public class BufferedServletOutputStream extends ServletOutputStream {
     protected int totalCount = 0;
     protected boolean closed = false;
     ResponseImpl resA;
+
+    // compressed body, see setGzip()
+    GzipOutputStream gzip;
+    OutputStream adapterStream;
     
     protected BufferedServletOutputStream() {
 	//	System.out.println("new BOS " + closed);
@@ -118,7 +123,63 @@ public class BufferedServletOutputStream extends ServletOutputStream {
 //     }
     
     protected void doWrite( byte buffer[], int pos, int count) throws IOException {
-	resA.doWrite( buffer, pos, count);
+	if( gzip != null )
+	    gzip.write( buffer, pos, count );
+	else
+	    resA.doWrite( buffer, pos, count);
+    }
+
+    /** Compress the body with gzip. Must be called before any byte
+     *	of the body is sent ( i.e. in beforeBody ).
+     */
+    public void setGzip( boolean b ) {
+	if( ! b ) {
+	    if( gzip != null ) gzip.release();
+	    gzip=null;
+	    return;
+	}
+	if( gzip != null ) return;
+	if( adapterStream == null )
+	    adapterStream=new AdapterOutputStream();
+	gzip=new GzipOutputStream( adapterStream );
+    }
+
+    public boolean isGzip() {
+	return gzip != null;
+    }
+
+    /** Compress the buffered body in one step. Used when the response
+     *	is complete, so the compressed length is known before the headers
+     *	are sent. Returns the new length, or -1 if the compressed body is
+     *	not smaller ( the buffer is unchanged ).
+     */
+    int compressBuffer() throws IOException {
+	if( gzip == null ) return -1;
+	ByteArrayOutputStream bos=new ByteArrayOutputStream( bufferCount );
+	GzipOutputStream gz=new GzipOutputStream( bos );
+	gz.write( buffer, 0, bufferCount );
+	gz.finish();
+	if( bos.size() >= bufferCount )
+	    return -1;
+	bufferCount=bos.size();
+	System.arraycopy( bos.toByteArray(), 0, buffer, 0, bufferCount );
+	// the body is already compressed
+	gzip.release();
+	gzip=null;
+	return bufferCount;
+    }
+
+    // Sends the compressed body to the adapter
+    class AdapterOutputStream extends OutputStream {
+	public void write( int b ) throws IOException {
+	    byte one[]=new byte[1];
+	    one[0]=(byte)b;
+	    resA.doWrite( one, 0, 1 );
+	}
+
+	public void write( byte b[], int off, int len ) throws IOException {
+	    resA.doWrite( b, off, len );
+	}
     }
 
     protected void sendHeaders() throws IOException {
@@ -226,8 +287,10 @@ public class BufferedServletOutputStream extends ServletOutputStream {
 
     // If a servlet is using PrintWriter then this method is NO-OP.
     public void flush() throws IOException {
-	if (this.usingWriter == false)
+	if (this.usingWriter == false) {
 	    reallyFlush();
+	    if( gzip != null ) gzip.flush();
+	}
     }
 
     public void reallyFlush() throws IOException {
@@ -253,10 +316,20 @@ public class BufferedServletOutputStream extends ServletOutputStream {
 
     public void close() throws IOException {
 	reallyFlush();
+	if( gzip != null ) {
+	    gzip.finish();
+	    gzip=null;
+	}
 	closed = true;
 	//	out.close();
     }
 
+    /** Number of bytes in the buffer, not yet sent
+     */
+    public int getBufferCount() {
+	return bufferCount;
+    }
+
     public boolean isContentWritten() {
 	return totalCount > 0 ? true : false;
     }
@@ -310,6 +383,10 @@ public class BufferedServletOutputStream extends ServletOutputStream {
 	totalCount = 0;
 	closed = false;
     usingWriter = false;
+	if( gzip != null ) {
+	    gzip.release();
+	    gzip=null;
+	}
     }
 
 }
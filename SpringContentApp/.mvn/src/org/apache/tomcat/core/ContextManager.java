@@ -177,6 +177,15 @@ public class ContextManager {
      *  in the default exception handling
      */
     boolean showDebugInfo = true;
+
+    /** Limits for the request parameters - number of parameters
+     *  ( query string and form body ) and size of a form body
+     */
+    int maxParameterCount = DEFAULT_MAX_PARAMETER_COUNT;
+    int maxPostSize = DEFAULT_MAX_POST_SIZE;
+
+    public static final int DEFAULT_MAX_PARAMETER_COUNT=10000;
+    public static final int DEFAULT_MAX_POST_SIZE=2 * 1024 * 1024;
     
     /** Default work dir, relative to home
      */
@@ -362,6 +371,27 @@ public class ContextManager {
 	this.showDebugInfo = showDebugInfo;
     }
 
+    public int getMaxParameterCount() {
+	return maxParameterCount;
+    }
+
+    /** Maximum number of request parameters, the rest are ignored.
+     */
+    public void setMaxParameterCount( int max ) {
+	maxParameterCount=max;
+    }
+
+    public int getMaxPostSize() {
+	return maxPostSize;
+    }
+
+    /** Maximum size in bytes of a form body parsed into parameters.
+     *  Larger forms are left for the servlet to read.
+     */
+    public void setMaxPostSize( int max ) {
+	maxPostSize=max;
+    }
+
     /** When tomcat is embeded in other applications you
 	can set this property to the application classloader.
 
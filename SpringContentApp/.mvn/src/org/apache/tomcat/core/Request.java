@@ -135,6 +135,11 @@ public interface Request  {
 
     public int getCookieCount();
 
+    /** Value of the first cookie with that name, without creating
+     *  Cookie objects
+     */
+    public String findCookieValue( String name );
+
     public int getContentLength() ;
 
     public void setContentLength( int  len ) ;
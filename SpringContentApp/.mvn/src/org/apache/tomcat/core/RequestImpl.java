@@ -93,7 +93,7 @@ public class RequestImpl  implements Request {
 
    //  RequestAdapterImpl Hints
     protected String serverName=null;
-    protected Vector cookies = new Vector();
+    protected Cookies cookies = new Cookies();
 
     protected String contextPath;
     protected String lookupPath; // everything after contextPath before ?
@@ -105,6 +105,9 @@ public class RequestImpl  implements Request {
     protected boolean pathTranslatedIsSet=false;
 
     protected Hashtable parameters = new Hashtable();
+    // scratch buffer for decoding parameters, kept across recycle()
+    protected byte formBuf[];
+    protected int paramCount;
     protected int contentLength = -1;
     protected String contentType = null;
     protected String charEncoding = null;
@@ -505,19 +508,23 @@ public class RequestImpl  implements Request {
 
     // --------------------
     public int getCookieCount() {
-	if( ! didCookies ) {
-	    didCookies=true;
-	    RequestUtil.processCookies( this, cookies );
-	}
-	return cookies.size();
+	return parseCookies().getCount();
     }
 
     public Cookie getCookie( int idx ) {
+	return parseCookies().getCookie( idx );
+    }
+
+    public String findCookieValue( String name ) {
+	return parseCookies().findCookieValue( name );
+    }
+
+    private Cookies parseCookies() {
 	if( ! didCookies ) {
 	    didCookies=true;
-	    RequestUtil.processCookies( this, cookies );
+	    cookies.processCookies( getMimeHeaders() );
 	}
-	return (Cookie)cookies.elementAt(idx);
+	return cookies;
     }
 
     public Cookie[] getCookies() {
@@ -694,9 +701,7 @@ public class RequestImpl  implements Request {
 
     // -------------------- Facade for MimeHeaders
     public Enumeration getHeaders(String name) {
-	//	Vector v = reqA.getMimeHeaders().getHeadersVector(name);
-	Vector v = getMimeHeaders().getHeadersVector(name);
-	return v.elements();
+	return getMimeHeaders().values(name);
     }
 
     // -------------------- Utils - facade for RequestUtil
@@ -711,22 +716,83 @@ public class RequestImpl  implements Request {
 	    String qString=getQueryString();
 	    if(qString!=null) {
 		didParameters=true;
-		RequestUtil.processFormData( qString, parameters );
+		int len=qString.length();
+		byte b[]=getFormBuffer( len );
+		qString.getBytes( 0, len, b, 0 );
+		addParameters( b, len );
 	    }
 	}
 	if (!didReadFormData) {
 	    didReadFormData = true;
-	    Hashtable postParameters=RequestUtil.readFormData( this );
-	    if(postParameters!=null)
-		parameters = RequestUtil.mergeParameters(parameters, postParameters);
+	    readFormData();
+	}
+    }
+
+    /** Read a urlencoded form body into the scratch buffer and decode it
+     *  there, query string parameters come first.
+     */
+    private void readFormData() {
+	String contentType=getContentType();
+	if( contentType==null ||
+	    ! contentType.regionMatches( true, 0, "application/x-www-form-urlencoded", 0, 33 ) )
+	    return;
+	int len=getContentLength();
+	if( len <= 0 )
+	    return;
+	int max=( contextM==null ) ? ContextManager.DEFAULT_MAX_POST_SIZE :
+	    contextM.getMaxPostSize();
+	if( max >= 0 && len > max ) {
+	    if( contextM != null )
+		contextM.log( "Form body too large, parameters ignored " + len );
+	    return;
+	}
+	byte b[]=getFormBuffer( len );
+	int count=0;
+	try {
+	    ServletInputStream is=getFacade().getInputStream();
+	    while( count < len ) {
+		int n=is.read( b, count, len - count );
+		if( n < 0 ) break;
+		count+=n;
+	    }
+	} catch( IOException e ) {
+	    // XXX at least warn ?
+	    return;
+	}
+	addParameters( b, count );
+    }
+
+    private void addParameters( byte b[], int len ) {
+	int max=( contextM==null ) ? ContextManager.DEFAULT_MAX_PARAMETER_COUNT :
+	    contextM.getMaxParameterCount();
+	int room=( max < 0 ) ? Integer.MAX_VALUE : max - paramCount;
+	if( room < 0 )
+	    room=0;
+	int n=RequestUtil.processFormData( b, 0, len, parameters, room );
+	if( n > room ) {
+	    // some parameters were dropped
+	    n=room;
+	    if( contextM != null )
+		contextM.log( "Parameter limit reached " + max );
 	}
+	paramCount+=n;
+    }
+
+    private byte[] getFormBuffer( int len ) {
+	if( formBuf==null || formBuf.length < len )
+	    formBuf=new byte[ ( len < 512 ) ? 512 : len ];
+	return formBuf;
     }
 
     private void initRequest() {
         context = null;
         attributes.clear();
         parameters.clear();
-        cookies.removeAllElements();
+        paramCount=0;
+	// don't keep a large form body around
+	if( formBuf != null && formBuf.length > 8192 )
+	    formBuf=null;
+        cookies.recycle();
 	//        requestURI = null;
 	//        queryString = null;
         contentLength = -1;
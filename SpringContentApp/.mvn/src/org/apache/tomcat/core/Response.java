@@ -61,6 +61,7 @@
 package org.apache.tomcat.core;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.net.*;
 import java.util.*;
 import javax.servlet.*;
@@ -129,6 +130,20 @@ public interface Response {
     public ServletOutputStream getOutputStream() ;
 
     public void doWrite( byte buffer[], int pos, int count) throws IOException;
+
+    /** Send count bytes of the file, starting at pos, directly to the
+     *  client - the adapter may use zero-copy transfer. Returns false if
+     *  the body can't bypass the buffer ( included, using a writer ),
+     *  the caller should copy the file.
+     */
+    public boolean sendFile( FileChannel file, long pos, long count )
+	throws IOException;
+
+    /** Compress the body with gzip and set Content-Encoding. Must be
+     *  called before the body is sent ( beforeBody ). Returns false if
+     *  the response can't be compressed ( included, already committed ).
+     */
+    public boolean enableGzip();
     
     public PrintWriter getWriter() throws IOException ;
 
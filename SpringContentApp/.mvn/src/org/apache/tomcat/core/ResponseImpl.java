@@ -66,6 +66,7 @@ package org.apache.tomcat.core;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -108,6 +109,8 @@ public class ResponseImpl implements Response {
     protected boolean commited = false;
     
     boolean notIncluded=true;
+    // finish() was called, the whole body is in the buffer
+    boolean finishing=false;
     Exception errorException=null;
     String errorURI=null;
 
@@ -193,6 +196,7 @@ public class ResponseImpl implements Response {
 	started = false;
 	commited = false;
 	notIncluded=true;
+	finishing=false;
 	errorURI=null;
 	// adapter
 	body=null;
@@ -204,6 +208,15 @@ public class ResponseImpl implements Response {
     public void finish() throws IOException {
 	if (usingWriter && (writer != null)) {
 	    writer.flush();
+	}
+	finishing=true;
+	if( bBuffer == null && ! commited && contentLength == -1 &&
+	    notIncluded && status != 304 && status != 204 ) {
+	    // The whole body is still in the buffer, we know its
+	    // length - the connection can be kept alive.
+	    setContentLength( out.getBufferCount() );
+	}
+	if (usingWriter && (writer != null)) {
 	    writer.close();
 	}
 	if( bBuffer != null) {
@@ -221,6 +234,49 @@ public class ResponseImpl implements Response {
 	return headers.containsHeader(name);
     }
 
+    public boolean sendFile( FileChannel file, long pos, long count )
+	throws IOException
+    {
+	if( ! notIncluded || usingWriter || bBuffer != null )
+	    return false;
+
+	// commit, send the headers and anything already buffered
+	out.reallyFlush();
+	if( out.isGzip() )
+	    return false; // the body must go through the encoder
+	// null if the adapter can't take raw bytes ( i.e. chunked )
+	WritableByteChannel ch=getChannel();
+	if( ch == null )
+	    return false;
+	while( count > 0 ) {
+	    long n=file.transferTo( pos, count, ch );
+	    if( n <= 0 )
+		throw new EOFException(); // file truncated
+	    pos+=n;
+	    count-=n;
+	}
+	return true;
+    }
+
+    public boolean enableGzip() {
+	if( ! notIncluded || bBuffer != null || commited )
+	    return false;
+	headers.putHeader( "Content-Encoding", "gzip" );
+	// the compressed length is not known yet, see notifyEndHeaders
+	contentLength=-1;
+	headers.removeHeader( "Content-Length" );
+	out.setGzip( true );
+	return true;
+    }
+
+    /** Channel to the client, used by sendFile. Adapters that
+     *  write directly to the client should override it. Called after
+     *  the headers are sent.
+     */
+    protected WritableByteChannel getChannel() {
+	return null;
+    }
+
     // XXX
     // mark whether or not we are being used as a stream our writer
 
@@ -252,7 +308,10 @@ public class ResponseImpl implements Response {
 	started = true;
 	usingWriter = true;
 	
-	writer = new ServletWriterFacade( getConverter(outs), this);
+	// the writer can also take bytes already converted
+	ServletWriterFacade.ConverterStream cs=
+	    new ServletWriterFacade.ConverterStream( outs );
+	writer = new ServletWriterFacade( getConverter(cs), this, cs );
 	return writer;
     }
 
@@ -450,7 +509,18 @@ public class ResponseImpl implements Response {
 	if(request.getContext() != null) 
 	    request.getContext().getContextManager().doBeforeBody(request, this);
 
-	// No action.. 
+	// The body is compressed ( enableGzip ). If the response is
+	// complete compress it now, the length can be sent.
+	if( finishing && out.isGzip() ) {
+	    int len=out.compressBuffer();
+	    if( len < 0 ) {
+		// not smaller - send it as it is
+		out.setGzip( false );
+		headers.removeHeader( "Content-Encoding" );
+		len=out.getBufferCount();
+	    }
+	    setContentLength( len );
+	}
     }
 
     public void addCookie(Cookie cookie) {
@@ -544,7 +614,7 @@ public class ResponseImpl implements Response {
     public void setContentLength(int contentLength) {
         if( isIncluded() ) return;      // We are in an included sub-request
 	this.contentLength = contentLength;
-	headers.putHeader("Content-Length", (new Integer(contentLength)).toString());
+	headers.putIntHeader("Content-Length", contentLength);
     }
 
     public int getContentLength() {
@@ -579,9 +649,20 @@ public class ResponseImpl implements Response {
 	return body;
     }
 
+    // status -> message, for 100..599. The messages don't change, a
+    // race only formats one twice.
+    private static String messages[]=new String[500];
+
     // utility method - should be in a different class
     public static String getMessage( int status ) {
-	return sm.getString("sc."+ status);
+	if( status < 100 || status >= 600 )
+	    return sm.getString("sc."+ status);
+	String msg=messages[ status - 100 ];
+	if( msg==null ) {
+	    msg=sm.getString("sc."+ status);
+	    messages[ status - 100 ]=msg;
+	}
+	return msg;
     }
 
 }
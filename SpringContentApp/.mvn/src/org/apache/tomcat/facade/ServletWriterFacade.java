@@ -63,7 +63,9 @@ package org.apache.tomcat.facade;
 import org.apache.tomcat.core.*;
 import org.apache.tomcat.util.StringManager;
 import java.io.*;
+import java.nio.charset.Charset;
 import javax.servlet.ServletOutputStream;
+import org.apache.jasper.runtime.ByteWriter;
 
 /**
  *  Facade to the PrintWriter returned by Response.
@@ -78,10 +80,19 @@ import javax.servlet.ServletOutputStream;
  * @author Costin Manolache [costin@eng.sun.com]
  */
 // XXX hack - public will be removed after we add the CharBuffer and we fix the converter
-public final class ServletWriterFacade extends PrintWriter {
+public final class ServletWriterFacade extends PrintWriter
+    implements ByteWriter
+{
     Response resA;
     RequestImpl req;
     static final boolean ACCT=false;// a smart compiler will remove all in/out
+
+    // between the converter and the stream, for write( byte[] .. )
+    ConverterStream cs;
+    String convEnc;
+    // last encoding asked in write( byte[] .. ), and if it's ours
+    String bytesEnc;
+    boolean bytesOk;
     
     public ServletWriterFacade( Writer w, Response resp ) {
 	super( w );
@@ -89,6 +100,16 @@ public final class ServletWriterFacade extends PrintWriter {
 	req=(RequestImpl)resA.getRequest();
     }
 
+    /** A writer that can also take bytes already converted.
+     *  w must write to cs.
+     */
+    public ServletWriterFacade( Writer w, Response resp, ConverterStream cs ) {
+	this( w, resp );
+	this.cs=cs;
+	if( w instanceof OutputStreamWriter )
+	    convEnc=((OutputStreamWriter)w).getEncoding();
+    }
+
     // -------------------- Write methods --------------------
 
     public void flush() {
@@ -121,6 +142,45 @@ public final class ServletWriterFacade extends PrintWriter {
 	if( ACCT ) out();
     }
 
+    /** Write bytes already converted to enc - like the JSP template
+     *  text, converted once when the page is loaded. The chars written
+     *  before are converted first, but not sent.
+     *
+     *  @return false if this writer doesn't use enc - write the chars
+     */
+    public boolean write( byte b[], int off, int len, String enc ) {
+	if( cs==null || enc==null )
+	    return false;
+	if( enc != bytesEnc && ! enc.equals( bytesEnc )) {
+	    bytesOk=isCharset( enc );
+	    bytesEnc=enc;
+	}
+	if( ! bytesOk )
+	    return false;
+	if( ACCT ) in();
+	// the converter writes what it has, but the stream is not flushed
+	cs.hold=true;
+	super.flush();
+	cs.hold=false;
+	try {
+	    cs.out.write( b, off, len );
+	} catch( IOException ex ) {
+	    setError();
+	}
+	if( ACCT ) out();
+	return true;
+    }
+
+    private boolean isCharset( String enc ) {
+	if( convEnc==null )
+	    return false;
+	try {
+	    return Charset.forName( enc ).equals( Charset.forName( convEnc ));
+	} catch( Exception ex ) {
+	    return false;
+	}
+    }
+
     private void in() {
 	req.setAccount( RequestImpl.ACC_IN_OUT, System.currentTimeMillis() );
     }
@@ -138,5 +198,34 @@ public final class ServletWriterFacade extends PrintWriter {
     void recycle() {
     }
 
+    /** The stream under the converter. Normally it just passes the
+     *  bytes, flush() is held while write( byte[] .. ) takes the
+     *  pending chars out of the converter.
+     */
+    public static final class ConverterStream extends ServletOutputStream {
+	ServletOutputStream out;
+	boolean hold;
+
+	public ConverterStream( ServletOutputStream out ) {
+	    this.out=out;
+	}
+
+	public void write( int b ) throws IOException {
+	    out.write( b );
+	}
+
+	public void write( byte b[], int off, int len ) throws IOException {
+	    out.write( b, off, len );
+	}
+
+	public void flush() throws IOException {
+	    if( ! hold )
+		out.flush();
+	}
+
+	public void close() throws IOException {
+	    out.close();
+	}
+    }
 }
 
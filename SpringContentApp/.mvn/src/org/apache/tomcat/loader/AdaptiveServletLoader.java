@@ -72,7 +72,7 @@ import java.security.*;
 public class AdaptiveServletLoader  extends AdaptiveClassLoader
     implements ServletLoader
 {
-    AdaptiveClassLoader classL;
+    volatile AdaptiveClassLoader classL;
     static boolean jdk12=false;
     static {
 	try {
@@ -83,6 +83,14 @@ public class AdaptiveServletLoader  extends AdaptiveClassLoader
     }
     Vector classP;
     ClassLoader parent;
+
+    /** Interval between checks for modified classes, in ms */
+    public static final long RELOAD_CHECK_INTERVAL=2000;
+
+    // result of the last check, done in the background
+    volatile boolean modified;
+    volatile Scheduler.Task checkTask;
+    boolean stopped;
     
     public AdaptiveServletLoader() {
 	super(); // dumy -
@@ -121,13 +129,40 @@ public class AdaptiveServletLoader  extends AdaptiveClassLoader
     public boolean shouldReload() {
 	if( classL==null )
 	    getClassLoader();
-	boolean should=classL.shouldReload();// check for _any_ change, including beans.
-	//	System.out.println("Should reload  = " + should);
-	return should;
-	// Very slow !!! (name)
+	// Checking all the classes is very slow - it is done every
+	// RELOAD_CHECK_INTERVAL in the scheduler thread, requests only
+	// look at the result. The task is cancelled in stop().
+	if( checkTask==null ) {
+	    synchronized( this ) {
+		if( checkTask==null ) {
+		    modified=classL.shouldReload();
+		    if( stopped )
+			return modified;
+		    checkTask=Scheduler.getDefault().
+			schedule( "ReloadCheck", new Runnable() {
+				public void run() {
+				    AdaptiveClassLoader cl=classL;
+				    if( modified || cl==null )
+					return;
+				    boolean m=cl.shouldReload();
+				    // ignore the old loader after a reload
+				    if( cl==classL )
+					modified=m;
+				}
+			    }, RELOAD_CHECK_INTERVAL );
+		}
+	    }
+	}
+	return modified;
     }
 
-    
+    /** Stop the background checks, called when the context is shut down
+     */
+    public synchronized void stop() {
+	stopped=true;
+	if( checkTask!=null )
+	    checkTask.cancel();
+    }
 
     /** Reset the class loader. The caller should take all actions
      *  required by this step ( free resources for GC, etc)
@@ -137,30 +172,38 @@ public class AdaptiveServletLoader  extends AdaptiveClassLoader
 	    getClassLoader();
 	else
 	    classL= classL.reinstantiate();
+	modified=false;
     }
 		
 
     /** Return a real class loader
      */
     public ClassLoader getClassLoader() {
-	if( classL!=null)
-	    return classL;
-	if( jdk12 ) {
-	    try {
-		Class ld=Class.forName("org.apache.tomcat.loader.AdaptiveClassLoader12");
-		classL=(AdaptiveClassLoader)ld.newInstance();
-	    } catch(Throwable t ) {
-		t.printStackTrace();
+	AdaptiveClassLoader cl=classL;
+	if( cl!=null)
+	    return cl;
+	synchronized( this ) {
+	    if( classL!=null )
+		return classL;
+	    if( jdk12 ) {
+		try {
+		    Class ld=Class.forName("org.apache.tomcat.loader.AdaptiveClassLoader12");
+		    cl=(AdaptiveClassLoader)ld.newInstance();
+		} catch(Throwable t ) {
+		    t.printStackTrace();
+		}
 	    }
-	}
 
-	if( classL==null ) {
-	    // jdk1.1 or error
-	    classL= new AdaptiveClassLoader();
+	    if( cl==null ) {
+		// jdk1.1 or error
+		cl= new AdaptiveClassLoader();
+	    }
+	    cl.setParent( parent );
+	    cl.setRepository( classP );
+	    // publish the loader only when it's ready
+	    classL=cl;
+	    return cl;
 	}
-	classL.setParent( parent );
-	classL.setRepository( classP );
-	return classL;
     }
 
     
@@ -64,6 +64,7 @@ import java.util.Date;
 import javax.servlet.ServletException;
 
 import org.apache.tomcat.util.Queue;
+import org.apache.tomcat.util.Scheduler;
 
 /**
  * A real implementation of the Logger abstraction. 
@@ -234,29 +235,44 @@ class LogDaemon extends Thread {
     Runnable flusher = new Runnable() {
 	    public void run() {
 		do {
-		    TomcatLogger.LogEntry logEntry =
-		      (TomcatLogger.LogEntry) LogDaemon.this.logQueue.pull();
-		    Writer writer = logEntry.getWriter();
-		    if (writer != null)
-			try {
-			    writer.write(logEntry.toString());
-			    writer.write(newline);
-			    writer.flush();
-			} catch (Exception ex) { // IOException
-			    ex.printStackTrace();
-			}
+		    write((TomcatLogger.LogEntry) LogDaemon.this.logQueue.pull());
 		} while (!LogDaemon.this.logQueue.isEmpty());
 	    }
     };
 
+    /** Write what is queued and return - never waits, it runs in
+     *  the scheduler thread.
+     */
+    Runnable drain = new Runnable() {
+	    public void run() {
+		Object logEntry;
+		while ((logEntry = LogDaemon.this.logQueue.get()) != null)
+		    write((TomcatLogger.LogEntry) logEntry);
+	    }
+    };
+
+    static void write(TomcatLogger.LogEntry logEntry) {
+	Writer writer = logEntry.getWriter();
+	if (writer != null)
+	    try {
+		writer.write(logEntry.toString());
+		writer.write(newline);
+		writer.flush();
+	    } catch (Exception ex) { // IOException
+		ex.printStackTrace();
+	    }
+    }
+
     public void run() {
 	while (true)
 	    flusher.run();
     }
 
+    /** Write the queued entries. Done in the shared scheduler thread
+     *  instead of a new thread for each call.
+     */
     public void flush() {
-	Thread workerThread = new Thread(flusher);
-	workerThread.start();
+	Scheduler.getDefault().scheduleOnce("LogFlush", drain, 0);
     }
 
     private Queue logQueue;
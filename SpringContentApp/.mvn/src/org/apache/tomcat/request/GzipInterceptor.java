@@ -0,0 +1,175 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.request;
+
+import org.apache.tomcat.core.*;
+import org.apache.tomcat.util.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compress dynamic responses with gzip.
+ *
+ * The response is compressed if the client accepts gzip, the status is
+ * 200, the content type is in "mimeTypes" and the length ( if known )
+ * is at least "minSize" bytes. Responses that already have a
+ * Content-Encoding, an ETag or a Content-Range are not touched - static
+ * files are handled by StaticInterceptor ( precompressed file.gz ).
+ *
+ * If the whole body is buffered when the response ends it is compressed
+ * in one step and sent with a Content-Length, otherwise it is streamed
+ * using a pooled Deflater ( see GzipOutputStream ).
+ */
+public class GzipInterceptor extends BaseInterceptor {
+    public static final String DEFAULT_MIME_TYPES =
+	"text/html,text/xml,text/plain,text/css,text/javascript," +
+	"application/javascript,application/x-javascript,application/json," +
+	"application/xml";
+
+    int minSize=1024;
+    String mimeTypes[]=split( DEFAULT_MIME_TYPES );
+
+    public GzipInterceptor() {
+    }
+
+    // -------------------- Properties --------------------
+
+    /** Responses smaller than this are not compressed
+     */
+    public void setMinSize( int size ) {
+	minSize=size;
+    }
+
+    public int getMinSize() {
+	return minSize;
+    }
+
+    /** Comma separated list of content types to compress
+     */
+    public void setMimeTypes( String s ) {
+	mimeTypes=split( s );
+    }
+
+    /** Compression level, 1 ( fast ) to 9 ( best )
+     */
+    public void setLevel( int level ) {
+	GzipOutputStream.setLevel( level );
+    }
+
+    // -------------------- Hooks --------------------
+
+    public int beforeBody( Request req, Response res ) {
+	if( res.isIncluded() || res.getStatus() != 200 )
+	    return 0;
+	MimeHeaders headers=res.getMimeHeaders();
+	if( headers.getHeader( "Content-Encoding" ) != null ||
+	    headers.getHeader( "ETag" ) != null ||
+	    headers.getHeader( "Content-Range" ) != null )
+	    return 0;
+	if( ! isCompressible( res.getContentType() ))
+	    return 0;
+
+	// the response depends on Accept-Encoding
+	String vary=headers.getHeader( "Vary" );
+	if( vary == null )
+	    res.setHeader( "Vary", "Accept-Encoding" );
+	else if( vary.toLowerCase().indexOf( "accept-encoding" ) < 0 )
+	    res.setHeader( "Vary", vary + ", Accept-Encoding" );
+
+	int len=res.getContentLength();
+	if( len >= 0 && len < minSize )
+	    return 0;
+	if( ! RequestUtil.acceptsEncoding( req, "gzip" ))
+	    return 0;
+
+	if( res.enableGzip() && debug > 0 )
+	    log( "Compressing " + req.getRequestURI() );
+	return 0;
+    }
+
+    // -------------------- Implementation --------------------
+
+    boolean isCompressible( String type ) {
+	if( type == null ) return false;
+	int semi=type.indexOf( ';' );
+	if( semi >= 0 ) type=type.substring( 0, semi );
+	type=type.trim();
+	for( int i=0; i<mimeTypes.length; i++ ) {
+	    if( mimeTypes[i].equalsIgnoreCase( type ))
+		return true;
+	}
+	return false;
+    }
+
+    private static String[] split( String s ) {
+	Vector v=new Vector();
+	StringTokenizer st=new StringTokenizer( s, ", " );
+	while( st.hasMoreTokens() )
+	    v.addElement( st.nextToken() );
+	String a[]=new String[ v.size() ];
+	v.copyInto( a );
+	return a;
+    }
+}
@@ -80,6 +80,69 @@ import org.apache.tomcat.core.*;
  */
 public class JspInterceptor extends BaseInterceptor {
     int jspInfoNOTE;
+    boolean precompile=false;
+    boolean templateBytes=false;
+    // one compile per page, pages compiled in parallel
+    CompileQueue compiles=new CompileQueue( Runtime.getRuntime().
+					    availableProcessors() );
+    long compileTimeout=0;
+    int checkPolicy=FreshnessChecker.ALWAYS;
+    long checkInterval=2000;
+    FreshnessChecker checker;
+
+    /** Translate and compile all the pages of a context when it
+     *  starts, with JspC. Only the pages changed since the last start
+     *  are compiled again.
+     *
+     *  Pages precompiled - now or by a JspC run at build time - are
+     *  mapped directly to their class, and are not checked for
+     *  changes until the next start.
+     */
+    public void setPrecompile( boolean b ) {
+	precompile=b;
+    }
+
+    /** Generate the template text as bytes encoded in the page
+     *  charset - see the templatebytes init parameter of JspServlet.
+     */
+    public void setTemplateBytes( boolean b ) {
+	templateBytes=b;
+    }
+
+    /** How many pages can be compiled at the same time, 0 for no
+     *  limit. Default is one per processor.
+     */
+    public void setCompileParallelism( int n ) {
+	compiles.setParallelism( n );
+    }
+
+    /** How long ( ms ) a request for a changed page waits for its
+     *  compile before it uses the previous version. 0 - the default -
+     *  waits until the page is compiled.
+     */
+    public void setCompileTimeout( int ms ) {
+	compileTimeout=ms;
+    }
+
+    /** When to check the pages for changes: "always" ( on each
+     *  request, the default ), "never", "interval" or "watch".
+     *  See FreshnessChecker.
+     */
+    public void setCheckPolicy( String s ) {
+	int p=FreshnessChecker.getPolicy( s );
+	if( p < 0 ) {
+	    log( "Unknown checkPolicy " + s + ", using always" );
+	    return;
+	}
+	checkPolicy=p;
+    }
+
+    /** ms between the checks, for "interval" and "watch"
+     */
+    public void setCheckInterval( int ms ) {
+	if( ms > 0 )
+	    checkInterval=ms;
+    }
 
     public void engineInit(ContextManager cm )
 	throws TomcatException
@@ -87,6 +150,22 @@ public class JspInterceptor extends BaseInterceptor {
 	super.engineInit(cm);
 	jspInfoNOTE=cm.getNoteId( ContextManager.HANDLER_NOTE,
 				  "tomcat.jspInfoNote");
+	checker=new FreshnessChecker( checkPolicy, checkInterval );
+    }
+
+    public void engineShutdown(ContextManager cm )
+	throws TomcatException
+    {
+	if( checker != null )
+	    checker.stop();
+    }
+
+    /** Close the in-process compiler of the context
+     */
+    public void contextShutdown( Context ctx )
+	throws TomcatException
+    {
+	JavaxToolsCompiler.release( ctx.getWorkDir().getAbsolutePath() );
     }
     
     public void contextInit(Context ctx)
@@ -95,6 +174,12 @@ public class JspInterceptor extends BaseInterceptor {
 	JspFactory.setDefaultFactory(new JspFactoryImpl());
 	ctx.getServletLoader().addRepository( ctx.getWorkDir(),
 					      ctx.getProtectionDomain());
+	if( precompile )
+	    precompile( ctx );
+	// pages compiled at build time are in WEB-INF/classes
+	loadManifest( ctx, ctx.getWorkDir() );
+	loadManifest( ctx, new File( ctx.getAbsolutePath(),
+				     "WEB-INF" + File.separator + "classes" ));
     }
 
     public void preServletInit( Context ctx, ServletWrapper sw )
@@ -126,17 +211,59 @@ public class JspInterceptor extends BaseInterceptor {
 	if( jspInfo == null ) {
 	    if( debug > 0 ) log("New jsp page - no jspInfo ");
 	    jspInfo=new JspInfo(req);
+	    jspInfo.page=checker.getPage( jspInfo.jspSource );
 	    mapJspPage( req, jspInfo, jspInfo.uri, jspInfo.fullClassN);
+	    // the page may have been mapped by another request - use its
+	    // info, compiles are keyed by it
+	    JspInfo mapped=(JspInfo)req.getWrapper().getNote( jspInfoNOTE );
+	    if( mapped != null )
+		jspInfo=mapped;
+	}
+
+	// Unless checkPolicy is "always", the source is only stat-ed
+	// when the checker marked it dirty
+	long lastModified;
+	if( jspInfo.page == null ) {
+	    lastModified=jspInfo.jspSource.lastModified();
+	} else {
+	    if( ! checker.isDirty( jspInfo.page ))
+		return 0;
+	    lastModified=checker.check( jspInfo.page );
 	}
 
-	if( jspInfo.jspSource.lastModified() 
-	    > jspInfo.compileTime ) {
+	if( lastModified > jspInfo.compileTime ) {
 	    //XXX 	    destroy();
-	    
-	    // jump version number - the file needs to
-	    // be recompiled, and we don't want a reload
-	    jspInfo.nextVersion();
-	    compile( req, jspInfo );
+
+	    // Only the first request compiles, the others wait for it.
+	    // If there is a compiled version they can use it after
+	    // compileTimeout.
+	    final Request freq=req;
+	    final JspInfo fjspInfo=jspInfo;
+	    long timeout=( jspInfo.compileTime > 0 ) ? compileTimeout : 0;
+	    try {
+		if( ! compiles.compile( jspInfo, new CompileQueue.Task() {
+			public void compile() throws Exception {
+			    // compiled while we were waiting for a slot
+			    if( fjspInfo.jspSource.lastModified() <=
+				fjspInfo.compileTime )
+				return;
+			    // jump version number - the file needs to
+			    // be recompiled, and we don't want a reload
+			    fjspInfo.nextVersion();
+			    JspInterceptor.this.compile( freq, fjspInfo );
+			}
+		    }, timeout )) {
+		    if( debug > 0 ) log( "Old version " + jspInfo );
+		    // check again until it's compiled
+		    if( jspInfo.page != null )
+			checker.setDirty( jspInfo.page );
+		    return 0;
+		}
+	    } catch( Exception ex ) {
+		log( "Compile error " + jspInfo + " " + ex );
+		if( jspInfo.page != null )
+		    checker.setDirty( jspInfo.page );
+	    }
 	    mapJspPage( req , jspInfo, jspInfo.uri, jspInfo.fullClassN);
 	}
 
@@ -157,22 +284,32 @@ public class JspInterceptor extends BaseInterceptor {
 	// The memory usage is smaller than JspSerlvet anyway, but
 	// can be further improved.
 	try {
-	    wrapper=ctx.getServletByName( servletName );
-	    // We may want to replace the class and reset it if changed
-	    
-	    if( wrapper==null ) {
-		wrapper=ctx.addServlet( servletName, classN );
-		wrapper.setPath( servletName );
-		wrapper.setOrigin( ServletWrapper.ORIGIN_INVOKER );
-		
-		ctx.addServletMapping( servletPath ,
-				       servletPath );
-		log( "Added mapping " + servletPath +
-		     " path=" + servletPath );
+	    synchronized( this ) {
+		wrapper=ctx.getServletByName( servletName );
+		// We may want to replace the class and reset it if changed
+
+		if( wrapper==null ) {
+		    wrapper=ctx.addServlet( servletName, classN );
+		    wrapper.setPath( servletName );
+		    wrapper.setOrigin( ServletWrapper.ORIGIN_INVOKER );
+
+		    ctx.addServletMapping( servletPath ,
+					   servletPath );
+		    log( "Added mapping " + servletPath +
+			 " path=" + servletPath );
+		}
+		// the first JspInfo of the page is kept
+		JspInfo mapped=(JspInfo)wrapper.getNote( jspInfoNOTE );
+		if( mapped != null && mapped != jspInfo ) {
+		    req.setWrapper( wrapper );
+		    return;
+		}
+		// all the requests waiting for a compile come here
+		if( ! classN.equals( wrapper.getServletClass() ))
+		    wrapper.setServletClass( classN );
+
+		wrapper.setNote( jspInfoNOTE, jspInfo );
 	    }
-	    wrapper.setServletClass( classN );
-	    
-	    wrapper.setNote( jspInfoNOTE, jspInfo );
 	} catch( TomcatException ex ) {
 	    ex.printStackTrace();
 	    return ;
@@ -192,6 +329,7 @@ public class JspInterceptor extends BaseInterceptor {
 	    
 	    JspMangler mangler= new JspMangler(jspInfo);
 	    TomcatOptions options=new TomcatOptions();
+	    options.templateBytes=templateBytes;
 	    JspEngineContext1 ctxt = new JspEngineContext1(req, mangler);
 	    ctxt.setOptions( options );
 	    
@@ -201,9 +339,8 @@ public class JspInterceptor extends BaseInterceptor {
 	    // we will compile ourself
 	    compiler.setJavaCompiler( null );
 	    
-	    synchronized ( this ) {
-		compiler.compile();
-	    }
+	    // one thread per page - see requestMap
+	    compiler.compile();
 	    
 	    javac( createJavaCompiler( options ), ctxt, mangler );
 	    
@@ -270,10 +407,10 @@ public class JspInterceptor extends BaseInterceptor {
 		Constants.message("jsp.warning.compiler.class.cantcreate",
 				  new Object[] { jspCompilerPlugin, ex }, 
 				  Logger.FATAL);
-                javac = new SunJavaCompiler();
+                javac = createDefaultCompiler();
 	    }
 	} else {
-            javac = new SunJavaCompiler();
+            javac = createDefaultCompiler();
 	}
 
         if (compilerPath != null)
@@ -282,14 +419,115 @@ public class JspInterceptor extends BaseInterceptor {
 	return javac;
     }
 
-    // XXX need to implement precompile
-    private void precompile() {
-	//         String qString = request.getQueryString();
-	//          if (qString != null &&
-	// 		 (qString.startsWith(Constants.PRECOMPILE) ||
-	// 		  qString.indexOf("&" + Constants.PRECOMPILE)
-	// 		  != -1))
-	//             precompile = true;
+    JavaCompiler createDefaultCompiler() {
+	if( JavaxToolsCompiler.isAvailable() )
+	    return new JavaxToolsCompiler();
+	return new SunJavaCompiler();
+    }
+
+    /** Run JspC on the context, with the work dir as output
+     */
+    private void precompile( Context ctx ) {
+	String base=ctx.getAbsolutePath();
+	log( "Precompiling " + base );
+	// JspC would set up its own logger
+	if( Constants.jasperLog == null )
+	    Constants.jasperLog=Logger.getLogger( "JASPER_LOG" );
+	try {
+	    String args[]=new String[] {
+		"-d", ctx.getWorkDir().getAbsolutePath(), "-compile",
+		"-uriroot", base, "-webapp", base };
+	    if( templateBytes ) {
+		String a[]=new String[ args.length + 1 ];
+		a[0]="-templatebytes";
+		System.arraycopy( args, 0, a, 1, args.length );
+		args=a;
+	    }
+	    PrintStream out=getLogStream();
+	    JspC jspc=new JspC( args, out );
+	    jspc.parseFiles( out );
+	    out.close();
+	} catch( Exception ex ) {
+	    log( "Precompile failed " + ex );
+	}
+    }
+
+    /** A stream that sends each line to the interceptor log
+     */
+    private PrintStream getLogStream() {
+	return new PrintStream( new OutputStream() {
+		ByteArrayOutputStream line=new ByteArrayOutputStream();
+
+		public void write( int b ) {
+		    if( b == '\n' )
+			logLine();
+		    else if( b != '\r' )
+			line.write( b );
+		}
+
+		public void close() {
+		    if( line.size() > 0 )
+			logLine();
+		}
+
+		private void logLine() {
+		    log( line.toString() );
+		    line.reset();
+		}
+	    }, true );
+    }
+
+    /** Map the pages of a JspC manifest that didn't change since they
+     *  were compiled.
+     */
+    private void loadManifest( final Context ctx, File dir ) {
+	File f=new File( dir, JspManifest.FILE );
+	if( ! f.exists() )
+	    return;
+	JspManifest manifest;
+	try {
+	    manifest=JspManifest.read( f );
+	} catch( IOException ex ) {
+	    log( "Can't read " + f + " " + ex );
+	    return;
+	}
+	final ClassLoader loader=ctx.getServletLoader().getClassLoader();
+	JspManifest.Resolver resolver=new JspManifest.Resolver() {
+		public byte[] getResource( String uri ) throws IOException {
+		    return JspManifest.readFile( new File( ctx.getRealPath( uri )));
+		}
+		public byte[] getClassData( String className )
+		    throws IOException
+		{
+		    return JspManifest.readStream( loader.getResourceAsStream
+			( className.replace( '.', '/' ) + ".class" ));
+		}
+	    };
+
+	int count=0;
+	Enumeration en=manifest.getPages();
+	while( en.hasMoreElements() ) {
+	    JspManifest.Page p=(JspManifest.Page)en.nextElement();
+	    String uri=p.getUri();
+	    // web.xml mappings or the other manifest win
+	    if( ctx.getServletByName( uri ) != null )
+		continue;
+	    if( ! manifest.isCurrent( p, resolver ))
+		continue;
+	    if( loader.getResource( p.getClassName().replace( '.', '/' ) +
+				    ".class" ) == null )
+		continue;
+	    try {
+		// no path - requestMap will leave it alone
+		ctx.addServlet( uri, p.getClassName() );
+		ctx.addServletMapping( uri, uri );
+		count++;
+	    } catch( TomcatException ex ) {
+		log( "Can't map " + uri + " " + ex );
+	    }
+	}
+	log( "Precompiled pages: " + count + " of " + manifest.size() +
+	     " in " + f );
     }
 
 }
@@ -316,6 +554,7 @@ class JspInfo {
     String mapPath; // In even of server reload, keep last version
 
     File jspSource; // used to avoid File allocation for lastModified
+    FreshnessChecker.Page page; // null if checked on each request
     long compileTime;// tstamp - avoid one extra access
 
     JspInfo( Request req ) {
@@ -469,6 +708,7 @@ class TomcatOptions implements Options {
     public boolean keepGenerated = true;
     public boolean largeFile = false;
     public boolean mappedFile = false;
+    public boolean templateBytes = false;
     public boolean sendErrorToClient = false;
     public boolean classDebugInfo = false;
     public String ieClassId = "clsid:8AD9C840-044E-11D1-B3E9-00805F499D93";
@@ -490,6 +730,10 @@ class TomcatOptions implements Options {
     public boolean getMappedFile() {
         return mappedFile;
     }
+
+    public boolean getTemplateBytes() {
+        return templateBytes;
+    }
     
     public boolean getSendErrorToClient() {
         return sendErrorToClient;
@@ -539,6 +783,24 @@ class TomcatOptions implements Options {
     public String getJavaEncoding() {
 	return "FIXME: NOT IMPLEMENTED";
     }
+
+    // the interceptor has its own queue
+    public int getCompileParallelism() {
+	return 0;
+    }
+
+    public long getCompileTimeout() {
+	return 0;
+    }
+
+    // and its own checker
+    public int getCheckPolicy() {
+	return FreshnessChecker.ALWAYS;
+    }
+
+    public long getCheckInterval() {
+	return 0;
+    }
 }
 
 
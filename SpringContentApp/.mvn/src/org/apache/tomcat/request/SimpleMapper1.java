@@ -81,8 +81,8 @@ import java.util.*;
  *  - Use an external mapper to find the best match.
  *  - Adjust the request paths
  * 
- *  The execution time is proportional with the number of hosts, number of
- *  context, number of mappings and with the length of the request.
+ *  The execution time is proportional with the length of the request
+ *  ( the prefix and exact maps are compiled into a trie ).
  *
  *  Security mappings are more complex ( method, transport are also part of the
  *  matching ). We can share the same mapping alghoritm or even the mapper -
@@ -103,17 +103,31 @@ public class SimpleMapper1 extends  BaseInterceptor  {
     
     public SimpleMapper1() {
 	map=new PrefixMapper();
+	map.setMapCache( mapCacheEnabled );
     }
 
     /* -------------------- Support functions -------------------- */
     /** Allow the mapper to cache mapping results - resulting in a
-     *  faster match for frequent requests. ( treat this as experimental)
+     *  faster match for frequent requests. Off by default - a lookup in
+     *  the cache costs about as much as walking the mapper's trie.
      */
     public void setMapCache( boolean v ) {
 	mapCacheEnabled = v;
 	map.setMapCache( v );
     }
 
+    /** Max number of cached mapping results for each host.
+     */
+    public void setMapCacheSize( int size ) {
+	map.setMapCacheSize( size );
+    }
+
+    /** Cache statistics for a host ( null for the default host )
+     */
+    public MappingCache getMapCache( String host ) {
+	return map.getMapCache( host );
+    }
+
     /* -------------------- Initialization -------------------- */
     
     /** Set the context manager. To keep it simple we don't support
@@ -144,7 +158,8 @@ public class SimpleMapper1 extends  BaseInterceptor  {
     public void removeContext( ContextManager cm, Context ctx )
 	throws TomcatException
     {
-	if(debug>0) log( "Removed from maps ");
+	if(debug>0) log( "Removed from maps " +
+			 map.getMapCache( ctx.getHost() ));
 	map.removeAllMappings( ctx.getHost(), ctx.getPath());
 	// extension mappings are local to ctx, no need to do something
 	// about that
@@ -226,16 +241,43 @@ public class SimpleMapper1 extends  BaseInterceptor  {
 	}
     }
 
-    // XXX not implemented - will deal with that after everything else works.
-    // Remove context will still work
+    /** Remove the mapping of a Container - the reverse of
+     *	addContainer.
+     */
     public void removeContainer( Container ct )
 	throws TomcatException
     {
 	Context ctx=ct.getContext();
-	String mapping=ct.getPath();
+	String vhost=ctx.getHost();
+	String path=ct.getPath();
 	String ctxP=ctx.getPath();
-        mapping = mapping.trim();
-	if(debug>0) log( "Remove mapping " + mapping );
+	if(debug>0) log( "Remove mapping " + path );
+
+	if(ct.getRoles() != null || ct.getTransport() != null ) 
+	    return;
+
+	switch( ct.getMapType() ) {
+	case Container.PREFIX_MAP:
+	    if( ! path.startsWith( "/" ) ) path="/" + path;
+	    map.removeMapping( vhost,
+			       ctxP + path.substring( 0, path.length()-2 ));
+	    break;
+	case Container.DEFAULT_MAP:
+	    Container defMapC=ctx.getContainer();
+	    if( defMapC.getNote( defaultMapNOTE ) == ct )
+		defMapC.setNote( defaultMapNOTE, null );
+	    break;
+	case Container.EXTENSION_MAP:
+	    SimpleHashtable eM=(SimpleHashtable)ctx.getContainer().
+		getNote( ctExtMapNote );
+	    if( eM!=null && eM.get( path.substring( 1 ) ) == ct )
+		eM.remove( path.substring( 1 ) );
+	    break;
+	case Container.PATH_MAP:
+	    if( ! path.startsWith( "/" ) ) path="/" + path;
+	    map.removeExactMapping( vhost, ctxP + path );
+	    break;
+	}
     }
 
 
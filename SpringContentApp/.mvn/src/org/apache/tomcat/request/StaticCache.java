@@ -0,0 +1,391 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.request;
+
+import org.apache.tomcat.util.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Cache for the static files of a Context.
+ *
+ * Entries are keyed by the servlet path and keep what FileHandler needs:
+ * the real path, length, modification time, content type, ETag and the
+ * formatted Last-Modified header - a 304 needs no file access. Files
+ * smaller than maxObjectSize are also kept in memory.
+ *
+ * The total size ( content and a fixed overhead per entry ) is limited
+ * to maxSize bytes, the least recently used entries are removed first.
+ *
+ * Instead of a stat per request the file is checked at most once per
+ * checkInterval ms ( 0 = always, -1 = never ). If it was changed or
+ * removed the entry is dropped. A weak ETag ( file modified in the
+ * second before it was cached ) is checked once more when that second
+ * is over, and becomes strong if the file didn't change.
+ */
+public class StaticCache {
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_OBJECT_SIZE = 64 * 1024;
+    public static final int DEFAULT_CHECK_INTERVAL = 5000;
+
+    // accounted for each entry, in addition to the content
+    static final int ENTRY_OVERHEAD = 256;
+
+    int maxSize=DEFAULT_MAX_SIZE;
+    int maxObjectSize=DEFAULT_MAX_OBJECT_SIZE;
+    int checkInterval=DEFAULT_CHECK_INTERVAL;
+
+    // access ordered - the first entry is the least recently used
+    LinkedHashMap entries=new LinkedHashMap( 64, 0.75f, true );
+    long size=0;
+
+    long hits=0;
+    long misses=0;
+    long evictions=0;
+
+    public StaticCache() {
+    }
+
+    // -------------------- Properties --------------------
+
+    /** Max bytes for all entries
+     */
+    public void setMaxSize( int size ) {
+	maxSize=size;
+    }
+
+    public int getMaxSize() {
+	return maxSize;
+    }
+
+    /** Files larger than this are not kept in memory ( the entry is
+     *	still cached )
+     */
+    public void setMaxObjectSize( int size ) {
+	maxObjectSize=size;
+    }
+
+    public int getMaxObjectSize() {
+	return maxObjectSize;
+    }
+
+    /** Time ( ms ) between checks of the file
+     */
+    public void setCheckInterval( int ms ) {
+	checkInterval=ms;
+    }
+
+    public int getCheckInterval() {
+	return checkInterval;
+    }
+
+    // -------------------- Counters --------------------
+
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    public synchronized long getEvictions() {
+	return evictions;
+    }
+
+    public synchronized int getEntryCount() {
+	return entries.size();
+    }
+
+    /** Bytes used by the entries
+     */
+    public synchronized long getSize() {
+	return size;
+    }
+
+    public String toString() {
+	return "StaticCache( entries=" + getEntryCount() + " size=" +
+	    getSize() + " hits=" + getHits() + " misses=" + getMisses() +
+	    " evictions=" + getEvictions() + ")";
+    }
+
+    // -------------------- Cache --------------------
+
+    /** Return the entry for the path, or null if there is none or
+     *	the file changed.
+     */
+    public Entry get( String path ) {
+	Entry e;
+	synchronized( this ) {
+	    e=(Entry)entries.get( path );
+	    if( e==null ) {
+		misses++;
+		return null;
+	    }
+	}
+	long now=System.currentTimeMillis();
+	boolean weak=e.exists && e.etag.startsWith( "W/" ) &&
+	    now - e.lastModified >= 1000;
+	if( weak || ( checkInterval >= 0 && now - e.checked >= checkInterval )) {
+	    // stat outside the lock
+	    File f=e.file;
+	    boolean changed=e.exists ?
+		( ! f.isFile() || f.lastModified() != e.lastModified ||
+		  f.length() != e.length ) :
+		f.exists();
+	    if( changed ) {
+		synchronized( this ) {
+		    if( entries.get( path )==e )
+			removeEntry( path, e );
+		    misses++;
+		}
+		return null;
+	    }
+	    // not modified since its second was over
+	    if( weak )
+		e.etag=getETag( e.length, e.lastModified, e.encoding );
+	    e.checked=now;
+	}
+	synchronized( this ) {
+	    hits++;
+	}
+	return e;
+    }
+
+    /** Add an entry for the file, reading it if it's small enough.
+     *	encoding is the content encoding of the file ( "gzip" for
+     *	precompressed files ) or null.
+     */
+    public Entry put( String path, String absPath, File file,
+		      String mimeType, String encoding )
+    {
+	Entry e=createEntry( path, absPath, file, mimeType, encoding );
+	if( e.length <= maxObjectSize )
+	    e.content=readFile( file, (int)e.length );
+	e.size=ENTRY_OVERHEAD + ( e.content==null ? 0 : e.content.length );
+	if( e.size > maxSize )
+	    return e; // not cached
+	add( e );
+	return e;
+    }
+
+    /** Remember that the file doesn't exist. get() will return an
+     *	entry with exists == false until the file is created.
+     */
+    public void putMissing( String path, File file ) {
+	Entry e=new Entry();
+	e.path=path;
+	e.file=file;
+	e.exists=false;
+	e.checked=System.currentTimeMillis();
+	e.size=ENTRY_OVERHEAD;
+	add( e );
+    }
+
+    /** Create an entry with the file metadata, without adding it to
+     *	a cache
+     */
+    public static Entry createEntry( String path, String absPath, File file,
+				     String mimeType, String encoding )
+    {
+	Entry e=new Entry();
+	e.path=path;
+	e.absPath=absPath;
+	e.file=file;
+	e.checked=System.currentTimeMillis();
+	e.lastModified=file.lastModified();
+	e.length=file.length();
+	e.mimeType=mimeType;
+	e.encoding=encoding;
+	e.etag=getETag( e.length, e.lastModified, encoding );
+	e.lastModifiedS=DateTool.format( DateTool.rfc1123Format,
+					 e.lastModified );
+	return e;
+    }
+
+    /** ETag for a file. If the file was modified in the last second
+     *	it may change again without a new modification time - the tag
+     *	is weak. The encoding of precompressed files is part of the tag.
+     */
+    static String getETag( long length, long lastModified,
+			   String encoding ) {
+	String tag="\"" + length + "-" + lastModified +
+	    ( encoding == null ? "" : "-" + encoding ) + "\"";
+	if( System.currentTimeMillis() - lastModified < 1000 )
+	    return "W/" + tag;
+	return tag;
+    }
+
+    private void add( Entry e ) {
+	String path=e.path;
+	synchronized( this ) {
+	    Entry old=(Entry)entries.get( path );
+	    if( old != null )
+		removeEntry( path, old );
+	    entries.put( path, e );
+	    size+=e.size;
+	    // remove the least recently used
+	    Iterator it=entries.values().iterator();
+	    while( size > maxSize && it.hasNext() ) {
+		Entry lru=(Entry)it.next();
+		it.remove();
+		size-=lru.size;
+		evictions++;
+	    }
+	}
+    }
+
+    public synchronized void remove( String path ) {
+	Entry e=(Entry)entries.get( path );
+	if( e != null )
+	    removeEntry( path, e );
+    }
+
+    public synchronized void clear() {
+	entries.clear();
+	size=0;
+    }
+
+    private void removeEntry( String path, Entry e ) {
+	entries.remove( path );
+	size-=e.size;
+    }
+
+    private static byte[] readFile( File file, int len ) {
+	byte b[]=new byte[len];
+	FileInputStream in=null;
+	try {
+	    in=new FileInputStream( file );
+	    int pos=0;
+	    while( pos < len ) {
+		int n=in.read( b, pos, len - pos );
+		if( n < 0 ) return null; // truncated
+		pos+=n;
+	    }
+	    if( in.read() >= 0 ) return null; // changed while reading
+	    return b;
+	} catch( IOException ex ) {
+	    return null;
+	} finally {
+	    if( in != null ) {
+		try { in.close(); } catch( IOException ex ) {}
+	    }
+	}
+    }
+
+    /** A cached file
+     */
+    public static class Entry {
+	String path;
+	String absPath;
+	File file;
+	long length;
+	long lastModified;
+	String lastModifiedS;
+	String mimeType;
+	String encoding; // null or "gzip"
+	String etag;
+	boolean exists=true;
+	byte content[]; // null if not in memory
+	int size;
+	long checked;
+
+	public String getRealPath() {
+	    return absPath;
+	}
+
+	public long getLength() {
+	    return length;
+	}
+
+	public long getLastModified() {
+	    return lastModified;
+	}
+
+	public String getContentType() {
+	    return mimeType;
+	}
+
+	public String getETag() {
+	    return etag;
+	}
+
+	public String getContentEncoding() {
+	    return encoding;
+	}
+
+	/** False for a "missing file" entry
+	 */
+	public boolean exists() {
+	    return exists;
+	}
+
+	/** The file content, or null if it's too large to cache
+	 */
+	public byte[] getContent() {
+	    return content;
+	}
+    }
+}
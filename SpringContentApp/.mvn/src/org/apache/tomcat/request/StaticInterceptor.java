@@ -79,11 +79,24 @@ import org.apache.tomcat.logging.*;
  * versions of the static files, the "localization" property needs to
  * be set to "file" in the StaticInterceptor entry in the server.xml file.
  *
+ * Without localization files are cached per Context, see StaticCache.
+ * The cache is configured with "cacheSize" ( bytes, 0 disables it ),
+ * "cacheMaxObjectSize" and "cacheCheckInterval" ( ms ).
+ *
+ * If "precompressed" is true ( the default ) and file.gz exists and is
+ * not older than the file it is sent to clients that accept gzip.
+ *
  * @author costin@dnt.ro
  * @author Arieh Markel [arieh.markel@sun.com]
  */
 public class StaticInterceptor extends BaseInterceptor {
     int realFileNote=-1;
+    int cacheEntryNote=-1;
+
+    int cacheSize=StaticCache.DEFAULT_MAX_SIZE;
+    int cacheMaxObjectSize=StaticCache.DEFAULT_MAX_OBJECT_SIZE;
+    int cacheCheckInterval=StaticCache.DEFAULT_CHECK_INTERVAL;
+    boolean precompressed=true;
 
     //  values for localization
     //
@@ -144,12 +157,54 @@ public class StaticInterceptor extends BaseInterceptor {
         this.suppress = suppress;
     }
 
+    /** Max bytes cached per Context, 0 to disable the cache
+     */
+    public void setCacheSize( int size ) {
+	cacheSize=size;
+    }
+
+    public int getCacheSize() {
+	return cacheSize;
+    }
+
+    /** Files larger than this are not kept in memory
+     */
+    public void setCacheMaxObjectSize( int size ) {
+	cacheMaxObjectSize=size;
+    }
+
+    public int getCacheMaxObjectSize() {
+	return cacheMaxObjectSize;
+    }
+
+    /** How often ( ms ) a cached file is checked for changes
+     */
+    public void setCacheCheckInterval( int ms ) {
+	cacheCheckInterval=ms;
+    }
+
+    public int getCacheCheckInterval() {
+	return cacheCheckInterval;
+    }
+
+    /** Send file.gz, if present, to clients accepting gzip
+     */
+    public void setPrecompressed( boolean b ) {
+	precompressed=b;
+    }
+
+    public boolean getPrecompressed() {
+	return precompressed;
+    }
+
     public void engineInit(ContextManager cm) throws TomcatException {
 	super.engineInit( cm );
 	
 	try {
 	    realFileNote = cm.getNoteId( ContextManager.REQUEST_NOTE,
 				       "static.realFile");
+	    cacheEntryNote = cm.getNoteId( ContextManager.REQUEST_NOTE,
+				       "static.cacheEntry");
 	} catch( TomcatException ex ) {
 	    ex.printStackTrace();
 	    throw new RuntimeException( "Invalid state ");
@@ -162,7 +217,16 @@ public class StaticInterceptor extends BaseInterceptor {
 	FileHandler fileHandler=new FileHandler();
 	DirHandler dirHandler=new DirHandler();
 	fileHandler.setNoteId( realFileNote );
+	fileHandler.setCacheNoteId( cacheEntryNote );
+	fileHandler.setPrecompressed( precompressed );
 	dirHandler.setNoteId( realFileNote );
+	if( cacheSize > 0 && localization == NONE_LOC ) {
+	    StaticCache cache=new StaticCache();
+	    cache.setMaxSize( cacheSize );
+	    cache.setMaxObjectSize( cacheMaxObjectSize );
+	    cache.setCheckInterval( cacheCheckInterval );
+	    fileHandler.setCache( cache );
+	}
 	debug=0;
 	ctx.addServlet( fileHandler );
 	ctx.addServlet( dirHandler);
@@ -170,6 +234,22 @@ public class StaticInterceptor extends BaseInterceptor {
 	dirHandler.setDebug( debug );
     }
 
+    public void contextShutdown( Context ctx )
+	throws TomcatException
+    {
+	StaticCache cache=getCache( ctx );
+	if( cache == null ) return;
+	if( debug > 0 ) log( ctx.toString() + " " + cache.toString() );
+	cache.clear();
+    }
+
+    private static StaticCache getCache( Context ctx ) {
+	ServletWrapper sw=ctx.getServletByName( "tomcat.fileHandler" );
+	if( sw instanceof FileHandler )
+	    return ((FileHandler)sw).getCache();
+	return null;
+    }
+
     public int requestMap(Request req) {
 	if( req.getWrapper() != null )
 	    return 0;
@@ -181,6 +261,19 @@ public class StaticInterceptor extends BaseInterceptor {
 	String pathInfo=req.getServletPath();
 	if( pathInfo==null ) pathInfo="";
 
+	StaticCache cache=null;
+	if( localization == NONE_LOC ) {
+	    cache=getCache( ctx );
+	    StaticCache.Entry entry=( cache==null ) ? null :
+		cache.get( pathInfo );
+	    if( entry != null && entry.exists && entry.encoding == null ) {
+		req.setNote( realFileNote, entry.getRealPath() );
+		req.setNote( cacheEntryNote, entry );
+		req.setWrapper(  ctx.getServletByName( "tomcat.fileHandler"));
+		return 0;
+	    }
+	}
+
 	String absPath = null;
 
 	if (localization == FILE_LOC)
@@ -206,6 +299,11 @@ public class StaticInterceptor extends BaseInterceptor {
 	if( file.isFile() ) {
 	    if( debug > 0 ) log( "Setting handler to file " + absPath);
 	    req.setNote( realFileNote, absPath );
+	    if( cache != null )
+		req.setNote( cacheEntryNote,
+			     cache.put( pathInfo, absPath, file,
+					FileHandler.getContentType( ctx, absPath ),
+					null ));
 	    req.setWrapper(  ctx.getServletByName( "tomcat.fileHandler"));
 	    return 0;
 	}
@@ -356,6 +454,9 @@ public class StaticInterceptor extends BaseInterceptor {
  */
 class FileHandler extends ServletWrapper  {
     int realFileNote;
+    int cacheEntryNote=-1;
+    StaticCache cache;
+    boolean precompressed=true;
     
     FileHandler() {
 	initialized=true;
@@ -367,6 +468,30 @@ class FileHandler extends ServletWrapper  {
 	realFileNote=n;
     }
 
+    public void setCacheNoteId( int n ) {
+	cacheEntryNote=n;
+    }
+
+    public void setCache( StaticCache cache ) {
+	this.cache=cache;
+    }
+
+    public StaticCache getCache() {
+	return cache;
+    }
+
+    public void setPrecompressed( boolean b ) {
+	precompressed=b;
+    }
+
+    static String getContentType( Context ctx, String absPath ) {
+	String mimeType=ctx.getMimeMap().getContentTypeFor(absPath);
+	if (mimeType == null) {
+	    mimeType = "text/plain";
+	}
+	return mimeType;
+    }
+
     public void doService(Request req, Response res)
 	throws Exception
     {
@@ -393,24 +518,83 @@ class FileHandler extends ServletWrapper  {
 	    return;
 	}
 
-	File file = new File( absPath );
 	if( debug>0) log( "After paranoic checks = " + absPath);
-	
-	String mimeType=ctx.getMimeMap().getContentTypeFor(absPath);
 
-	if (mimeType == null) {
-	    mimeType = "text/plain";
+	// set by StaticInterceptor.requestMap if the file is cached
+	StaticCache.Entry entry=null;
+	if( cacheEntryNote >= 0 )
+	    entry=(StaticCache.Entry)subReq.getNote( cacheEntryNote );
+	if( entry == null || ! absPath.equals( entry.absPath ) )
+	    entry=StaticCache.createEntry( pathInfo, absPath, new File( absPath ),
+					   getContentType( ctx, absPath ),
+					   null );
+
+	// Conditional and range requests - only for the "real" request,
+	// the headers of an including request are not for this file
+	Vector ranges=null;
+	if( ! res.isIncluded() ) {
+	    // precompressed file.gz - same resource, other encoding
+	    if( precompressed ) {
+		StaticCache.Entry gz=getGzipEntry( entry );
+		if( gz != null ) {
+		    res.setHeader( "Vary", "Accept-Encoding" );
+		    if( RequestUtil.acceptsEncoding( req, "gzip" )) {
+			res.setHeader( "Content-Encoding", "gzip" );
+			entry=gz;
+		    }
+		}
+	    }
+	    // the cache may make a weak tag strong meanwhile
+	    String etag=entry.etag;
+	    res.setHeader( "ETag", etag );
+	    res.setHeader( "Accept-Ranges", "bytes" );
+	    int status=checkPreconditions( req, etag, entry.lastModified );
+	    if( status == 304 ) {
+		res.setStatus( 304 );
+		res.setHeader( "Last-Modified", entry.lastModifiedS );
+		return;
+	    }
+	    if( status != 0 ) {
+		context.getContextManager().handleStatus( req, res, status );
+		return;
+	    }
+	    if( ! res.isUsingWriter() &&
+		"GET".equalsIgnoreCase( req.getMethod() ))
+		ranges=parseRanges( req, etag, entry.lastModified,
+				    entry.length );
+	    if( ranges != null && ranges.size() == 0 ) {
+		res.setHeader( "Content-Range", "bytes */" + entry.length );
+		context.getContextManager().handleStatus( req, res, 416 );
+		return;
+	    }
+	}
+
+	res.setHeader( "Last-Modified", entry.lastModifiedS );
+	if( debug>0) log( "Serving  " + entry.absPath );
+
+	if( ranges != null ) {
+	    sendRanges( res, entry, ranges );
+	    return;
 	}
-	if( debug>0) log( "Serving  " + absPath);
-	
-	res.setContentType(mimeType);
-	res.setContentLength((int)file.length());
 
-	setDateHeader(res, "Last-Modified", file.lastModified());
+	res.setContentType( entry.mimeType );
+	res.setContentLength( (int)entry.length );
 
-	FileInputStream in=null;
+	InputStream in=null;
 	try {
-	    in = new FileInputStream(file);
+	    if( entry.content != null ) {
+		if( ! res.isUsingWriter() ) {
+		    res.getOutputStream().write( entry.content );
+		    return;
+		}
+		in = new ByteArrayInputStream( entry.content );
+	    } else {
+		FileInputStream fin = new FileInputStream( entry.file );
+		in = fin;
+		// zero-copy if the response isn't included or using a writer
+		if( res.sendFile( fin.getChannel(), 0, entry.length ))
+		    return;
+	    }
 
 	    if( res.isUsingWriter() ) {
 		InputStreamReader r = new InputStreamReader(in);
@@ -440,6 +624,239 @@ class FileHandler extends ServletWrapper  {
 	}
     }
 
+    // -------------------- Precompressed files --------------------
+
+    // cache key suffix for the gzip variant
+    static final String GZIP_KEY="\tgzip";
+
+    /** Return the entry for file.gz, or null if there is none or it's
+     *	older than the file.
+     */
+    StaticCache.Entry getGzipEntry( StaticCache.Entry entry ) {
+	String key=entry.path + GZIP_KEY;
+	StaticCache.Entry gz=( cache==null ) ? null : cache.get( key );
+	if( gz == null ) {
+	    File f=new File( entry.absPath + ".gz" );
+	    if( ! f.isFile() ) {
+		if( cache != null ) cache.putMissing( key, f );
+		return null;
+	    }
+	    if( cache != null )
+		gz=cache.put( key, f.getPath(), f, entry.mimeType, "gzip" );
+	    else
+		gz=StaticCache.createEntry( key, f.getPath(), f,
+					    entry.mimeType, "gzip" );
+	}
+	if( ! gz.exists || gz.lastModified < entry.lastModified )
+	    return null; // stale
+	return gz;
+    }
+
+    // -------------------- Conditional requests --------------------
+
+    /** Check If-Match, If-Unmodified-Since, If-None-Match and
+     *	If-Modified-Since. Return 0 if the request should be served,
+     *	304 or 412 otherwise.
+     */
+    int checkPreconditions( Request req, String etag, long lastModified ) {
+	String method=req.getMethod();
+	boolean getOrHead="GET".equalsIgnoreCase( method ) ||
+	    "HEAD".equalsIgnoreCase( method );
+
+	String ifMatch=req.getHeader( "If-Match" );
+	if( ifMatch != null ) {
+	    if( ! matchETag( ifMatch, etag, true ))
+		return 412;
+	} else {
+	    long since=getDateHeader( req, "If-Unmodified-Since" );
+	    if( since != -1 && lastModified / 1000 > since / 1000 )
+		return 412;
+	}
+
+	String ifNoneMatch=req.getHeader( "If-None-Match" );
+	if( ifNoneMatch != null ) {
+	    if( matchETag( ifNoneMatch, etag, false ))
+		return getOrHead ? 304 : 412;
+	} else if( getOrHead ) {
+	    long since=getDateHeader( req, "If-Modified-Since" );
+	    if( since != -1 && lastModified / 1000 <= since / 1000 )
+		return 304;
+	}
+	return 0;
+    }
+
+    /** Match an If-Match or If-None-Match list. A strong comparison
+     *	never matches weak tags.
+     */
+    static boolean matchETag( String list, String etag, boolean strong ) {
+	if( list.trim().equals( "*" ))
+	    return true;
+	if( strong && etag.startsWith( "W/" ))
+	    return false;
+	String opaque=etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+	StringTokenizer st=new StringTokenizer( list, "," );
+	while( st.hasMoreTokens() ) {
+	    String tag=st.nextToken().trim();
+	    if( tag.startsWith( "W/" )) {
+		if( strong ) continue;
+		tag=tag.substring( 2 );
+	    }
+	    if( tag.equals( opaque ))
+		return true;
+	}
+	return false;
+    }
+
+    static long getDateHeader( Request req, String name ) {
+	try {
+	    return req.getMimeHeaders().getDateHeader( name );
+	} catch( IllegalArgumentException ex ) {
+	    return -1; // invalid dates are ignored
+	}
+    }
+
+    // -------------------- Ranges --------------------
+
+    static final int MAX_RANGES=16;
+    static final String BOUNDARY="TOMCAT_MIME_BOUNDARY";
+
+    /** Parse the Range header. Return null if the whole file should be
+     *	sent ( no range, bad syntax, If-Range not matching ), an empty
+     *	Vector if no range is satisfiable, or a Vector of long[]{ first,
+     *	last }.
+     */
+    Vector parseRanges( Request req, String etag, long lastModified,
+			long length )
+    {
+	String range=req.getHeader( "Range" );
+	if( range == null )
+	    return null;
+	range=range.trim();
+	if( ! range.startsWith( "bytes=" ))
+	    return null;
+
+	String ifRange=req.getHeader( "If-Range" );
+	if( ifRange != null ) {
+	    ifRange=ifRange.trim();
+	    if( ifRange.startsWith( "\"" ) || ifRange.startsWith( "W/" )) {
+		if( ! matchETag( ifRange, etag, true ))
+		    return null;
+	    } else {
+		long date=getDateHeader( req, "If-Range" );
+		if( date == -1 || date / 1000 != lastModified / 1000 )
+		    return null;
+	    }
+	}
+
+	Vector ranges=new Vector();
+	StringTokenizer st=new StringTokenizer( range.substring( 6 ), "," );
+	int count=0;
+	while( st.hasMoreTokens() ) {
+	    String spec=st.nextToken().trim();
+	    if( ++count > MAX_RANGES )
+		return null;
+	    int dash=spec.indexOf( '-' );
+	    if( dash < 0 )
+		return null;
+	    long first;
+	    long last;
+	    try {
+		if( dash == 0 ) {
+		    // suffix - the last n bytes
+		    long n=Long.parseLong( spec.substring( 1 ));
+		    if( n <= 0 ) continue;
+		    first=( n > length ) ? 0 : length - n;
+		    last=length - 1;
+		} else {
+		    first=Long.parseLong( spec.substring( 0, dash ));
+		    if( dash == spec.length() - 1 )
+			last=Long.MAX_VALUE;
+		    else
+			last=Long.parseLong( spec.substring( dash + 1 ));
+		    if( first < 0 || last < first )
+			return null;
+		    if( last >= length )
+			last=length - 1;
+		}
+	    } catch( NumberFormatException ex ) {
+		return null;
+	    }
+	    if( first >= length )
+		continue; // not satisfiable
+	    ranges.addElement( new long[] { first, last } );
+	}
+	return ranges;
+    }
+
+    void sendRanges( Response res, StaticCache.Entry entry, Vector ranges )
+	throws IOException
+    {
+	String mimeType=entry.mimeType;
+	long length=entry.length;
+	res.setStatus( 206 );
+	if( ranges.size() == 1 ) {
+	    long r[]=(long[])ranges.elementAt( 0 );
+	    res.setContentType( mimeType );
+	    res.setContentLength( (int)( r[1] - r[0] + 1 ));
+	    res.setHeader( "Content-Range", "bytes " + r[0] + "-" + r[1] +
+			   "/" + length );
+	    sendRange( res, entry, r[0], r[1] - r[0] + 1 );
+	    return;
+	}
+
+	// multipart/byteranges - compute the part headers first, we need
+	// the content length
+	byte heads[][]=new byte[ ranges.size() ][];
+	long total=0;
+	for( int i=0; i<ranges.size(); i++ ) {
+	    long r[]=(long[])ranges.elementAt( i );
+	    heads[i]=( "\r\n--" + BOUNDARY + "\r\n" +
+		       "Content-Type: " + mimeType + "\r\n" +
+		       "Content-Range: bytes " + r[0] + "-" + r[1] + "/" +
+		       length + "\r\n\r\n" ).getBytes( "ISO-8859-1" );
+	    total+=heads[i].length + r[1] - r[0] + 1;
+	}
+	byte end[]=( "\r\n--" + BOUNDARY + "--\r\n" ).getBytes( "ISO-8859-1" );
+	total+=end.length;
+
+	res.setContentType( "multipart/byteranges; boundary=" + BOUNDARY );
+	res.setContentLength( (int)total );
+	OutputStream out=res.getOutputStream();
+	for( int i=0; i<ranges.size(); i++ ) {
+	    long r[]=(long[])ranges.elementAt( i );
+	    out.write( heads[i] );
+	    sendRange( res, entry, r[0], r[1] - r[0] + 1 );
+	}
+	out.write( end );
+    }
+
+    void sendRange( Response res, StaticCache.Entry entry,
+		    long pos, long count )
+	throws IOException
+    {
+	if( entry.content != null ) {
+	    res.getOutputStream().write( entry.content, (int)pos, (int)count );
+	    return;
+	}
+	FileInputStream in=new FileInputStream( entry.file );
+	try {
+	    if( res.sendFile( in.getChannel(), pos, count ))
+		return;
+	    in.getChannel().position( pos );
+	    OutputStream out=res.getOutputStream();
+	    byte[] buf = new byte[4096];
+	    while( count > 0 ) {
+		int read=in.read( buf, 0, (int)Math.min( buf.length, count ));
+		if( read < 0 )
+		    throw new EOFException();
+		out.write( buf, 0, read );
+		count-=read;
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
     static void setDateHeader( Response res, String name, long value ) {
 	MimeHeaders headers=res.getMimeHeaders();
 	MimeHeaderField headerF=headers.find( name );
@@ -0,0 +1,466 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.service;
+
+import org.apache.tomcat.util.*;
+import org.apache.tomcat.net.*;
+import org.apache.tomcat.logging.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Handle incoming TCP connections using a selector.
+ *
+ * One poller thread accepts the connections and reads from them until a
+ * full request head is available. Only then the connection is passed to a
+ * pool thread and the TcpConnectionHandler, which will see a normal,
+ * blocking socket. When the handler is done with a request and the
+ * connection is idle it can give it back ( TcpConnection.release ), and
+ * the poller will watch it again.
+ *
+ * Idle keep-alive connections and slow clients don't use pool threads -
+ * a large number of connections can be served by a few workers.
+ *
+ * Only plain sockets are supported - a custom ServerSocketFactory
+ * ( SSL ) needs the blocking PoolTcpEndpoint.
+ *
+ * The poller never waits for a worker ( ThreadPool.tryRunIt ). If all
+ * the workers are busy the ready connections are kept and tried again
+ * every RETRY_INTERVAL, and no new connections are accepted until they
+ * are all dispatched. With thread_pool="queue" and reject_policy="reject"
+ * the connection is dropped instead.
+ */
+public class NioTcpEndpoint extends PoolTcpEndpoint implements Runnable {
+
+    private static StringManager sm = StringManager.getManager("org.apache.tomcat.service");
+
+    // Max size of the request head we read in the poller. If the head is
+    // bigger the handler will read the rest.
+    static final int MAX_HEAD_SIZE=8*1024;
+
+    // how often we look for expired connections
+    static final int CHECK_INTERVAL=1000;
+
+    // how often we try again to dispatch when the pool is saturated
+    static final int RETRY_INTERVAL=10;
+
+    private LogHelper loghelper = new LogHelper("tc_log", "NioTcpEndpoint");
+
+    Selector selector;
+    ServerSocketChannel serverChannel;
+    SelectionKey acceptKey;
+    Thread poller;
+
+    // connections released by the workers, to be registered again.
+    // Registration must happen in the poller thread.
+    Vector releasedQueue=new Vector();
+
+    // used by the poller thread only
+    java.nio.ByteBuffer readBuffer=java.nio.ByteBuffer.allocateDirect( MAX_HEAD_SIZE );
+    long lastCheck=0;
+    // connections with a complete head, waiting for a free worker
+    Vector pending=new Vector();
+
+    public NioTcpEndpoint() {
+	super();
+    }
+
+    private void log( String msg ) {
+	loghelper.log(msg);
+    }
+    
+    private void log(String msg, Throwable t, int level) {
+	loghelper.log(msg, t, level);
+    }
+    
+    // -------------------- Public methods --------------------
+
+    public void startEndpoint() throws IOException, InstantiationException {
+	try {
+	    if( getServerSocketFactory()==null )
+		setServerSocketFactory( ServerSocketFactory.getDefault());
+	    selector=Selector.open();
+	    serverChannel=ServerSocketChannel.open();
+	    InetSocketAddress addr= (getAddress() == null ) ?
+		new InetSocketAddress( getPort() ) :
+		new InetSocketAddress( getAddress(), getPort() );
+	    serverChannel.socket().bind( addr, getBacklog() );
+	    serverChannel.configureBlocking( false );
+	    acceptKey=serverChannel.register( selector, SelectionKey.OP_ACCEPT );
+	    tp.start();
+	} catch( IOException ex ) {
+	    running=false;
+	    throw ex;
+	}
+	running=true;
+	poller=new Thread( this );
+	poller.setName( "NioTcpEndpoint-" + getPort());
+	poller.setDaemon( true );
+	poller.start();
+    }
+
+    public void stopEndpoint() {
+	running=false;
+	tp.shutdown();
+	if( selector != null ) selector.wakeup();
+	try {
+	    if( serverChannel != null ) serverChannel.close();
+	} catch(Exception e) {
+	}
+	serverChannel=null;
+    }
+
+    // -------------------- Poller --------------------
+
+    public void run() {
+	while( running ) {
+	    try {
+		selector.select( pending.size() > 0 ? RETRY_INTERVAL
+				 : CHECK_INTERVAL );
+		if( ! running ) break;
+
+		registerReleased();
+
+		boolean ready=false;
+		Iterator keys=selector.selectedKeys().iterator();
+		while( keys.hasNext() ) {
+		    SelectionKey key=(SelectionKey)keys.next();
+		    keys.remove();
+		    if( ! key.isValid() ) continue;
+		    if( key.isAcceptable() ) {
+			accept();
+		    } else if( key.isReadable() ) {
+			NioConnection nc=(NioConnection)key.attachment();
+			if( nc.readHead( readBuffer ) ) {
+			    key.cancel();
+			    ready=true;
+			    pending.addElement( nc );
+			}
+		    }
+		}
+
+		checkExpired();
+
+		if( ready ) {
+		    // flush the cancelled keys - the channels can't go back
+		    // to blocking mode while registered
+		    selector.selectNow();
+		}
+		dispatchPending();
+	    } catch( Throwable t ) {
+		if( running ) {
+		    String msg = sm.getString("endpoint.err.nonfatal",
+					      serverChannel, t);
+		    log(msg, t, Logger.ERROR);
+		}
+	    }
+	}
+	for( int i=0; i<pending.size(); i++ )
+	    ((NioConnection)pending.elementAt(i)).close();
+	pending.removeAllElements();
+	try {
+	    Iterator keys=selector.keys().iterator();
+	    while( keys.hasNext() ) {
+		SelectionKey key=(SelectionKey)keys.next();
+		key.channel().close();
+	    }
+	    selector.close();
+	} catch( IOException ex ) {
+	}
+    }
+
+    /** Hand the ready connections to free workers, without waiting.
+     *  While some are left no new connections are accepted.
+     */
+    void dispatchPending() {
+	while( pending.size() > 0 ) {
+	    NioConnection nc=(NioConnection)pending.elementAt(0);
+	    try {
+		if( ! tp.tryRunIt( nc ) )
+		    break;
+	    } catch( ThreadPool.PoolExhaustedException ex ) {
+		nc.close();
+	    }
+	    pending.removeElementAt(0);
+	}
+	int ops=( pending.size() > 0 ) ? 0 : SelectionKey.OP_ACCEPT;
+	if( acceptKey.isValid() && acceptKey.interestOps() != ops )
+	    acceptKey.interestOps( ops );
+    }
+
+    void accept() throws IOException {
+	SocketChannel ch=serverChannel.accept();
+	if( ch==null ) return;
+	ch.configureBlocking( false );
+	getServerSocketFactory().initSocket( ch.socket() );
+	NioConnection nc=new NioConnection( this, ch );
+	nc.setDeadline( getTimeout() );
+	ch.register( selector, SelectionKey.OP_READ, nc );
+    }
+
+    /** Register the connections returned by workers.
+     */
+    void registerReleased() {
+	if( releasedQueue.size() == 0 ) return;
+	Object released[];
+	synchronized( releasedQueue ) {
+	    released=new Object[ releasedQueue.size() ];
+	    releasedQueue.copyInto( released );
+	    releasedQueue.removeAllElements();
+	}
+	for( int i=0; i<released.length; i++ ) {
+	    NioConnection nc=(NioConnection)released[i];
+	    try {
+		nc.channel.register( selector, SelectionKey.OP_READ, nc );
+	    } catch( IOException ex ) {
+		nc.close();
+	    }
+	}
+    }
+
+    /** Close connections that are idle or sending the head for too long.
+     */
+    void checkExpired() {
+	long now=System.currentTimeMillis();
+	if( now - lastCheck < CHECK_INTERVAL ) return;
+	lastCheck=now;
+	Iterator keys=selector.keys().iterator();
+	while( keys.hasNext() ) {
+	    SelectionKey key=(SelectionKey)keys.next();
+	    NioConnection nc=(NioConnection)key.attachment();
+	    if( nc != null && key.isValid() && nc.deadline < now ) {
+		key.cancel();
+		nc.close();
+	    }
+	}
+    }
+
+    /** Called by TcpConnection.release() from the worker thread
+     */
+    boolean releaseConnection( TcpConnection con, int idleTimeout ) {
+	if( ! running ) return false;
+	((NioConnection)con).setDeadline( idleTimeout );
+	return true;
+    }
+
+    /** The worker is done with the connection
+     */
+    void connectionDone( NioConnection nc ) {
+	if( ! nc.isReleased() || ! running ) {
+	    nc.close();
+	    return;
+	}
+	try {
+	    nc.channel.configureBlocking( false );
+	} catch( IOException ex ) {
+	    nc.close();
+	    return;
+	}
+	releasedQueue.addElement( nc );
+	selector.wakeup();
+    }
+}
+
+// -------------------- Connection --------------------
+
+/**
+ * A connection watched by the NioTcpEndpoint. It keeps the request
+ * head read by the poller, and is dispatched to a pool thread.
+ */
+class NioConnection extends TcpConnection implements ThreadPoolRunnable {
+    NioTcpEndpoint nioEndpoint;
+    SocketChannel channel;
+
+    // head bytes read by the poller
+    byte head[];
+    int headCount=0;
+    // the request line has been seen and is not a HTTP/0.9 request
+    boolean requestLineSeen=false;
+    long deadline;
+
+    NioConnection( NioTcpEndpoint endpoint, SocketChannel channel ) {
+	this.nioEndpoint=endpoint;
+	this.channel=channel;
+    }
+
+    void setDeadline( int timeout ) {
+	deadline=System.currentTimeMillis() + timeout;
+    }
+
+    /** Read what is available. Called in the poller thread.
+     *  @return true if the connection is ready for a worker - the head
+     *   is complete, the client closed the connection after sending part
+     *   of it or the buffer is full.
+     */
+    boolean readHead( java.nio.ByteBuffer buf ) {
+	int n;
+	if( head==null ) head=new byte[ 512 ];
+	buf.clear();
+	buf.limit( NioTcpEndpoint.MAX_HEAD_SIZE - headCount );
+	try {
+	    n=channel.read( buf );
+	} catch( IOException ex ) {
+	    n=-1;
+	}
+	if( n < 0 ) {
+	    // client closed the connection. If nothing was sent - the
+	    // normal end of a keep-alive connection - there is nothing
+	    // for a worker to do
+	    if( headCount==0 ) {
+		close();
+		return false;
+	    }
+	    return true;
+	}
+	buf.flip();
+	if( headCount + n > head.length ) {
+	    int size=head.length * 2;
+	    while( size < headCount + n ) size*=2;
+	    byte tmp[]=new byte[ size ];
+	    System.arraycopy( head, 0, tmp, 0, headCount );
+	    head=tmp;
+	}
+	int start=headCount;
+	buf.get( head, headCount, n );
+	headCount += n;
+	return isHeadComplete( start ) ||
+	    headCount >= NioTcpEndpoint.MAX_HEAD_SIZE;
+    }
+
+    /** Look for the empty line at the end of the head. A HTTP/0.9
+     *  request has no headers and no empty line, it ends with the
+     *  request line.
+     */
+    private boolean isHeadComplete( int start ) {
+	// the previous read may have ended inside "\r\n\r\n"
+	int i=( start > 3 ) ? start - 3 : 0;
+	for( ; i<headCount; i++ ) {
+	    if( head[i] != '\n' ) continue;
+	    if( ! requestLineSeen && isSimpleRequest( i ) ) return true;
+	    if( i+1 < headCount && head[i+1]=='\n' ) return true;
+	    if( i+2 < headCount && head[i+1]=='\r' && head[i+2]=='\n' )
+		return true;
+	}
+	return false;
+    }
+
+    /** Called with the end of the first non-empty line - true if it is
+     *  a "GET uri" request line, without a protocol.
+     */
+    private boolean isSimpleRequest( int eol ) {
+	int words=0;
+	boolean inWord=false;
+	for( int j=0; j<eol; j++ ) {
+	    boolean space=( head[j]==' ' || head[j]=='\t' ||
+			    head[j]=='\r' || head[j]=='\n' );
+	    if( ! space && ! inWord ) words++;
+	    inWord=! space;
+	}
+	if( words == 0 ) return false;
+	requestLineSeen=true;
+	return words < 3;
+    }
+
+    // -------------------- Worker --------------------
+
+    public Object[] getInitData() {
+	return nioEndpoint.getConnectionHandler().init();
+    }
+
+    public void runIt( Object perThrData[] ) {
+	try {
+	    channel.configureBlocking( true );
+	    Socket socket=channel.socket();
+	    setEndpoint( nioEndpoint );
+	    setSocket( socket );
+	    released=false;
+	    if( headCount > 0 ) {
+		setInputStream( new SequenceInputStream
+		    ( new ByteArrayInputStream( head, 0, headCount ),
+		      socket.getInputStream()));
+	    } else {
+		setInputStream( null );
+	    }
+	    nioEndpoint.getConnectionHandler().processConnection( this, perThrData );
+	} catch( IOException ex ) {
+	    released=false;
+	} finally {
+	    head=null;
+	    headCount=0;
+	    requestLineSeen=false;
+	    setInputStream( null );
+	    nioEndpoint.connectionDone( this );
+	}
+    }
+
+    void close() {
+	try {
+	    channel.close();
+	} catch( IOException ex ) {
+	}
+    }
+}
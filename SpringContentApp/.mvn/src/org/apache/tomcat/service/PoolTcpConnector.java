@@ -108,6 +108,19 @@ public final class PoolTcpConnector implements ServerConnector {
     public static final String MAX_SPARE_THREADS = "max_spare_threads";
     public static final String MIN_SPARE_THREADS = "min_spare_threads";
     public static final String BACKLOG = "backlog";
+    public static final String NIO = "nio";
+    public static final String MAX_QUEUE_SIZE = "max_queue_size";
+    public static final String REJECT_POLICY = "reject_policy";
+    public static final String MAX_WAIT = "max_wait";
+
+    /*
+     * Pool gauges, read only
+     */
+    public static final String THREADS_CURRENT = "threads_current";
+    public static final String THREADS_BUSY = "threads_busy";
+    public static final String QUEUE_SIZE = "queue_size";
+    public static final String REJECTED = "rejected";
+    public static final String HANDOFF_TIME = "handoff_time";
 
     // XXX define ConnectorException
     // XXX replace strings with sm.get...
@@ -127,9 +140,14 @@ public final class PoolTcpConnector implements ServerConnector {
 
     private int backlog = -1;
     private boolean usePools = true;
+    private String poolType = null;
     private int maxThreads = -1;
     private int maxSpareThreads = -1;
     private int minSpareThreads = -1;
+    private boolean useNio = false;
+    private int maxQueueSize = -1;
+    private String rejectPolicy = null;
+    private int maxWait = -1;
 
     private ServerSocketFactory socketFactory;
     private ServerSocket serverSocket;
@@ -147,6 +165,18 @@ public final class PoolTcpConnector implements ServerConnector {
     	if(con==null)
     	    throw new Exception( "Invalid ConnectionHandler");
 
+	if( useNio ) {
+	    if( socketFactory != null )
+		loghelper.log("nio needs plain sockets, using blocking endpoint",
+			      null, Logger.WARNING);
+	    else if( ! usePools )
+		// the poller hands ready connections to the pool
+		loghelper.log("nio needs a thread pool, using blocking endpoint",
+			      null, Logger.WARNING);
+	    else
+		ep = new NioTcpEndpoint();
+	}
+
 	con.setServer( cm );
 	con.setAttribute("context.manager",cm ); // old mechanism
 
@@ -161,6 +191,18 @@ public final class PoolTcpConnector implements ServerConnector {
     	ep.setPort(port);
 	ep.setAddress( address );
     	ep.setPoolOn(usePools);
+	if(poolType != null) {
+	    ep.setThreadPool( ThreadPool.createThreadPool( poolType ));
+	}
+	if( ep.getThreadPool() instanceof QueueThreadPool ) {
+	    QueueThreadPool qtp=(QueueThreadPool)ep.getThreadPool();
+	    if( maxQueueSize >= 0 )
+		qtp.setMaxQueueSize( maxQueueSize );
+	    if( rejectPolicy != null )
+		qtp.setRejectPolicy( rejectPolicy );
+	    if( maxWait >= 0 )
+		qtp.setMaxWait( maxWait );
+	}
     	if(backlog > 0) {
     	    ep.setBacklog(backlog);
     	}
@@ -242,11 +284,20 @@ public final class PoolTcpConnector implements ServerConnector {
      *  Supported attributes:
      *  "port" - port 
      *  "handler" - class implementing ConnectionHandler
-     *  "thread_pool" - whether thread pools are being used
+     *  "thread_pool" - whether thread pools are being used ( "off" ), or
+     *		"virtual" for a virtual thread per connection, "queue" for
+     *		a pool with a work queue
      *  "max_threads" - maximum number of threads in pool
      *  "max_spare_threads" - maximum number of threads in pool
      *  "min_spare_threads" - minimum number of threads in pool
+     *  "max_queue_size" - actions waiting for a thread ( "queue" pool ):
+     *		accept loops for the blocking endpoint ( no new connection
+     *		is accepted while one waits ), ready connections with nio
+     *  "reject_policy" - "wait" or "reject" when the queue is full
+     *  "max_wait" - ms to wait for space in the queue, 0 = no limit
      *  "backlog" - the backlog value for the network connections
+     *  "nio" - use a selector for idle connections ( NioTcpEndpoint ),
+     *		needs plain sockets and thread_pool other than "off"
      *  "vhost_port" - port ( will act as a virtual host )
      *  "vhost_name" - virtual host name 
      *  "vhost_address" - virtual host binding address
@@ -271,6 +322,8 @@ public final class PoolTcpConnector implements ServerConnector {
 		con=string2ConnectionHandler( valueS );
 	    } else if(THREAD_POOL.equals(prop)) {
 		usePools = ! valueS.equalsIgnoreCase("off");
+		if( usePools && ! valueS.equalsIgnoreCase("on"))
+		    poolType = valueS;
 	    } else if(INET.equals(prop)) {
 		address=string2Inet( valueS );
 	    } else if( MAX_THREADS.equals(prop)) {
@@ -283,6 +336,14 @@ public final class PoolTcpConnector implements ServerConnector {
 		vhost=valueS;
 	    } else if( BACKLOG.equals(prop)) {
 		backlog = string2Int(valueS);
+	    } else if( NIO.equals(prop)) {
+		useNio = "true".equalsIgnoreCase(valueS);
+	    } else if( MAX_QUEUE_SIZE.equals(prop)) {
+		maxQueueSize = string2Int(valueS);
+	    } else if( REJECT_POLICY.equals(prop)) {
+		rejectPolicy = valueS;
+	    } else if( MAX_WAIT.equals(prop)) {
+		maxWait = string2Int(valueS);
 	    } else if(VHOST_PORT.equals(prop) ) {
 		port= string2Int( valueS );
 	    } else if(SOCKET_FACTORY.equals(prop)) {
@@ -341,6 +402,13 @@ public final class PoolTcpConnector implements ServerConnector {
      *  "vhost_name" - returns a String with the virtual host name 
      *  "vhost_address" - returns an InetAddress (virtual host bound address)
      *  "socketFactory" - returns a ServerSocketFactory
+     *  "threads_current" - returns an Integer (threads in pool)
+     *  "threads_busy" - returns an Integer (threads running a request)
+     *  "queue_size" - returns an Integer (actions waiting for a thread -
+     *				accept loops, or ready connections with nio)
+     *  "rejected" - returns a Long (connections dropped by the pool)
+     *  "handoff_time" - returns a Long (average microseconds an action
+     *				waits for a thread)
      *
      *  @param prop the property whose value is looked for
      * 
@@ -369,6 +437,22 @@ public final class PoolTcpConnector implements ServerConnector {
 		return vhost;
 	    } else if( BACKLOG.equals(prop)) {
 		return new Integer(backlog);
+	    } else if( NIO.equals(prop)) {
+		return new Boolean(useNio);
+	    } else if( THREADS_CURRENT.equals(prop)) {
+		return new Integer(ep.getThreadPool().getCurrentThreadCount());
+	    } else if( THREADS_BUSY.equals(prop)) {
+		return new Integer(ep.getThreadPool().getCurrentThreadsBusy());
+	    } else if( QUEUE_SIZE.equals(prop) ||
+		       REJECTED.equals(prop) || HANDOFF_TIME.equals(prop)) {
+		if( ! (ep.getThreadPool() instanceof QueueThreadPool) )
+		    return null;
+		QueueThreadPool qtp=(QueueThreadPool)ep.getThreadPool();
+		if( QUEUE_SIZE.equals(prop))
+		    return new Integer(qtp.getQueueSize());
+		if( REJECTED.equals(prop))
+		    return new Long(qtp.getRejectedCount());
+		return new Long(qtp.getHandoffTime());
 	    } else if(VHOST_PORT.equals(prop) ) {
 		return new Integer(port);
 	    } else if(SOCKET_FACTORY.equals(prop)) {
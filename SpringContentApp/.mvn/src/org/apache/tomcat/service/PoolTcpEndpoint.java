@@ -143,6 +143,17 @@ public class PoolTcpEndpoint  { // implements Endpoint {
         return isPool;
     }
 
+    /** Use a different thread pool. Must be called before the
+     *  pool is configured and started.
+     */
+    public void setThreadPool(ThreadPool tp) {
+	this.tp = tp;
+    }
+
+    public ThreadPool getThreadPool() {
+	return tp;
+    }
+
     public void setMaxThreads(int maxThreads) {
         tp.setMaxThreads(maxThreads);
     }
@@ -228,6 +239,10 @@ public class PoolTcpEndpoint  { // implements Endpoint {
 	    this.timeout = timeout;
     }
 
+    public int getTimeout() {
+	return timeout;
+    }
+
     // -------------------- Public methods --------------------
 
     public void startEndpoint() throws IOException, InstantiationException {
@@ -278,6 +293,14 @@ public class PoolTcpEndpoint  { // implements Endpoint {
 
     // -------------------- Private methods
 
+    /** Take back an idle persistent connection, see TcpConnection.release.
+     *  This endpoint keeps one thread per connection, the handler will
+     *  wait for the next request.
+     */
+    boolean releaseConnection( TcpConnection con, int idleTimeout ) {
+	return false;
+    }
+
     Socket acceptSocket() {
         Socket accepted = null;
     	try {
@@ -402,7 +425,17 @@ class TcpWorkerThread implements ThreadPoolRunnable {
 	    Socket s = endpoint.acceptSocket();
 	    if(null != s) {
 		// Continue accepting on another thread...
-		endpoint.tp.runIt(this);
+		try {
+		    endpoint.tp.runIt(this);
+		} catch( ThreadPool.PoolExhaustedException ex ) {
+		    // overloaded - drop the connection and keep accepting
+		    // in this thread
+		    try {
+			s.close();
+		    } catch( IOException e ) {
+		    }
+		    continue;
+		}
 		
 		try {
 		    if( usePool ) {
@@ -82,6 +82,12 @@ public class TcpConnection  { // implements Endpoint {
 
     PoolTcpEndpoint endpoint;
     Socket socket;
+    InputStream input;
+
+    // persistent connections - the endpoint may keep an idle
+    // connection and dispatch it again
+    int requestCount=0;
+    boolean released=false;
 
     public void setEndpoint(PoolTcpEndpoint endpoint) {
 	this.endpoint = endpoint;
@@ -99,9 +105,56 @@ public class TcpConnection  { // implements Endpoint {
 	return socket;
     }
 
+    /** Set the stream to read from, if the endpoint already read
+     *  some of the data.
+     */
+    public void setInputStream(InputStream input) {
+	this.input=input;
+    }
+
+    /** The stream handlers should read from - the socket stream,
+     *  unless the endpoint already read part of the request.
+     */
+    public InputStream getInputStream() throws IOException {
+	if( input!=null ) return input;
+	return socket.getInputStream();
+    }
+
+    /** Number of requests already served on this connection ( in
+     *  previous dispatches )
+     */
+    public int getRequestCount() {
+	return requestCount;
+    }
+
+    public void setRequestCount(int count) {
+	requestCount=count;
+    }
+
+    /** Called by the handler when the connection is idle between
+     *  requests. If the endpoint can watch idle connections it takes
+     *  the connection back and the handler must return without closing
+     *  the socket.
+     *
+     *  @return false if the handler should keep the connection and wait
+     *  for the next request itself.
+     */
+    public boolean release(int idleTimeout) {
+	if( endpoint==null ) return false;
+	released=endpoint.releaseConnection( this, idleTimeout );
+	return released;
+    }
+
+    public boolean isReleased() {
+	return released;
+    }
+
     public void recycle() {
         endpoint = null;
         socket = null;
+	input = null;
+	requestCount=0;
+	released=false;
     }
 }
 
@@ -79,6 +79,19 @@ public class HttpConnectionHandler  implements  TcpConnectionHandler {
 
     private int timeout = 300000;  // 5 minutes
 
+    // persistent connections
+    boolean keepAlive=true;
+    int keepAliveTimeout=15000; // idle time between requests
+    int maxKeepAliveRequests=100;
+
+    // request head limits
+    int maxHeaderSize=HttpRequestAdapter.DEFAULT_MAX_HEADER_SIZE;
+    int maxHeaderCount=HttpRequestAdapter.DEFAULT_MAX_HEADER_COUNT;
+
+    // statistics - requests/connections is the reuse ratio
+    long connectionCount=0;
+    long requestCount=0;
+
     boolean secure=false;
     ContextManager contextM;
     
@@ -92,12 +105,66 @@ public class HttpConnectionHandler  implements  TcpConnectionHandler {
 	}
 	if("secure".equals(name) )
 	    setSecure(true);
+	if("keepAlive".equals(name) )
+	    setKeepAlive( ! "false".equals( value.toString() ));
+	if("keepAliveTimeout".equals(name) )
+	    setKeepAliveTimeout( Integer.parseInt( value.toString() ));
+	if("maxKeepAliveRequests".equals(name) )
+	    setMaxKeepAliveRequests( Integer.parseInt( value.toString() ));
+	if("maxHeaderSize".equals(name) )
+	    setMaxHeaderSize( Integer.parseInt( value.toString() ));
+	if("maxHeaderCount".equals(name) )
+	    setMaxHeaderCount( Integer.parseInt( value.toString() ));
     }
 
     public void setSecure( boolean b ) {
 	secure=b;
     }
 
+    /** Allow more than one request on a connection.
+     */
+    public void setKeepAlive( boolean b ) {
+	keepAlive=b;
+    }
+
+    /** How long ( ms ) to wait for the next request on an idle
+     *  persistent connection.
+     */
+    public void setKeepAliveTimeout( int t ) {
+	keepAliveTimeout=t;
+    }
+
+    /** Close the connection after this number of requests.
+     */
+    public void setMaxKeepAliveRequests( int n ) {
+	maxKeepAliveRequests=n;
+    }
+
+    /** Max size of the request line and headers, in bytes.
+     */
+    public void setMaxHeaderSize( int n ) {
+	maxHeaderSize=n;
+    }
+
+    /** Max number of request headers.
+     */
+    public void setMaxHeaderCount( int n ) {
+	maxHeaderCount=n;
+    }
+
+    /** Number of connections processed.
+     */
+    public synchronized long getConnectionCount() {
+	return connectionCount;
+    }
+
+    /** Number of requests processed - each request after the
+     *  first on a connection saved a new TCP connection.
+     */
+    public synchronized long getRequestCount() {
+	return requestCount;
+    }
+
     public void setServer( Object  contextM ) {
 	this.contextM=(ContextManager)contextM;
     }
@@ -131,6 +198,8 @@ public class HttpConnectionHandler  implements  TcpConnectionHandler {
 	Socket socket=null;
 	HttpRequestAdapter reqA=null;
 	HttpResponseAdapter resA=null;
+	int requests=0; // on this connection
+	int served=0;   // in this call
 
 	//	System.out.println("New Connection");
 	try {
@@ -145,7 +214,8 @@ public class HttpConnectionHandler  implements  TcpConnectionHandler {
 		return;
         socket.setSoTimeout(timeout);
 	    //	    System.out.print("2");
-	    InputStream in=socket.getInputStream();
+	    requests=connection.getRequestCount();
+	    InputStream in=connection.getInputStream();
 	    OutputStream out=socket.getOutputStream();
 	    if( thData != null ) {
 		reqA=(HttpRequestAdapter)thData[0];
@@ -189,44 +259,86 @@ public class HttpConnectionHandler  implements  TcpConnectionHandler {
 	    resA.setRequest(reqA);
 	    reqA.setResponse( resA );
 	    
-	    reqA.setSocket( socket );
+	    reqA.setSocket( socket, in );
+	    reqA.setMaxHeaderSize( maxHeaderSize );
+	    reqA.setMaxHeaderCount( maxHeaderCount );
+	    resA.setOutputStream( out );
+	    resA.setChannel( socket.getChannel() );
+	    BufferedServletInputStream sis =
+		(BufferedServletInputStream)reqA.getInputStream();
 
-	    connection.getEndpoint().getServerSocketFactory().preProcessRequest( socket, reqA );
+	    while( true ) {
+		if( served > 0 ) {
+		    // idle persistent connection. Give it back to the endpoint
+		    // if it can watch it, or wait for the next request
+		    if( reqA.available() == 0 &&
+			connection.release( keepAliveTimeout )) {
+			connection.setRequestCount( requests );
+			break;
+		    }
+		    socket.setSoTimeout(keepAliveTimeout);
+		    try {
+			if( ! reqA.waitNextRequest() )
+			    break;
+		    } catch( InterruptedIOException ex ) {
+			break; // keep-alive timeout, normal
+		    }
+		    socket.setSoTimeout(timeout);
+		    sis.setLimit(-1);
+		}
 
-	    resA.setOutputStream( out );
+		connection.getEndpoint().getServerSocketFactory().preProcessRequest( socket, reqA );
 
-	    reqA.readNextRequest(resA);
+		reqA.readNextRequest(resA);
+		requests++;
+		served++;
 
-	    int contentLength = reqA.getContentLength();
-	    if (contentLength != -1) {
-		BufferedServletInputStream sis =
-		    (BufferedServletInputStream)reqA.getInputStream();
-		sis.setLimit(contentLength);
-	    }
+		int contentLength = reqA.getContentLength();
+		boolean more= keepAlive && requests < maxKeepAliveRequests &&
+		    resA.getStatus() < 400 && reqA.isKeepAliveRequested();
+		if (contentLength != -1) {
+		    sis.setLimit(contentLength);
+		} else if( reqA.getHeader("transfer-encoding") != null ) {
+		    // we can't find the end of the body
+		    more=false;
+		    sis.setLimit(-1);
+		} else {
+		    sis.setLimit( more ? 0 : -1 );
+		}
+		reqA.setMoreRequests( more );
 
-	    // If this connection handler was declared as "secure",
-	    // mark this in the request
-	    if( secure ) {
-		reqA.setScheme( "https" );
-	    }
+		// If this connection handler was declared as "secure",
+		// mark this in the request
+		if( secure ) {
+		    reqA.setScheme( "https" );
+		}
 	    
-	    contextM.service( reqA, resA );
+		contextM.service( reqA, resA );
 
-	    try {
-               InputStream is = socket.getInputStream();
-               int available = is.available ();
+		// the response may have turned keep-alive off
+		if( ! reqA.hasMoreRequests() )
+		    break;
+		// the next request starts after this body
+		sis.skipRemaining();
+	    }
+
+	    if( ! connection.isReleased() ) {
+		try {
+		    InputStream is = socket.getInputStream();
+		    int available = is.available ();
 	       
-               // XXX on JDK 1.3 just socket.shutdownInput () which
-               // was added just to deal with such issues.
-
-               // skip any unread (bogus) bytes
-               if (available > 1) {
-                   is.skip (available);
-               }
-	    }catch(NullPointerException npe) {
-		// do nothing - we are just cleaning up, this is
-		// a workaround for Netscape \n\r in POST - it is supposed
-		// to be ignored
+		    // XXX on JDK 1.3 just socket.shutdownInput () which
+		    // was added just to deal with such issues.
+
+		    // skip any unread (bogus) bytes
+		    if (available > 1) {
+			is.skip (available);
+		    }
+		}catch(NullPointerException npe) {
+		    // do nothing - we are just cleaning up, this is
+		    // a workaround for Netscape \n\r in POST - it is supposed
+		    // to be ignored
+		}
 	    }
 	}
 	catch(java.net.SocketException e) {
@@ -260,9 +372,18 @@ public class HttpConnectionHandler  implements  TcpConnectionHandler {
 	} 
 	finally {
 	    // recycle kernel sockets ASAP
-	    try { if (socket != null) socket.close (); }
+	    try {
+		if (socket != null && ! connection.isReleased())
+		    socket.close ();
+	    }
 	    catch (IOException e) { /* ignore */ }
+	    if( reqA != null ) reqA.recycleConnection();
         }
+	synchronized( this ) {
+	    if( requests == served ) // first call for this connection
+		connectionCount++;
+	    requestCount+=served;
+	}
 	if( reuse ) {
 	    synchronized( this ) {
 		if( pos<pool.length && reqA!= null ) {
@@ -73,11 +73,25 @@ public class HttpRequestAdapter extends RequestImpl {
 	StringManager.getManager("org.apache.tomcat.util");
     private Socket socket;
     private boolean moreRequests = false;
+    // "Expect: 100-continue", the client waits before sending the body
+    private boolean continueExpected = false;
     RecycleBufferedInputStream sin;
+    // the request head - request line and headers. Grows up to
+    // maxHeaderSize.
     byte[] buf;
     int bufSize=2048; // default
-    int off=0;
     int count=0;
+    int maxHeaderSize=DEFAULT_MAX_HEADER_SIZE;
+    int maxHeaderCount=DEFAULT_MAX_HEADER_COUNT;
+
+    // views into buf
+    MessageBytes methodMB=new MessageBytes();
+    MessageBytes uriMB=new MessageBytes();
+    MessageBytes queryMB=new MessageBytes();
+    MessageBytes protocolMB=new MessageBytes();
+
+    public static final int DEFAULT_MAX_HEADER_SIZE=8192;
+    public static final int DEFAULT_MAX_HEADER_COUNT=100;
     public static final String DEFAULT_CHARACTER_ENCODING = "8859_1";
     
     
@@ -86,21 +100,52 @@ public class HttpRequestAdapter extends RequestImpl {
 	buf=new byte[bufSize];
     }
 
+    /** Max size of the request line and headers. Larger requests get
+     *  a 414 ( request line ) or 400.
+     */
+    public void setMaxHeaderSize( int size ) {
+	maxHeaderSize=size;
+    }
+
+    /** Max number of header lines
+     */
+    public void setMaxHeaderCount( int n ) {
+	maxHeaderCount=n;
+    }
+
     public void setSocket(Socket socket) throws IOException {
+	setSocket( socket, socket.getInputStream());
+    }
+
+    /** Use a different stream than the socket's - the endpoint may have
+     *  read the beginning of the request.
+     */
+    public void setSocket(Socket socket, InputStream is) throws IOException {
 	if( sin==null)
-	    sin = new RecycleBufferedInputStream ( socket.getInputStream());
+	    sin = new RecycleBufferedInputStream ( is );
 	else
-	    sin.setInputStream( socket.getInputStream());
+	    sin.setInputStream( is );
 	in = new BufferedServletInputStream(this);
         this.socket = socket;
     	moreRequests = true;
     }
 
+    /** Recycle the request state. The input stream is not touched - on a
+     *  persistent connection it may already hold the next ( pipelined )
+     *  request.
+     */
     public void recycle() {
 	super.recycle();
-	off=0;
 	count=0;
+	continueExpected=false;
+    }
+
+    /** Release the connection's input stream.
+     */
+    public void recycleConnection() {
 	if( sin!=null )  sin.recycle();
+	socket=null;
+	moreRequests=false;
     }
     
     public Socket getSocket() {
@@ -110,140 +155,324 @@ public class HttpRequestAdapter extends RequestImpl {
     public boolean hasMoreRequests() {
         return moreRequests;
     }
+
+    /** Set by the connection handler: the connection may be reused
+     *  after this request. The response will check it again.
+     */
+    public void setMoreRequests( boolean b ) {
+	moreRequests=b;
+    }
+
+    /** Check if the client asked for a persistent connection.
+     *  HTTP/1.1 is persistent unless "Connection: close" is sent,
+     *  HTTP/1.0 only with "Connection: keep-alive".
+     */
+    public boolean isKeepAliveRequested() {
+	String protocol=getProtocol();
+	if( protocol==null ) return false; // 0.9
+	String connection=getHeader( "connection" );
+	if( "HTTP/1.1".equals( protocol ) ) 
+	    return ! "close".equalsIgnoreCase( connection );
+	return "keep-alive".equalsIgnoreCase( connection );
+    }
+
+    /** Bytes that can be read without blocking - buffered pipelined
+     *  requests included.
+     */
+    public int available() throws IOException {
+	return sin.available();
+    }
+
+    /** Wait for the first byte of the next request on a persistent
+     *  connection, without consuming it. Pipelined requests are
+     *  already in the buffer and return immediately.
+     *
+     *  @return false if the client closed the connection
+     */
+    public boolean waitNextRequest() throws IOException {
+	return sin.peek() >= 0;
+    }
+    
+    /** The client sent "Expect: 100-continue" and we haven't asked
+     *  for the body yet.
+     */
+    public boolean isContinueExpected() {
+	return continueExpected;
+    }
+
+    // The body is read - tell the client to send it
+    private void sendContinue() throws IOException {
+	continueExpected=false;
+	if( response instanceof HttpResponseAdapter )
+	    ((HttpResponseAdapter)response).sendContinue();
+    }
     
     public int doRead() throws IOException {
+	if( continueExpected ) sendContinue();
 	return sin.read();
     }
 
     public int doRead(byte[] b, int off, int len) throws IOException {
+	if( continueExpected ) sendContinue();
 	return sin.read(b, off, len);
     }
 
     public void readNextRequest(Response response) throws IOException {
+	// the request line and headers are parsed in place, the fields
+	// are views into buf. Strings are created when asked for.
+	method=null;
+	requestURI=null;
+	queryString=null;
+	protocol=null;
+	methodMB.reset();
+	uriMB.reset();
+	queryMB.reset();
+	protocolMB.reset();
+
+	// Skip the empty lines some clients send after a POST body - they
+	// would be in front of the next request on a persistent connection
+	int end;
+	do {
+	    end=readHeadLine( 0 );
+	} while( end > 0 && lineLength( 0, end ) == 0 );
+
+	if( end == EOF ) {
+	    badRequest( response, HttpServletResponse.SC_BAD_REQUEST );
+	    return;
+	}
+	if( end == TOO_LARGE ) {
+	    badRequest( response, HttpServletResponse.SC_REQUEST_URI_TOO_LONG );
+	    return;
+	}
+	count=end;
 
-	// Odd, but works: we use the ServletInputStream, which uses doRead.
-	// We do implement doRead in Http protocol to return from the input
-	// stream - it works for the normal body but also for the HTTP
-	// head. The limit is set after ( and if ) we have a content-length.
-	
-	count = in.readLine(buf, 0, buf.length);
-
-	if (count < 0 ) {
-	    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+	if( ! parseRequestLine( 0, end ) ) {
+	    badRequest( response, HttpServletResponse.SC_BAD_REQUEST );
 	    return;
 	}
-	
-	processRequestLine(response  );
 
 	// for 0.9, we don't have headers!
-	if (protocol!=null) { // all HTTP versions with protocol also have headers ( 0.9 has no HTTP/0.9 !)
-	    readHeaders( headers, in  );
+	if ( protocolMB.isSet() ) { // all HTTP versions with protocol also have headers ( 0.9 has no HTTP/0.9 !)
+	    if( ! parseHeaders( headers, end ) ) {
+		response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+		return;
+	    }
 	}
 
-	// XXX
-	// detect for real whether or not we have more requests
-	// coming
-	moreRequests = false;	
-    }
+	// HTTP/1.0 clients don't know about Expect
+	String expect=getHeader( "expect" );
+	if( expect != null && "HTTP/1.1".equals( getProtocol() ) ) {
+	    if( "100-continue".equalsIgnoreCase( expect.trim() ))
+		continueExpected=true;
+	    else
+		response.setStatus( HttpServletResponse.SC_EXPECTATION_FAILED );
+	}
 
+	// the connection handler decides if the connection is reused
+	moreRequests = false;
+    }
 
-    /**
-     * Reads header fields from the specified servlet input stream until
-     * a blank line is encountered.
-     * @param in the servlet input stream
-     * @exception IllegalArgumentException if the header format was invalid 
-     * @exception IOException if an I/O error has occurred
+    /** The request line is unusable - go back to the recycle() defaults
+     *  so the error can still be mapped and reported.
      */
-    public void readHeaders( MimeHeaders headers, ServletInputStream in )  throws IOException {
-	// use pre-allocated buffer if possible
-	off = count; // where the request line ended
-	
-	while (true) {
-	    int start = off;
-
-	    while (true) {
-		int len = buf.length - off;
+    private void badRequest( Response response, int status ) {
+	methodMB.reset();
+	uriMB.reset();
+	queryMB.reset();
+	protocolMB.reset();
+	method="GET";
+	requestURI="/";
+	protocol="HTTP/1.0";
+	response.setStatus( status );
+    }
 
-		if (len > 0) {
-		    len = in.readLine(buf, off, len);
+    // -------------------- Lazy request line fields --------------------
 
-		    if (len == -1) {
-                        String msg =
-                            sm1.getString("mimeHeader.connection.ioe");
+    public String getMethod() {
+	if( method==null && methodMB.isSet() )
+	    method=toString( methodMB, METHODS );
+	return method;
+    }
 
-			throw new IOException (msg);
-		    }
-		}
+    public String getRequestURI() {
+	if( requestURI==null && uriMB.isSet() )
+	    requestURI=uriMB.toString();
+	return requestURI;
+    }
 
-		off += len;
+    public String getQueryString() {
+	if( queryString==null && queryMB.isSet() )
+	    queryString=queryMB.toString();
+	return queryString;
+    }
 
-		if (len == 0 || buf[off-1] == '\n') {
-		    break;
-		}
+    public String getProtocol() {
+	if( protocol==null && protocolMB.isSet() )
+	    protocol=toString( protocolMB, PROTOCOLS );
+	return protocol;
+    }
 
-		// overflowed buffer, so temporarily expand and continue
+    // known values are returned without a new String
+    static final String METHODS[]= { "GET", "POST", "HEAD", "PUT",
+				     "DELETE", "OPTIONS", "TRACE" };
+    static final String PROTOCOLS[]= { "HTTP/1.1", "HTTP/1.0" };
 
-		// XXX DOS - if the length is too big - stop and throw exception
-		byte[] tmp = new byte[buf.length * 2];
+    static String toString( MessageBytes mb, String known[] ) {
+	for( int i=0; i<known.length; i++ ) {
+	    if( mb.equals( known[i] ))
+		return known[i];
+	}
+	return mb.toString();
+    }
 
-		System.arraycopy(buf, 0, tmp, 0, buf.length);
-		buf = tmp;
-	    }
+    // -------------------- Parsing --------------------
 
-	    // strip off trailing "\r\n"
-	    if (--off > start && buf[off-1] == '\r') {
-		--off;
-	    }
+    static final int EOF=-1;
+    static final int TOO_LARGE=-2;
 
-	    if (off == start) {
-		break;
-	    }
-	    
-	    // XXX this does not currently handle headers which
-	    // are folded to take more than one line.
-	    MimeHeaderField mhf=headers.putHeader();
-	    if( ! parseHeaderFiled(mhf, buf, start, off - start) ) {
-		// error parsing header
-		return;
+    /** Read one line of the head at buf[start], growing buf up to
+     *  maxHeaderSize. Return the end of the line ( after the LF ),
+     *  EOF or TOO_LARGE.
+     */
+    int readHeadLine( int start ) throws IOException {
+	int end=start;
+	while( true ) {
+	    int limit=( buf.length < maxHeaderSize ) ? buf.length : maxHeaderSize;
+	    if( end >= limit ) {
+		if( limit >= maxHeaderSize )
+		    return TOO_LARGE;
+		// the old array stays valid for the fields parsed so far
+		int size=buf.length * 2;
+		if( size > maxHeaderSize ) size=maxHeaderSize;
+		byte tmp[]=new byte[ size ];
+		System.arraycopy( buf, 0, tmp, 0, end );
+		buf=tmp;
+		continue;
 	    }
+	    int n=sin.readLine( buf, end, limit - end );
+	    if( n < 0 )
+		return EOF;
+	    end+=n;
+	    if( buf[end-1] == '\n' )
+		return end;
 	}
     }
 
-    /**
-     * Parses a header field from a subarray of bytes.
-     * @param b the bytes to parse
-     * @param off the start offset of the bytes
-     * @param len the length of the bytes
-     * @exception IllegalArgumentException if the header format was invalid
+    /** Length of the line without the CRLF ( or LF )
      */
-    public boolean parseHeaderFiled(MimeHeaderField mhf, byte[] b, int off, int len)
-    {
-	int start = off;
-	byte c;
-
-	while ((c = b[off++]) != ':' && c != ' ') {
-	    if (c == '\n') {
-		System.out.println("Parse error, empty line: " + new String( b, off, len ));
-		return false;
-	    }
-	}
+    int lineLength( int start, int end ) {
+	if( end > start && buf[end-1] == '\n' ) end--;
+	if( end > start && buf[end-1] == '\r' ) end--;
+	return end - start;
+    }
 
-	mhf.setName(b, start, off - start - 1);
+    static boolean isSpace( byte c ) {
+	return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
 
-	while (c == ' ') {
-	    c = b[off++];
+    /** METHOD SP URI [ "?" QUERY ] [ SP PROTOCOL ]. Without protocol
+     *  it is a HTTP/0.9 request.
+     */
+    boolean parseRequestLine( int start, int end ) {
+	byte b[]=buf;
+	int pos=start;
+	while( pos < end && isSpace( b[pos] )) pos++;
+	int mStart=pos;
+	while( pos < end && ! isSpace( b[pos] )) pos++;
+	int mEnd=pos;
+	while( pos < end && isSpace( b[pos] )) pos++;
+	int uStart=pos;
+	int qry=-1;
+	while( pos < end && ! isSpace( b[pos] )) {
+	    if( b[pos] == '?' && qry < 0 ) qry=pos;
+	    pos++;
 	}
+	int uEnd=pos;
+	while( pos < end && isSpace( b[pos] )) pos++;
+	int pStart=pos;
+	while( pos < end && ! isSpace( b[pos] )) pos++;
+	int pEnd=pos;
 
-	if (c != ':') {
-	    System.out.println("Parse error, missing : in  " + new String( b, off, len ));
-	    System.out.println("Full  " + new String( b, 0, b.length ));
+	if( mEnd == mStart || uEnd == uStart ) {
+	    // we don't have 2 "words", probably only method
 	    return false;
 	}
+	methodMB.setBytes( b, mStart, mEnd - mStart );
+	if( qry < 0 ) {
+	    uriMB.setBytes( b, uStart, uEnd - uStart );
+	} else {
+	    uriMB.setBytes( b, uStart, qry - uStart );
+	    queryMB.setBytes( b, qry + 1, uEnd - qry - 1 );
+	}
+	if( pEnd > pStart )
+	    protocolMB.setBytes( b, pStart, pEnd - pStart );
+	return true;
+    }
 
-	while ((c = b[off++]) == ' ');
+    /** Read and parse the header lines, starting at buf[off]. Lines
+     *  starting with a space or tab continue the previous value.
+     *  Return false if the head is invalid or over the limits.
+     */
+    boolean parseHeaders( MimeHeaders headers, int off ) throws IOException {
+	MimeHeaderField last=null;
+	while( true ) {
+	    int end=readHeadLine( off );
+	    if( end == EOF ) {
+		String msg = sm1.getString("mimeHeader.connection.ioe");
+		throw new IOException (msg);
+	    }
+	    if( end == TOO_LARGE )
+		return false;
+	    byte b[]=buf;
+	    int lineEnd=off + lineLength( off, end );
+	    if( lineEnd == off ) {
+		count=end;
+		return true; // end of headers
+	    }
 
-	mhf.setValue(b, off - 1, len - (off - start - 1));
-	return true;
+	    if( b[off] == ' ' || b[off] == '\t' ) {
+		// folded value: join with one space, in place
+		if( last == null )
+		    return false;
+		int pos=off;
+		while( pos < lineEnd && ( b[pos]==' ' || b[pos]=='\t' )) pos++;
+		MessageBytes v=last.getValueBytes();
+		int vEnd=v.getOffset() + v.getLength();
+		// no space before the first part of an empty value
+		if( v.getLength() > 0 )
+		    b[vEnd++]=' ';
+		System.arraycopy( b, pos, b, vEnd, lineEnd - pos );
+		vEnd=trimEnd( b, v.getOffset(), vEnd + lineEnd - pos );
+		last.setValue( b, v.getOffset(), vEnd - v.getOffset() );
+		// the next line is read after the joined value
+		off=vEnd;
+		continue;
+	    }
+
+	    if( headers.size() >= maxHeaderCount )
+		return false;
+
+	    int colon=off;
+	    while( colon < lineEnd && b[colon] != ':' ) colon++;
+	    int nameEnd=trimEnd( b, off, colon );
+	    if( colon == lineEnd || nameEnd == off )
+		return false; // no ":" or no name
+
+	    int vStart=colon + 1;
+	    while( vStart < lineEnd && ( b[vStart]==' ' || b[vStart]=='\t' ))
+		vStart++;
+	    int vEnd=trimEnd( b, vStart, lineEnd );
+
+	    last=headers.putHeader();
+	    last.setName( b, off, nameEnd - off );
+	    last.setValue( b, vStart, vEnd - vStart );
+	    off=end;
+	}
+    }
+
+    static int trimEnd( byte b[], int start, int end ) {
+	while( end > start && ( b[end-1]==' ' || b[end-1]=='\t' )) end--;
+	return end;
     }
 
     public int getServerPort() {
@@ -300,100 +529,4 @@ public class HttpRequestAdapter extends RequestImpl {
 	return socket.getInetAddress().getHostName();
     }    
 
-    /** Advance to first non-space
-     */
-    private  final int skipSpaces() {
-	while (off < count) {
-	    if ((buf[off] != (byte) ' ') 
-		&& (buf[off] != (byte) '\t')
-		&& (buf[off] != (byte) '\r')
-		&& (buf[off] != (byte) '\n')) {
-		return off;
-	    }
-	    off++;
-	}
-	return -1;
-    }
-
-    /** Advance to the first space
-     */
-    private  int findSpace() {
-	while (off < count) {
-	    if ((buf[off] == (byte) ' ') 
-		|| (buf[off] == (byte) '\t')
-		|| (buf[off] == (byte) '\r')
-		|| (buf[off] == (byte) '\n')) {
-		return off;
-	    }
-	    off++;
-	}
-	return -1;
-    }
-
-    /** Find a character, no side effects
-     */
-    private  int findChar( char c, int start, int end ) {
-	byte b=(byte)c;
-	int offset = start;
-	while (offset < end) {
-	    if (buf[offset] == b) {
-		return offset;
-	    }
-	    offset++;
-	}
-	return -1;
-    }
-
-    private void processRequestLine(Response response)
-	throws IOException
-    {
-	off=0;
-
-	// if end of line is reached before we scan all 3 components -
-	// we're fine, off=count and remain unchanged
-	
-	if( buf[count-1]!= '\r' && buf[count-1]!= '\n' ) {
-	    response.setStatus(HttpServletResponse.SC_REQUEST_URI_TOO_LONG);
-	    return;
-	}	    
-	
-	int startMethod=skipSpaces();
-	int endMethod=findSpace();
-
-	int startReq=skipSpaces();
-	int endReq=findSpace();
-
-	int startProto=skipSpaces();
-	int endProto=findSpace();
-
-	if( startReq < 0   ) {
-	    // we don't have 2 "words", probably only method
-	    // startReq>0 => method is fine, request has at least one char
-	    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-	    protocol=null;
-	    return;
-	}
-	
-	method= new String( buf, startMethod, endMethod - startMethod );
-
-	if( startProto < 0 ) {
-	    protocol=null;
-	} else {
-	    if( endProto < 0 ) endProto = count;
-	    protocol=new String( buf, startProto, endProto-startProto );
-	}
-
-	int qryIdx= findChar( '?', startReq, endReq );
-	if( qryIdx <0 ) {
-	    requestURI = new String( buf, startReq, endReq - startReq );
-	} else {
-	    requestURI = new String( buf, startReq, qryIdx - startReq );
-	    queryString = new String( buf, qryIdx+1, endReq - qryIdx -1 );
-	}
-
-	//	System.out.println("XXX " + method + " " + requestURI + " " + queryString + " " + protocol );
-
-    }
-
-    
 }
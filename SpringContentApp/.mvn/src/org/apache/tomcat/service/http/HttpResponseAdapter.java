@@ -68,6 +68,7 @@ import org.apache.tomcat.core.*;
 import org.apache.tomcat.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -81,10 +82,22 @@ import javax.servlet.http.*;
  */
 public class HttpResponseAdapter extends  ResponseImpl {
     protected OutputStream sout;
+    protected WritableByteChannel channel;
 
     protected static final int DEFAULT_HEAD_BUFFER_SIZE = 1024;
     protected byte[] buffer = new byte[DEFAULT_HEAD_BUFFER_SIZE];
     protected int bufferCount = 0;
+
+    // HTTP/1.1 client
+    protected boolean http11=false;
+    // Transfer-Encoding: chunked, decided in setConnectionHeader
+    protected boolean chunked=false;
+    // sent after the last chunk
+    protected MimeHeaders trailers=new MimeHeaders();
+    // CRLF that ends the previous chunk, sent with the next chunk size
+    boolean crlfPending=false;
+    byte chunkHead[]=new byte[12]; // CRLF, 8 hex digits, CRLF
+    java.nio.ByteBuffer gather[]=new java.nio.ByteBuffer[2];
     
     public HttpResponseAdapter() {
         super();
@@ -93,33 +106,116 @@ public class HttpResponseAdapter extends  ResponseImpl {
     public void recycle() {
 	super.recycle();
 	bufferCount=0;
+	http11=false;
+	chunked=false;
+	crlfPending=false;
+	trailers.clear();
     }
 
     public void setOutputStream(OutputStream os) {
 	sout = os;
+	channel = null;
+    }
+
+    /** The socket channel, if the connection has one ( NioTcpEndpoint ).
+     *  sendFile will transfer files directly to it.
+     */
+    public void setChannel(WritableByteChannel ch) {
+	channel = ch;
+    }
+
+    protected WritableByteChannel getChannel() {
+	if( chunked )
+	    return null; // the body must be framed
+	if( channel == null )
+	    channel = Channels.newChannel( sout );
+	return channel;
+    }
+
+    /** Headers to send after the body. Only sent if the body is
+     *  chunked ( HTTP/1.1 and no content length ), otherwise they are
+     *  dropped. Can be set until the response is finished, for example
+     *  in afterBody.
+     */
+    public MimeHeaders getTrailers() {
+	return trailers;
+    }
+
+    public boolean isChunked() {
+	return chunked;
     }
 
+    /** Send "100 Continue", the client is waiting for it before
+     *  sending the body.
+     */
+    public void sendContinue() throws IOException {
+	if( commited ) return;
+	sout.write( CONTINUE );
+	sout.flush();
+    }
+
+    static final byte CONTINUE[]= { (byte)'H', (byte)'T', (byte)'T', (byte)'P',
+				    (byte)'/', (byte)'1', (byte)'.', (byte)'1',
+				    (byte)' ', (byte)'1', (byte)'0', (byte)'0',
+				    (byte)' ', (byte)'C', (byte)'o', (byte)'n',
+				    (byte)'t', (byte)'i', (byte)'n', (byte)'u',
+				    (byte)'e', (byte)'\r', (byte)'\n',
+				    (byte)'\r', (byte)'\n' };
+
     static final byte CRLF[]= { (byte)'\r', (byte)'\n' };
+    static final byte COLON[]= { (byte)':', (byte)' ' };
+    static final byte DATE[]= { (byte)'D', (byte)'a', (byte)'t', (byte)'e',
+				(byte)':', (byte)' ' };
+
+    // Status lines, with the CRLF - index is status - 100. Filled once,
+    // for the codes with a message, before any response can use them.
+    static final byte STATUS10[][]=new byte[500][];
+    static final byte STATUS11[][]=new byte[500][];
+
+    static final int STATUS_CODES[]={ 100, 101, 102,
+				      200, 201, 202, 203, 204, 205, 206, 207,
+				      300, 301, 302, 303, 304, 305, 307,
+				      400, 401, 402, 403, 404, 405, 406, 407,
+				      408, 409, 410, 411, 412, 413, 414, 415,
+				      416, 417, 422, 423, 424,
+				      500, 501, 502, 503, 504, 505, 507 };
+
+    static {
+	for( int i=0; i<STATUS_CODES.length; i++ ) {
+	    int status=STATUS_CODES[i];
+	    String message=ResponseImpl.getMessage( status );
+	    STATUS10[ status - 100 ]=
+		getBytes( statusLine( false, status, message ));
+	    STATUS11[ status - 100 ]=
+		getBytes( statusLine( true, status, message ));
+	}
+    }
+
+    // send the Date, set in sendStatus
+    boolean sendDate=false;
     
     public void endHeaders()  throws IOException {
 
 	super.endHeaders();
 	
+	http11="HTTP/1.1".equals( request.getProtocol() );
+	sendDate=false;
 	sendStatus( status, ResponseImpl.getMessage( status ));
 
+	if( request instanceof HttpRequestAdapter )
+	    setConnectionHeader( (HttpRequestAdapter)request );
+
+	if( sendDate ) {
+	    printHead( DATE );
+	    printHead( DateTool.getCurrentDateBytes() );
+	    printHead( CRLF );
+	}
 	int count=headers.size();
 	for( int i=0; i<count; i++ ) {
-	    MimeHeaderField field=headers.getField( i );
-	    // response headers are set by the servlet, so probably we have only
-	    // Strings.
-	    // XXX date, cookies, etc shoud be extracted from response
-	    printHead( field.getName() );
-	    printHead(": ");
-	    printHead( field.getValue() );
-	    printHead("\r\n");
+	    printHeader( headers.getField( i ));
 	}
 	
-	printHead( "\r\n" );
+	printHead( CRLF );
 
 	sout.write( buffer, 0, bufferCount );
 	sout.flush();
@@ -129,27 +225,24 @@ public class HttpResponseAdapter extends  ResponseImpl {
 	HTTP response is the status line
     */
     protected void sendStatus( int status, String message ) throws IOException {
-
-	printHead("HTTP/1.0 ");
-	printHead(String.valueOf(status));
-	if(message!=null) {
-	    printHead(" ");
-	    printHead(message);
+	if( status >= 100 && status < 600 &&
+	    message == ResponseImpl.getMessage( status ) ) {
+	    // the usual case - the line is cached
+	    byte lines[][]= http11 ? STATUS11 : STATUS10;
+	    byte line[]=lines[ status - 100 ];
+	    if( line==null )
+		printHead( statusLine( http11, status, message ));
+	    else
+		printHead( line );
+	} else {
+	    printHead( statusLine( http11, status, message ));
 	}
-	printHead("\r\n");
 	// Hack: set Date header.
 	// This method is overriden by ajp11, ajp12 - so date will not be set
 	// for any of those ( instead the server will generate the date )
-	// This avoids redundant setting of date ( very expensive ).
+	// The current date is formatted once per second ( DateTool ).
 	// XXX XXX Check if IIS, NES do generate the date
-	MimeHeaderField dateH= headers.find( "Date" );
-	if( dateH == null ) {
-	    // no date header set by user
-	    dateH=headers.putHeader();
-	    dateH.setName("Date");
-	    dateH.setDateValue(System.currentTimeMillis());
-	    // will reuse the HttpDate instance
-	}
+	sendDate = headers.find( "Date" ) == null;
 	
 	// Servlet Engine header will be set per/adapter - smarter adapters will
 	// not send it every time ( have it in C side ), and we may also want
@@ -158,8 +251,146 @@ public class HttpResponseAdapter extends  ResponseImpl {
 	    setHeader("Servlet-Engine", request.getContext().getEngineHeader());
     }
 
+    /** Decide if the connection can be reused. The client must be able
+     *  to find the end of the body without waiting for the connection
+     *  to be closed - we need a content length ( unless the status
+     *  has no body ), or a HTTP/1.1 client and a chunked body.
+     */
+    protected void setConnectionHeader( HttpRequestAdapter reqA ) {
+	if( reqA.getProtocol() == null ) // HTTP/0.9, no headers
+	    return;
+	if( contentLength < 0 &&
+	    status != HttpServletResponse.SC_NOT_MODIFIED &&
+	    status != HttpServletResponse.SC_NO_CONTENT &&
+	    headers.find( "Content-Length" ) == null ) {
+	    // XXX HEAD - we don't know if a body will be written
+	    if( http11 && ! "HEAD".equals( reqA.getMethod() )) {
+		chunked=true;
+		headers.putHeader( "Transfer-Encoding", "chunked" );
+	    } else {
+		reqA.setMoreRequests( false );
+	    }
+	}
+	// the client is still waiting to send the body
+	if( reqA.isContinueExpected() )
+	    reqA.setMoreRequests( false );
+	headers.putHeader( "Connection",
+			   reqA.hasMoreRequests() ? "keep-alive" : "close" );
+    }
+
     public void doWrite( byte buffer[], int pos, int count) throws IOException {
-	sout.write( buffer, pos, count);
+	if( ! chunked ) {
+	    sout.write( buffer, pos, count);
+	    return;
+	}
+	if( count <= 0 )
+	    return; // an empty chunk would end the body
+	int start=chunkHeader( count );
+	int headLen=chunkHead.length - start;
+
+	if( channel instanceof GatheringByteChannel ) {
+	    // one system call, no copy
+	    java.nio.ByteBuffer bufs[]=gather;
+	    bufs[0]=java.nio.ByteBuffer.wrap( chunkHead, start, headLen );
+	    bufs[1]=java.nio.ByteBuffer.wrap( buffer, pos, count );
+	    GatheringByteChannel gch=(GatheringByteChannel)channel;
+	    while( bufs[1].hasRemaining() )
+		gch.write( bufs );
+	    bufs[0]=null;
+	    bufs[1]=null;
+	} else if( count <= this.buffer.length - headLen ) {
+	    // small chunk - one write is cheaper than a copy
+	    System.arraycopy( chunkHead, start, this.buffer, 0, headLen );
+	    System.arraycopy( buffer, pos, this.buffer, headLen, count );
+	    sout.write( this.buffer, 0, headLen + count );
+	} else {
+	    sout.write( chunkHead, start, headLen );
+	    sout.write( buffer, pos, count );
+	}
+	crlfPending=true;
+    }
+
+    /** Format the chunk size line ( after the CRLF that ends the
+     *  previous chunk ) at the end of chunkHead, return its start.
+     */
+    int chunkHeader( int count ) {
+	int p=chunkHead.length;
+	chunkHead[--p]='\n';
+	chunkHead[--p]='\r';
+	do {
+	    chunkHead[--p]=HEX[ count & 0xf ];
+	    count >>>= 4;
+	} while( count != 0 );
+	if( crlfPending ) {
+	    chunkHead[--p]='\n';
+	    chunkHead[--p]='\r';
+	}
+	return p;
+    }
+
+    static final byte HEX[]= { (byte)'0', (byte)'1', (byte)'2', (byte)'3',
+			       (byte)'4', (byte)'5', (byte)'6', (byte)'7',
+			       (byte)'8', (byte)'9', (byte)'a', (byte)'b',
+			       (byte)'c', (byte)'d', (byte)'e', (byte)'f' };
+
+    /** Send the body, and for a chunked body the last chunk and the
+     *  trailers.
+     */
+    public void finish() throws IOException {
+	boolean done=false;
+	try {
+	    super.finish();
+	    done=true;
+	} finally {
+	    // the client can't find the end of the body
+	    if( ! done && chunked && request instanceof HttpRequestAdapter )
+		((HttpRequestAdapter)request).setMoreRequests( false );
+	}
+	if( ! chunked )
+	    return;
+	bufferCount=0;
+	if( crlfPending )
+	    printHead( "\r\n" );
+	printHead( "0\r\n" );
+	int count=trailers.size();
+	for( int i=0; i<count; i++ ) {
+	    printHeader( trailers.getField( i ));
+	}
+	printHead( CRLF );
+	sout.write( buffer, 0, bufferCount );
+	sout.flush();
+	chunked=false;
+    }
+
+    static String statusLine( boolean http11, int status, String message ) {
+	StringBuffer sb=new StringBuffer( 32 );
+	sb.append( http11 ? "HTTP/1.1 " : "HTTP/1.0 " ).append( status );
+	if(message!=null) {
+	    sb.append( ' ' ).append( message );
+	}
+	return sb.append( "\r\n" ).toString();
+    }
+
+    /** Write a header field. Byte and int values ( the request
+     *  headers, Content-Length ) are written without a String.
+     */
+    protected void printHeader( MimeHeaderField field ) {
+	if( field.getNameType() == MimeHeaderField.T_BYTES )
+	    printHead( field.getNameBytes() );
+	else
+	    printHead( field.getName() );
+	printHead( COLON );
+	switch( field.getValueType() ) {
+	case MimeHeaderField.T_BYTES:
+	    printHead( field.getValueBytes() );
+	    break;
+	case MimeHeaderField.T_INT:
+	    printHead( field.getIntValue() );
+	    break;
+	default:
+	    printHead( field.getValue() );
+	}
+	printHead( CRLF );
     }
 
     // From BufferedServletOutputStream
@@ -169,6 +400,9 @@ public class HttpResponseAdapter extends  ResponseImpl {
 	if (s==null) s="null";
 
 	int len = s.length();
+	ensureHead( len );
+	byte buf[]=buffer;
+	int pos=bufferCount;
 	for (int i = 0; i < len; i++) {
 	    char c = s.charAt (i);
 	    
@@ -182,14 +416,64 @@ public class HttpResponseAdapter extends  ResponseImpl {
 		// XXX will go away after we change the I/O system
 		System.out.println("Header character is not iso8859_1, not supported yet: " + c ) ;
 	    }
-	    if( bufferCount >= buffer.length ) {
-		byte bufferNew[]=new byte[ buffer.length * 2 ];
-		System.arraycopy( buffer,0, bufferNew, 0, buffer.length );
-		buffer=bufferNew;
-	    }
-	    buffer[bufferCount] = (byte)c;
-	    bufferCount++;
+	    buf[pos++] = (byte)c;
 	}	
+	bufferCount=pos;
+    }
+
+    protected void printHead( byte b[] ) {
+	printHead( b, 0, b.length );
+    }
+
+    protected void printHead( byte b[], int off, int len ) {
+	ensureHead( len );
+	System.arraycopy( b, off, buffer, bufferCount, len );
+	bufferCount+=len;
+    }
+
+    protected void printHead( MessageBytes mb ) {
+	printHead( mb.getBytes(), mb.getOffset(), mb.getLength() );
+    }
+
+    protected void printHead( int n ) {
+	if( n < 0 ) {
+	    printHead( String.valueOf( n ));
+	    return;
+	}
+	ensureHead( 10 );
+	int end=bufferCount + digits( n );
+	int pos=end;
+	do {
+	    buffer[--pos]=(byte)( '0' + n % 10 );
+	    n /= 10;
+	} while( n != 0 );
+	bufferCount=end;
+    }
+
+    static int digits( int n ) {
+	int d=1;
+	while( n >= 10 ) {
+	    n /= 10;
+	    d++;
+	}
+	return d;
+    }
+
+    void ensureHead( int len ) {
+	if( bufferCount + len > buffer.length ) {
+	    int size=buffer.length * 2;
+	    while( size < bufferCount + len ) size *= 2;
+	    byte bufferNew[]=new byte[ size ];
+	    System.arraycopy( buffer,0, bufferNew, 0, bufferCount );
+	    buffer=bufferNew;
+	}
+    }
+
+    static byte[] getBytes( String s ) {
+	byte b[]=new byte[ s.length() ];
+	for( int i=0; i<b.length; i++ )
+	    b[i]=(byte)s.charAt( i );
+	return b;
     }
 					
 }
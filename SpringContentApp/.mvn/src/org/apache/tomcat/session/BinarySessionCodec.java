@@ -0,0 +1,302 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Default SessionCodec. The common attribute types - String, the
+ * primitive wrappers, byte[] and small Hashtables / HashMaps of those -
+ * are written as a type tag followed by the raw value. Anything else
+ * falls back to Java serialization.
+ *
+ * A String takes 3 bytes plus its UTF length, where an ObjectOutputStream
+ * needs its stream header and class descriptors for each value. Reading
+ * doesn't involve the class loader except for the serialized values.
+ *
+ * Tags are never reused - new types get new tags, so values written
+ * by an older version can still be read.
+ */
+public final class BinarySessionCodec implements SessionCodec {
+    static final byte T_NULL=0;
+    static final byte T_STRING=1;
+    static final byte T_LONG_STRING=2;
+    static final byte T_TRUE=3;
+    static final byte T_FALSE=4;
+    static final byte T_BYTE=5;
+    static final byte T_SHORT=6;
+    static final byte T_CHAR=7;
+    static final byte T_INT=8;
+    static final byte T_LONG=9;
+    static final byte T_FLOAT=10;
+    static final byte T_DOUBLE=11;
+    static final byte T_BYTES=12;
+    static final byte T_HASHTABLE=13;
+    static final byte T_HASHMAP=14;
+    static final byte T_SERIALIZED=15;
+
+    /** Larger maps are serialized - they are rarely all plain values.
+     */
+    static final int MAX_MAP=64;
+
+    // writeUTF is limited to 64k bytes, 3 bytes per char at most
+    static final int MAX_UTF=65535 / 3;
+
+    public BinarySessionCodec() {
+    }
+
+    public void writeValue( DataOutputStream out, Object value )
+	throws IOException
+    {
+	if( value==null ) {
+	    out.writeByte( T_NULL );
+	    return;
+	}
+	Class c=value.getClass();
+	if( c==String.class ) {
+	    String s=(String)value;
+	    if( s.length() <= MAX_UTF ) {
+		out.writeByte( T_STRING );
+		out.writeUTF( s );
+	    } else {
+		byte b[]=s.getBytes( "UTF8" );
+		out.writeByte( T_LONG_STRING );
+		out.writeInt( b.length );
+		out.write( b );
+	    }
+	} else if( c==Boolean.class ) {
+	    out.writeByte( ((Boolean)value).booleanValue() ? T_TRUE : T_FALSE );
+	} else if( c==Integer.class ) {
+	    out.writeByte( T_INT );
+	    out.writeInt( ((Integer)value).intValue() );
+	} else if( c==Long.class ) {
+	    out.writeByte( T_LONG );
+	    out.writeLong( ((Long)value).longValue() );
+	} else if( c==Byte.class ) {
+	    out.writeByte( T_BYTE );
+	    out.writeByte( ((Byte)value).byteValue() );
+	} else if( c==Short.class ) {
+	    out.writeByte( T_SHORT );
+	    out.writeShort( ((Short)value).shortValue() );
+	} else if( c==Character.class ) {
+	    out.writeByte( T_CHAR );
+	    out.writeChar( ((Character)value).charValue() );
+	} else if( c==Float.class ) {
+	    out.writeByte( T_FLOAT );
+	    out.writeFloat( ((Float)value).floatValue() );
+	} else if( c==Double.class ) {
+	    out.writeByte( T_DOUBLE );
+	    out.writeDouble( ((Double)value).doubleValue() );
+	} else if( c==byte[].class ) {
+	    byte b[]=(byte[])value;
+	    out.writeByte( T_BYTES );
+	    out.writeInt( b.length );
+	    out.write( b );
+	} else if( (c==Hashtable.class || c==HashMap.class) &&
+		   ((Map)value).size() <= MAX_MAP && isFlat( (Map)value ) ) {
+	    writeMap( out, (Map)value, (c==Hashtable.class) ? T_HASHTABLE :
+		      T_HASHMAP );
+	} else {
+	    writeSerialized( out, value );
+	}
+    }
+
+    public Object readValue( DataInputStream in, ClassLoader loader )
+	throws IOException, ClassNotFoundException
+    {
+	byte tag=in.readByte();
+	switch( tag ) {
+	case T_NULL:
+	    return null;
+	case T_STRING:
+	    return in.readUTF();
+	case T_LONG_STRING:
+	    return new String( readBytes( in ), "UTF8" );
+	case T_TRUE:
+	    return Boolean.TRUE;
+	case T_FALSE:
+	    return Boolean.FALSE;
+	case T_BYTE:
+	    return new Byte( in.readByte() );
+	case T_SHORT:
+	    return new Short( in.readShort() );
+	case T_CHAR:
+	    return new Character( in.readChar() );
+	case T_INT:
+	    return new Integer( in.readInt() );
+	case T_LONG:
+	    return new Long( in.readLong() );
+	case T_FLOAT:
+	    return new Float( in.readFloat() );
+	case T_DOUBLE:
+	    return new Double( in.readDouble() );
+	case T_BYTES:
+	    return readBytes( in );
+	case T_HASHTABLE:
+	case T_HASHMAP:
+	    int n=in.readShort();
+	    Map m=(tag==T_HASHTABLE) ? (Map)new Hashtable( n * 2 + 1 ) :
+		(Map)new HashMap( n * 2 + 1 );
+	    for( int i=0; i<n; i++ ) {
+		Object k=readValue( in, loader );
+		Object v=readValue( in, loader );
+		m.put( k, v );
+	    }
+	    return m;
+	case T_SERIALIZED:
+	    ObjectInputStream oin=new SessionSerializer.ACLObjectInputStream
+		( loader, new ByteArrayInputStream( readBytes( in )));
+	    return oin.readObject();
+	default:
+	    throw new IOException( "Unknown session value type " + tag );
+	}
+    }
+
+    // -------------------- Internal --------------------
+
+    private void writeMap( DataOutputStream out, Map m, byte tag )
+	throws IOException
+    {
+	// the attribute is dropped if another thread changes the map
+	int size=m.size();
+	out.writeByte( tag );
+	out.writeShort( size );
+	int n=0;
+	try {
+	    Iterator it=m.entrySet().iterator();
+	    while( it.hasNext() ) {
+		Map.Entry e=(Map.Entry)it.next();
+		writeValue( out, e.getKey() );
+		writeValue( out, e.getValue() );
+		n++;
+	    }
+	} catch( ConcurrentModificationException ex ) {
+	    n=-1;
+	}
+	if( n != size )
+	    throw new IOException( "Map changed while writing" );
+    }
+
+    /** Only maps of plain values get a tag. A nested map - which may
+     *  contain itself - is serialized, so writeValue doesn't recurse.
+     */
+    private static boolean isFlat( Map m ) {
+	try {
+	    Iterator it=m.entrySet().iterator();
+	    while( it.hasNext() ) {
+		Map.Entry e=(Map.Entry)it.next();
+		if( ! isPlain( e.getKey() ) || ! isPlain( e.getValue() ) )
+		    return false;
+	    }
+	} catch( ConcurrentModificationException ex ) {
+	    return false;
+	}
+	return true;
+    }
+
+    private static boolean isPlain( Object value ) {
+	if( value==null )
+	    return true;
+	Class c=value.getClass();
+	return c==String.class || c==Boolean.class || c==Integer.class ||
+	    c==Long.class || c==Byte.class || c==Short.class ||
+	    c==Character.class || c==Float.class || c==Double.class ||
+	    c==byte[].class;
+    }
+
+    private void writeSerialized( DataOutputStream out, Object value )
+	throws IOException
+    {
+	ByteArrayOutputStream b=new ByteArrayOutputStream();
+	ObjectOutputStream o=new ObjectOutputStream( b );
+	o.writeObject( value );
+	o.flush();
+	out.writeByte( T_SERIALIZED );
+	out.writeInt( b.size() );
+	b.writeTo( out );
+    }
+
+    private static byte[] readBytes( DataInputStream in )
+	throws IOException
+    {
+	int len=in.readInt();
+	if( len < 0 )
+	    throw new IOException( "Bad session value length " + len );
+	byte b[]=new byte[len];
+	in.readFully( b );
+	return b;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.session;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel with the sessions of a StandardManager, in the
+ * bucket of the tick they will expire at. A sweep only looks at the
+ * buckets that became due since the previous one.
+ *
+ * Access doesn't move a session - when its bucket comes up and it was
+ * used meanwhile, it is moved to the bucket of its new expiration time.
+ * Each session is looked at about once per maxInactiveInterval.
+ *
+ * Sessions expiring more than one revolution ahead stay in their bucket
+ * for the next rounds. Entries left behind when a session was moved are
+ * recognized by StandardSession.expiryTick and dropped.
+ */
+final class ExpirationWheel {
+    static final int DEFAULT_SIZE=512;
+
+    private final ConcurrentLinkedQueue buckets[];
+    private final int mask;
+    private long tickMillis;
+    // last tick that was swept
+    private volatile long lastTick;
+
+    ExpirationWheel( int size, long tickMillis ) {
+	int n=16;
+	while( n < size )
+	    n <<= 1;
+	buckets=new ConcurrentLinkedQueue[ n ];
+	for( int i=0; i< n; i++ )
+	    buckets[i]=new ConcurrentLinkedQueue();
+	mask=n - 1;
+	this.tickMillis=( tickMillis <= 0 ) ? 1000 : tickMillis;
+	lastTick=System.currentTimeMillis() / this.tickMillis;
+    }
+
+    /** Place the session in the bucket of its expiration time. Does
+     *  nothing for sessions that never expire.
+     */
+    void schedule( StandardSession session ) {
+	long due=dueTime( session );
+	if( due < 0 )
+	    return;
+	// first tick at or after due
+	long tick=( due + tickMillis - 1 ) / tickMillis;
+	// already due - next sweep
+	if( tick <= lastTick )
+	    tick=lastTick + 1;
+	synchronized( session ) {
+	    if( session.expiryTick == tick )
+		return;
+	    session.expiryTick=tick;
+	}
+	buckets[ (int)tick & mask ].add( session );
+    }
+
+    void clear() {
+	for( int i=0; i< buckets.length; i++ )
+	    buckets[i].clear();
+    }
+
+    /** Expire the due sessions of manager, in all the ticks since the
+     *  last sweep.
+     */
+    void sweep( StandardManager manager, long now ) {
+	long nowTick=now / tickMillis;
+	long t=lastTick + 1;
+	// after a long pause every bucket is due, once
+	if( nowTick - t > mask )
+	    t=nowTick - mask;
+	for( ; t <= nowTick; t++ )
+	    sweepBucket( manager, t, now );
+	lastTick=nowTick;
+    }
+
+    private void sweepBucket( StandardManager manager, long t, long now ) {
+	int b=(int)t & mask;
+	Iterator it=buckets[b].iterator();
+	while( it.hasNext() ) {
+	    StandardSession session=(StandardSession)it.next();
+	    long tick;
+	    synchronized( session ) {
+		tick=session.expiryTick;
+	    }
+	    if( tick > t && ( (int)tick & mask ) == b )
+		continue;	// a later round
+	    it.remove();
+	    if( ( (int)tick & mask ) != b )
+		continue;	// moved to another bucket
+	    if( ! manager.isActive( session ) )
+		continue;	// expired or replaced meanwhile
+	    long due=dueTime( session );
+	    if( due < 0 )
+		continue;
+	    if( due <= now ) {
+		session.expire();
+	    } else {
+		// accessed since it was scheduled
+		synchronized( session ) {
+		    session.expiryTick=0;
+		}
+		schedule( session );
+	    }
+	}
+    }
+
+    private static long dueTime( StandardSession session ) {
+	int max;
+	try {
+	    max=session.getMaxInactiveInterval();
+	} catch( IllegalStateException ex ) {
+	    return -1; // invalidated
+	}
+	if( max < 0 )
+	    return -1;
+	return session.getLatestAccessedTime() + max * 1000L;
+    }
+}
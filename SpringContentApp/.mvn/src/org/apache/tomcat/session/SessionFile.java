@@ -0,0 +1,323 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only file with the serialized form of passivated sessions.
+ * Only a small index entry ( position and expiration time ) stays in
+ * memory for each session.
+ *
+ * Records are appended with the channel and read back through a
+ * read-only mapping of the file, remapped when it grows. Removing a
+ * session appends a tombstone; the file is rewritten when more than
+ * half of it is dead records. On open the records are scanned to
+ * rebuild the index, so the sessions survive a restart.
+ *
+ * Record: int length of the rest, byte type, long due time,
+ *   short id length, id bytes ( ISO-8859-1 ), data.
+ *
+ * XXX positions in the mapping are int - the file must stay under 2G
+ */
+final class SessionFile {
+    static final byte T_SESSION=1;
+    static final byte T_REMOVED=0;
+    // type + due + id length
+    static final int HEAD=1 + 8 + 2;
+    // don't bother compacting small files
+    static final long MIN_COMPACT=1024 * 1024;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long mapSize;
+    private long end;
+    private long dead;
+
+    private ConcurrentHashMap index=new ConcurrentHashMap();
+
+    /** Position of a record and expiration time of the session.
+     */
+    static final class Entry {
+	long pos;
+	int len;
+	long due;
+
+	Entry( long pos, int len, long due ) {
+	    this.pos=pos;
+	    this.len=len;
+	    this.due=due;
+	}
+    }
+
+    SessionFile( File file ) {
+	this.file=file;
+    }
+
+    /** Open the file and read the index of the sessions it contains.
+     *  A truncated last record is dropped.
+     */
+    synchronized void open() throws IOException {
+	File parent=file.getParentFile();
+	if( parent != null && ! parent.exists() )
+	    parent.mkdirs();
+	raf=new RandomAccessFile( file, "rw" );
+	channel=raf.getChannel();
+	long size=channel.size();
+	java.nio.ByteBuffer head=java.nio.ByteBuffer.allocate( 4 + HEAD );
+	long pos=0;
+	while( pos + 4 + HEAD <= size ) {
+	    head.clear();
+	    channel.read( head, pos );
+	    head.flip();
+	    int len=head.getInt();
+	    if( len < HEAD || pos + 4 + len > size )
+		break;
+	    byte type=head.get();
+	    long due=head.getLong();
+	    int idLen=head.getShort();
+	    java.nio.ByteBuffer idB=java.nio.ByteBuffer.allocate( idLen );
+	    channel.read( idB, pos + 4 + HEAD );
+	    String id=new String( idB.array(), 0, 0, idLen );
+	    Entry old=(Entry)index.remove( id );
+	    if( old != null )
+		dead+=old.len;
+	    if( type==T_SESSION )
+		index.put( id, new Entry( pos, 4 + len, due ) );
+	    else
+		dead+=4 + len;
+	    pos+=4 + len;
+	}
+	end=pos;
+	channel.truncate( end );
+	map=null;
+	mapSize=0;
+    }
+
+    synchronized void close() throws IOException {
+	if( raf != null ) {
+	    channel.force( true );
+	    raf.close();
+	}
+	raf=null;
+	channel=null;
+	map=null;
+    }
+
+    int size() {
+	return index.size();
+    }
+
+    boolean contains( String id ) {
+	return index.containsKey( id );
+    }
+
+    Enumeration ids() {
+	return index.keys();
+    }
+
+    /** Ids of the sessions due at now
+     */
+    Vector findExpired( long now ) {
+	Vector v=new Vector();
+	Enumeration e=index.keys();
+	while( e.hasMoreElements() ) {
+	    String id=(String)e.nextElement();
+	    Entry en=(Entry)index.get( id );
+	    if( en != null && en.due >= 0 && en.due <= now )
+		v.addElement( id );
+	}
+	return v;
+    }
+
+    /** Store the session data, replacing the previous record
+     */
+    synchronized void write( String id, long due, byte data[], int len )
+	throws IOException
+    {
+	int idLen=id.length();
+	int recLen=HEAD + idLen + len;
+	java.nio.ByteBuffer b=java.nio.ByteBuffer.allocate( 4 + HEAD + idLen );
+	b.putInt( recLen );
+	b.put( T_SESSION );
+	b.putLong( due );
+	b.putShort( (short)idLen );
+	byte idB[]=new byte[ idLen ];
+	id.getBytes( 0, idLen, idB, 0 );
+	b.put( idB );
+	b.flip();
+	long pos=end;
+	writeFully( b, pos );
+	writeFully( java.nio.ByteBuffer.wrap( data, 0, len ), pos + 4 + HEAD + idLen );
+	end=pos + 4 + recLen;
+	Entry old=(Entry)index.put( id, new Entry( pos, 4 + recLen, due ) );
+	if( old != null )
+	    dead+=old.len;
+    }
+
+    /** Read the data of a session, null if not in the file
+     */
+    synchronized byte[] read( String id ) throws IOException {
+	Entry en=(Entry)index.get( id );
+	if( en==null )
+	    return null;
+	java.nio.ByteBuffer m=mapping( en.pos + en.len );
+	int idLen=m.getShort( (int)en.pos + 4 + 1 + 8 );
+	int off=(int)en.pos + 4 + HEAD + idLen;
+	byte data[]=new byte[ en.len - 4 - HEAD - idLen ];
+	m.position( off );
+	m.get( data );
+	return data;
+    }
+
+    /** Forget a session - a tombstone is written so it is not restored
+     */
+    synchronized void remove( String id ) throws IOException {
+	Entry old=(Entry)index.remove( id );
+	if( old==null )
+	    return;
+	int idLen=id.length();
+	java.nio.ByteBuffer b=java.nio.ByteBuffer.allocate( 4 + HEAD + idLen );
+	b.putInt( HEAD + idLen );
+	b.put( T_REMOVED );
+	b.putLong( -1 );
+	b.putShort( (short)idLen );
+	byte idB[]=new byte[ idLen ];
+	id.getBytes( 0, idLen, idB, 0 );
+	b.put( idB );
+	b.flip();
+	writeFully( b, end );
+	end+=4 + HEAD + idLen;
+	dead+=old.len + 4 + HEAD + idLen;
+    }
+
+    /** Rewrite the file with only the live records, if more than half
+     *  of it is dead.
+     */
+    synchronized void compact() throws IOException {
+	if( end < MIN_COMPACT || dead * 2 < end )
+	    return;
+	File tmp=new File( file.getPath() + ".tmp" );
+	RandomAccessFile out=new RandomAccessFile( tmp, "rw" );
+	FileChannel outC=out.getChannel();
+	outC.truncate( 0 );
+	java.nio.ByteBuffer m=mapping( end );
+	ConcurrentHashMap newIndex=new ConcurrentHashMap();
+	long pos=0;
+	Enumeration e=index.keys();
+	while( e.hasMoreElements() ) {
+	    String id=(String)e.nextElement();
+	    Entry en=(Entry)index.get( id );
+	    java.nio.ByteBuffer rec=m.duplicate();
+	    rec.limit( (int)( en.pos + en.len ) );
+	    rec.position( (int)en.pos );
+	    while( rec.hasRemaining() )
+		outC.write( rec, pos + rec.position() - en.pos );
+	    newIndex.put( id, new Entry( pos, en.len, en.due ) );
+	    pos+=en.len;
+	}
+	outC.force( true );
+	out.close();
+	raf.close();
+	map=null;
+	mapSize=0;
+	if( ! tmp.renameTo( file ) ) {
+	    // windows can't rename over an existing file
+	    file.delete();
+	    tmp.renameTo( file );
+	}
+	raf=new RandomAccessFile( file, "rw" );
+	channel=raf.getChannel();
+	index=newIndex;
+	end=pos;
+	dead=0;
+    }
+
+    // -------------------- Internal --------------------
+
+    private void writeFully( java.nio.ByteBuffer b, long pos ) throws IOException {
+	while( b.hasRemaining() )
+	    pos+=channel.write( b, pos );
+    }
+
+    /** A view of the mapped file, remapped if it doesn't reach limit
+     */
+    private synchronized java.nio.ByteBuffer mapping( long limit ) throws IOException {
+	if( map==null || mapSize < limit ) {
+	    mapSize=end;
+	    map=channel.map( FileChannel.MapMode.READ_ONLY, 0, mapSize );
+	}
+	return map.duplicate();
+    }
+}
@@ -63,65 +63,81 @@ import java.io.*;
 import java.util.*;
 import javax.servlet.http.HttpSession;
 import org.apache.tomcat.core.Request;
+import org.apache.tomcat.util.Scheduler;
 
 /**
 	This class manages the serialization of HttpSession object across
-	classloader reloads. It does this by first getting a copy of the 
-	HttpSessions hashtable from the SessionManager and then using a
-	special internal class ObjectInputStream that uses the newly created
-	classloader to de-serialize the sessions. This class is called from
-	within the ServletWrapper.handleReload() method. Much of this code
-	is essentially the same as what I put into the Apache JServ release
-	so it is pretty well tested. It also depends on having HttpSession
-	implement the read/writeObject methods properly to only accept 
-	objects that are serializable.
+	classloader reloads. The attributes of each session are written
+	with the manager's SessionCodec and read back with the new
+	classloader, so objects that are only within the new loader's
+	classpath are found. Objects that are not serializable are
+	dropped, as before.
+
+	Sessions are moved one by one, in place - there is no copy of the
+	whole sessions table, and requests are not stopped while it runs.
+	The session of the request that caused the reload is done first,
+	the others in shards of SHARD_SIZE sessions in the scheduler
+	thread. A request that finds a session not yet moved does it
+	itself ( StandardManager.findSession ).
+
+	This class is called from within the ServletWrapper.handleReload()
+	method.
 
 	@author <a href="mailto:jon@latchkey.com">Jon S. Stevens</a>
 */
-public final class SessionSerializer
+public final class SessionSerializer implements Runnable
 {
+	/**
+		Sessions moved in each run of the background task.
+	*/
+	static final int SHARD_SIZE = 256;
+
+	private StandardManager sessionM;
+	private int generation;
+	private HttpSession sessions[];
+	private int pos = 0;
+
+	private SessionSerializer(StandardManager sessionM, int generation) {
+		this.sessionM = sessionM;
+		this.generation = generation;
+		// weakly consistent - sessions created from now on are
+		// already in the new generation
+		this.sessions = sessionM.findSessions();
+	}
+
 	/**
 		This is the method that does the serialization.
 	*/
 	public static final void doSerialization(Request req, ClassLoader cl, StandardManager sessionM) {
-		// get the hashtable of sessions
-		Hashtable sessions = sessionM.getSessions();
-		
-		try {
-			// writes the session data out, but loses the contexts
-			// because they cannot be serialized
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			ObjectOutputStream o = new ObjectOutputStream(b);
-			
-			// write out the hashtable to the OOS
-			o.writeObject(sessions);
-			o.flush();
-			
-			// create the streams to read the sessions back in from.
-			ByteArrayInputStream bIn = new ByteArrayInputStream (b.toByteArray());
-			ObjectInputStream oOut= new ACLObjectInputStream(cl, bIn);
-			
-			// unserialize the sessions
-			sessions = (Hashtable) oOut.readObject();
+		int generation = sessionM.newGeneration(cl);
+
+		// the current request keeps its session object - only
+		// the attributes are replaced
+		HttpSession current = req.getSession(false);
+		if (current instanceof StandardSession)
+			sessionM.migrate((StandardSession) current);
+
+		Scheduler.getDefault().scheduleOnce("SessionSerializer",
+			new SessionSerializer(sessionM, generation), 0);
+	}
 
-                        // put the new sessions into the manager
-                        sessionM.setSessions(sessions);
-                        
-                        if (req.getSession(false) != null)
-                        {
-                            // replace the current session in the current request
-                            HttpSession newSession = 
-                                (HttpSession)sessions.get(req.getRequestedSessionId());
-                            req.setSession(newSession);
-                        }
-			
-		} catch (Exception e) {
-		    // log the error. there shouldn't be one here though.
-		    // XXX We should call Logger.log - this is a problem, but
-		    // it's better to have a bug ( writing to out instead of log)
-		    // than adding dependencies to context.
-		    System.out.println( "SessionSerializer: " + e );
+	/**
+		Move the next shard, and schedule the one after.
+	*/
+	public void run() {
+		if (sessionM.getGeneration() != generation) {
+			// reloaded again, the newer task takes over
+			sessions = null;
+			return;
 		}
+		int end = Math.min(pos + SHARD_SIZE, sessions.length);
+		for (; pos < end; pos++)
+			sessionM.migrate((StandardSession) sessions[pos]);
+		if (pos < sessions.length)
+			Scheduler.getDefault().scheduleOnce("SessionSerializer",
+							    this, 0);
+		else
+			sessions = null;
 	}
 	
     /**
@@ -132,7 +148,7 @@ public final class SessionSerializer
      * objects that are only within the ACL's classpath 
      * to be found and deserialized.
      */
-    private static final class ACLObjectInputStream extends ObjectInputStream {
+    static final class ACLObjectInputStream extends ObjectInputStream {
 	ClassLoader loader;
 	
         ACLObjectInputStream(ClassLoader loader, InputStream bIn) throws IOException {
@@ -142,6 +158,8 @@ public final class SessionSerializer
         protected Class resolveClass(ObjectStreamClass v)
             throws IOException, ClassNotFoundException {
 			// use our new loader instead of the system loader
+            if (loader == null)
+                return super.resolveClass(v);
             return loader.loadClass(v.getName());
         }
     }
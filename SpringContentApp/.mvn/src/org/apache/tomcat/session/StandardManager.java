@@ -64,14 +64,25 @@
 
 package org.apache.tomcat.session;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpSession;
 import org.apache.tomcat.util.*;
+import org.apache.tomcat.core.Context;
 import org.apache.tomcat.core.Request;
+import org.apache.tomcat.logging.LogHelper;
 
 /**
  * Standard implementation of the <b>Manager</b> interface that provides
@@ -97,7 +108,34 @@ import org.apache.tomcat.core.Request;
  *     a session, or -1 for no limit.  This value should be overridden from
  *     the default session timeout specified in the web application deployment
  *     descriptor, if any.  [-1]
+ * <li><b>sessionFile</b> - File for passivated sessions. If set, sessions
+ *     are saved there on stop() and restored on start().  [none]
+ * <li><b>passivateIdle</b> - Sessions idle for that many seconds are moved
+ *     to the sessionFile, or -1 to keep them in memory.  [-1]
+ * <li><b>maxResident</b> - Maximum number of sessions kept in memory, the
+ *     least recently used ones are moved to the sessionFile, or -1 for no
+ *     limit.  [-1]
+ * <li><b>sessionCodec</b> - SessionCodec used to write the attributes of
+ *     passivated and reloaded sessions.  [BinarySessionCodec]
  * </ul>
+ * <p>
+ * A passivated session is read back when it is requested with
+ * findSession(). Its expiration time is kept in the file index, so it
+ * can expire without being loaded first ( except to notify its
+ * attributes ).
+ * <p>
+ * Sessions are kept in a ConcurrentHashMap, findSession() doesn't lock.
+ * Expiration uses an ExpirationWheel - every check only looks at the
+ * sessions that may be due.
+ * <p>
+ * A session held by a request - between hold() and release() - is
+ * not passivated. Passivation and activation of a session are done
+ * under one lock, and a request that finds its session passivated
+ * meanwhile reads it back, so there is only one object per id.
+ * <p>
+ * When the context is reloaded the attributes are read back with the
+ * new class loader one session at a time: on the next findSession(),
+ * or by SessionSerializer in the background.
  *
  * @author Craig R. McClanahan
  * @author costin@eng.sun.com
@@ -123,13 +161,23 @@ public final class StandardManager implements Runnable  {
     /**
      * The set of previously recycled Sessions for this Manager.
      */
-    protected Vector recycled = new Vector();
+    protected ConcurrentLinkedQueue recycled = new ConcurrentLinkedQueue();
 
     /**
      * The set of currently active Sessions for this Manager, keyed by
      * session identifier.
      */
-    protected Hashtable sessions = new Hashtable();
+    protected ConcurrentHashMap sessions = new ConcurrentHashMap();
+
+    /**
+     * Number of sessions in <code>sessions</code>.
+     */
+    private AtomicInteger activeCount = new AtomicInteger();
+
+    /**
+     * Sessions ordered by expiration time, created by start().
+     */
+    private ExpirationWheel wheel;
 
     /**
      * The interval (in seconds) between checks for expired sessions.
@@ -148,19 +196,57 @@ public final class StandardManager implements Runnable  {
         StringManager.getManager("org.apache.tomcat.session");
 
     /**
-     * The background thread.
+     * The expiration task, registered with the shared Scheduler.
+     */
+    private Scheduler.Task expireTask = null;
+
+    /**
+     * Name to register for the expiration task.
+     */
+    private String taskName = "StandardManager";
+
+    /**
+     * Passivation settings, see the class comment.
+     */
+    private File sessionFile = null;
+    private int passivateIdle = -1;
+    private int maxResident = -1;
+
+    /**
+     * Passivated sessions, open between start() and stop().
      */
-    private Thread thread = null;
+    private SessionFile store = null;
 
     /**
-     * The background thread completion semaphore.
+     * Loader for the session attributes - the context class loader.
      */
-    private boolean threadDone = false;
+    private ClassLoader loader = null;
 
     /**
-     * Name to register for the background thread.
+     * The passivation pass in progress, if any.
      */
-    private String threadName = "StandardManager";
+    private volatile Passivation passivation = null;
+
+    /**
+     * Serializes activations, so a session is read only once.
+     */
+    private Object activationLock = new Object();
+
+    /**
+     * Writes the attributes of passivated and reloaded sessions.
+     */
+    private SessionCodec codec = new BinarySessionCodec();
+
+    /**
+     * Incremented on each reload. Sessions from an older generation
+     * have attributes loaded by an old class loader.
+     */
+    private volatile int generation = 0;
+
+    /**
+     * The context of the sessions, used for logging.
+     */
+    private Context context = null;
 
     // ------------------------------------------------------------- Constructor
 
@@ -254,6 +340,65 @@ public final class StandardManager implements Runnable  {
 	this.maxActiveSessions = max;
     }
 
+    /**
+     * Set the file where sessions are passivated and saved on stop().
+     */
+    public void setSessionFile(File f) {
+	this.sessionFile = f;
+    }
+
+    public File getSessionFile() {
+	return (this.sessionFile);
+    }
+
+    /**
+     * Seconds of inactivity after which a session is passivated,
+     * -1 to disable.
+     */
+    public void setPassivateIdle(int seconds) {
+	this.passivateIdle = seconds;
+    }
+
+    public int getPassivateIdle() {
+	return (this.passivateIdle);
+    }
+
+    /**
+     * Maximum number of sessions kept in memory, -1 for no limit.
+     */
+    public void setMaxResident(int max) {
+	this.maxResident = max;
+    }
+
+    public int getMaxResident() {
+	return (this.maxResident);
+    }
+
+    /**
+     * Class loader used to read passivated sessions.
+     */
+    public void setClassLoader(ClassLoader loader) {
+	this.loader = loader;
+    }
+
+    /**
+     * Set the codec for session attributes.
+     */
+    public void setSessionCodec(SessionCodec codec) {
+	this.codec = codec;
+    }
+
+    public SessionCodec getSessionCodec() {
+	return (this.codec);
+    }
+
+    /**
+     * Set the context, messages go to its log.
+     */
+    public void setContext(Context context) {
+	this.context = context;
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -266,9 +411,29 @@ public final class StandardManager implements Runnable  {
 	((StandardSession) session).access();
     }
 
+    /**
+     * Mark the session as used by a request, until release(). If it
+     * was passivated since it was found it is read back, and that
+     * session is returned - or null if it expired meanwhile.
+     */
+    public HttpSession hold( HttpSession session ) {
+	StandardSession s = (StandardSession) session;
+	String id = s.getId();
+	while (s != null && id != null) {
+	    s.hold();
+	    // passivate() removes the session before it checks isInUse()
+	    if (id.equals(s.getId()) && isActive(s))
+		return s;
+	    s.release();
+	    s = (StandardSession) findSession(id);
+	}
+	return null;
+    }
+
     /** Notify that the servlet that acccessed the session is done
      */
     public void release( HttpSession session ) {
+	((StandardSession) session).release();
     }
 
     /**
@@ -287,8 +452,12 @@ public final class StandardManager implements Runnable  {
     public HttpSession findSession(String id) {
 	if (id == null)
 	    return (null);
-	HttpSession s=((HttpSession) sessions.get(id));
+	StandardSession s=((StandardSession) sessions.get(id));
+	if( s==null && store != null )
+	    s=activate(id);
 	if( s==null ) return s;
+	if( s.generation != generation )
+	    migrate( s );
 	access( s );
 	return s;
     }
@@ -298,28 +467,33 @@ public final class StandardManager implements Runnable  {
      * If this Manager has no active Sessions, a zero-length array is returned.
      */
     public HttpSession[] findSessions() {
-	synchronized (sessions) {
-	    Vector keys = new Vector();
-	    Enumeration ids = sessions.keys();
-	    while (ids.hasMoreElements()) {
-		String id = (String) ids.nextElement();
-		keys.addElement(id);
-	    }
-	    HttpSession results[] = new HttpSession[keys.size()];
-	    for (int i = 0; i < results.length; i++) {
-		String key = (String) keys.elementAt(i);
-		results[i] = (HttpSession) sessions.get(key);
-	    }
-	    return (results);
-	}
+	// weakly consistent - sessions added or removed meanwhile may
+	// or may not be included
+	return (HttpSession[]) sessions.values().toArray(new HttpSession[0]);
+    }
+
+    /**
+     * Return the number of active sessions, in memory and passivated.
+     */
+    public int getActiveSessions() {
+	SessionFile f = store;
+	return activeCount.get() + ((f == null) ? 0 : f.size());
+    }
+
+    /**
+     * Return the number of sessions in memory.
+     */
+    public int getResidentSessions() {
+	return activeCount.get();
     }
 
 	/**
 		This method will return a Hashtable of HttpSession
-		objects.
+		objects. It is a copy - changes are not reflected
+		in the manager.
 	*/
 	public Hashtable getSessions() {
-		return this.sessions;
+		return new Hashtable(this.sessions);
 	}
 
         /**
@@ -328,16 +502,22 @@ public final class StandardManager implements Runnable  {
         */
         public void setSessions(Hashtable sessions) {
             
+                ConcurrentHashMap newSessions = new ConcurrentHashMap(sessions);
                 // make sure all the sessions know they belong to us
-                Enumeration e = sessions.keys();
+                Enumeration e = sessions.elements();
                 while (e.hasMoreElements())
                 {
                     StandardSession sess 
-                        = (StandardSession)sessions.get(e.nextElement());
+                        = (StandardSession)e.nextElement();
                     sess.setManager(this);
+                    sess.generation = generation;
                 }
             
-                this.sessions = sessions;
+                this.sessions = newSessions;
+                activeCount.set(newSessions.size());
+                e = sessions.elements();
+                while (e.hasMoreElements())
+                    schedule((StandardSession)e.nextElement());
         }
 	
     /**
@@ -352,20 +532,15 @@ public final class StandardManager implements Runnable  {
      */
     public HttpSession getNewSession(String jsIdent) {
 
+	// No lock - requests creating sessions at the same time may go
+	// a few sessions over the limit
 	if ((maxActiveSessions >= 0) &&
-	  (sessions.size() >= maxActiveSessions))
+	  (getActiveSessions() >= maxActiveSessions))
 	    throw new IllegalStateException
 		(sm.getString("standardManager.createSession.ise"));
 
 	// Recycle or create a Session instance
-	StandardSession session = null;
-	synchronized (recycled) {
-	    int size = recycled.size();
-	    if (size > 0) {
-		session = (StandardSession) recycled.elementAt(size - 1);
-		recycled.removeElementAt(size - 1);
-	    }
-	}
+	StandardSession session = (StandardSession) recycled.poll();
 	if (session == null)
 	    session = new StandardSession(this);
 
@@ -375,6 +550,7 @@ public final class StandardManager implements Runnable  {
 	session.setCreationTime(System.currentTimeMillis());
 	session.setMaxInactiveInterval(this.maxInactiveInterval);
 	session.setId(SessionUtil.generateSessionId(jsIdent));
+	session.generation = generation;
 
 	return (session);
     }
@@ -398,8 +574,28 @@ public final class StandardManager implements Runnable  {
 	// Cause the context's PRNG to be initialized
 	 String sDummy = SessionUtil.generateSessionId(null);
 
-	// Start the background reaper thread
-	threadStart();
+	if ((sessionFile != null) && (store == null)) {
+	    SessionFile f = new SessionFile(sessionFile);
+	    try {
+		f.open();
+		store = f;
+	    } catch (IOException ex) {
+		log("can't open " + sessionFile, ex);
+	    }
+	}
+
+	if (wheel == null) {
+	    wheel = new ExpirationWheel(ExpirationWheel.DEFAULT_SIZE,
+					checkInterval * 1000L);
+	    Enumeration e = sessions.elements();
+	    while (e.hasMoreElements())
+		schedule((StandardSession) e.nextElement());
+	}
+
+	// Check for expired sessions in the shared scheduler thread
+	if (expireTask == null)
+	    expireTask = Scheduler.getDefault().schedule(taskName, this,
+						       checkInterval * 1000L);
 
     }
 
@@ -414,16 +610,32 @@ public final class StandardManager implements Runnable  {
      *  been stopped
      */
     public void stop() {
-	// Stop the background reaper thread
-	threadStop();
+	// Stop checking for expired sessions
+	if (expireTask != null) {
+	    expireTask.cancel();
+	    expireTask = null;
+	}
+	passivation = null;
 
-	// Expire all active sessions
+	// Expire all active sessions - or save them if we have a file
 	HttpSession sessions[] = findSessions();
 	for (int i = 0; i < sessions.length; i++) {
 	    StandardSession session = (StandardSession) sessions[i];
 	    if (!session.isValid())
 		continue;
-	    session.expire();
+	    if (store == null || !passivate(session, Long.MAX_VALUE, true))
+		session.expire();
+	}
+	if (wheel != null)
+	    wheel.clear();
+	if (store != null) {
+	    try {
+		store.compact();
+		store.close();
+	    } catch (IOException ex) {
+		log("error closing " + sessionFile, ex);
+	    }
+	    store = null;
 	}
 
     }
@@ -435,7 +647,49 @@ public final class StandardManager implements Runnable  {
      * @param session Session to be added
      */
     void add(StandardSession session) {
-	sessions.put(session.getId(), session);
+	if (sessions.put(session.getId(), session) == null)
+	    activeCount.incrementAndGet();
+	schedule(session);
+    }
+
+    /**
+     * Put the session in the expiration wheel, or move it if its
+     * maxInactiveInterval changed.
+     */
+    void schedule(StandardSession session) {
+	ExpirationWheel w = wheel;
+	if (w != null)
+	    w.schedule(session);
+    }
+
+    /**
+     * Is this the session registered under its id ?
+     */
+    boolean isActive(StandardSession session) {
+	String id = session.getId();
+	return (id != null) && (sessions.get(id) == session);
+    }
+
+    /**
+     * Start a new class loader generation, after a reload.
+     */
+    int newGeneration(ClassLoader newLoader) {
+	synchronized (activationLock) {
+	    loader = newLoader;
+	    return ++generation;
+	}
+    }
+
+    int getGeneration() {
+	return generation;
+    }
+
+    /**
+     * Read the session's attributes with the current class loader,
+     * if it is from an older generation.
+     */
+    void migrate(StandardSession session) {
+	session.migrate(generation, codec, loader);
     }
 
     /**
@@ -444,7 +698,7 @@ public final class StandardManager implements Runnable  {
      * @param session Session to be recycled
      */
     void recycle(StandardSession session) {
-	recycled.addElement(session);
+	recycled.add(session);
     }
 
     /**
@@ -453,7 +707,9 @@ public final class StandardManager implements Runnable  {
      * @param session Session to be removed
      */
     void remove(StandardSession session) {
-	sessions.remove(session.getId());
+	String id = session.getId();
+	if ((id != null) && sessions.remove(id, session))
+	    activeCount.decrementAndGet();
     }
 
 
@@ -465,91 +721,272 @@ public final class StandardManager implements Runnable  {
      */
     private void processExpires() {
 
-	long timeNow = System.currentTimeMillis();
-	HttpSession sessions[] = findSessions();
-
-	for (int i = 0; i < sessions.length; i++) {
-	    StandardSession session = (StandardSession) sessions[i];
-	    if (!session.isValid())
-		continue;
-	    int maxInactiveInterval = session.getMaxInactiveInterval();
-	    if (maxInactiveInterval < 0)
-		continue;
-	    int timeIdle = // Truncate, do not round up
-		(int) ((timeNow - session.getLatestAccessedTime()) / 1000L);
-	    if (timeIdle >= maxInactiveInterval)
-		session.expire();
-	}
+	long now = System.currentTimeMillis();
+	ExpirationWheel w = wheel;
+	if (w != null)
+	    w.sweep(this, now);
+	if (store != null)
+	    processPassivation(now);
     }
 
+    // -------------------------------------------------------- Passivation
 
     /**
-     * Sleep for the duration specified by the <code>checkInterval</code>
-     * property.
+     * Move idle sessions to the file, expire the passivated ones
+     * that timed out. A pass that isn't done yet is left to finish.
      */
-    private void threadSleep() {
-
-	try {
-	    Thread.sleep(checkInterval * 1000L);
-	} catch (InterruptedException e) {
-	    ;
-	}
-
+    private void processPassivation(long now) {
+	if (passivation != null)
+	    return;
+	Passivation p = new Passivation(now);
+	passivation = p;
+	p.run();
     }
 
-
     /**
-     * Start the background thread that will periodically check for
-     * session timeouts.
-     */
-    private void threadStart() {
+     * One passivation pass. It runs in the shared scheduler thread, so
+     * it writes at most SessionSerializer.SHARD_SIZE sessions per run
+     * and schedules the rest, like the SessionSerializer. Compacting
+     * the file gets a run of its own.
+     */
+    private final class Passivation implements Runnable {
+	private long now;
+	private long idleLimit;
+	private HttpSession resident[];
+	private int count;
+	private int pos = 0;
+	private StandardSession lru[] = null;
+	private Vector expired = null;
+	private boolean compacting = false;
+
+	Passivation(long now) {
+	    this.now = now;
+	    this.idleLimit = now - passivateIdle * 1000L;
+	    this.resident = findSessions();
+	    this.count = resident.length;
+	}
 
-	if (thread != null)
-	    return;
+	public void run() {
+	    boolean done = false;
+	    try {
+		shard();
+		done = true;
+	    } finally {
+		// failed - the next check starts a new pass
+		if (!done && passivation == this)
+		    passivation = null;
+	    }
+	}
+
+	/**
+	 * Do the next shard, and schedule the one after.
+	 */
+	private void shard() {
+	    SessionFile f = store;
+	    if (f == null || passivation != this)
+		return;		// stopped meanwhile
+	    if (compacting) {
+		passivation = null;
+		try {
+		    f.compact();
+		} catch (IOException ex) {
+		    log("error compacting " + sessionFile, ex);
+		}
+		return;
+	    }
+	    int budget = SessionSerializer.SHARD_SIZE;
+	    if (expired == null && lru == null && passivateIdle >= 0) {
+		for (; pos < resident.length && budget > 0; pos++) {
+		    StandardSession session = (StandardSession) resident[pos];
+		    if (session.getLatestAccessedTime() > idleLimit)
+			continue;
+		    budget--;
+		    if (passivate(session, idleLimit, false)) {
+			resident[pos] = null;
+			count--;
+		    }
+		}
+		if (pos < resident.length) {
+		    next();
+		    return;
+		}
+	    }
+	    if (expired == null && (maxResident >= 0) &&
+		(count > maxResident)) {
+		if (lru == null) {
+		    // least recently used first
+		    lru = new StandardSession[count];
+		    int n = 0;
+		    for (int i = 0; i < resident.length; i++)
+			if (resident[i] != null)
+			    lru[n++] = (StandardSession) resident[i];
+		    resident = null;
+		    java.util.Arrays.sort(lru, new java.util.Comparator() {
+			public int compare(Object a, Object b) {
+			    long ta = ((StandardSession) a).getLatestAccessedTime();
+			    long tb = ((StandardSession) b).getLatestAccessedTime();
+			    return (ta < tb) ? -1 : ((ta == tb) ? 0 : 1);
+			}
+		    });
+		    pos = 0;
+		    // sorting was this run's work
+		    next();
+		    return;
+		}
+		// sessions in use by a request, or used since the pass
+		// started, are skipped
+		for (; pos < lru.length && count > maxResident && budget > 0;
+		     pos++) {
+		    budget--;
+		    if (passivate(lru[pos], now, false))
+			count--;
+		}
+		if (pos < lru.length && count > maxResident) {
+		    next();
+		    return;
+		}
+	    }
+	    resident = null;
+	    lru = null;
 
-	threadDone = false;
-	thread = new Thread(this, threadName);
-	thread.setDaemon(true);
-	thread.start();
+	    // passivated sessions are loaded to notify their attributes
+	    if (expired == null) {
+		expired = f.findExpired(now);
+		pos = 0;
+	    }
+	    for (; pos < expired.size() && budget > 0; pos++, budget--) {
+		StandardSession session =
+		    activate((String) expired.elementAt(pos));
+		if (session != null)
+		    session.expire();
+	    }
+	    if (pos >= expired.size())
+		compacting = true;
+	    next();
+	}
 
+	private void next() {
+	    Scheduler.getDefault().scheduleOnce(taskName, this, 0);
+	}
     }
 
+    /**
+     * Write the session to the file and remove it from memory. Unless
+     * forced ( on stop() ) a session in use, or accessed after
+     * idleLimit, is kept.
+     */
+    private boolean passivate(StandardSession session, long idleLimit,
+			      boolean force) {
+	synchronized (activationLock) {
+	    String id = session.getId();
+	    if (id == null || !session.isValid() || !isActive(session))
+		return false;
+	    if (!force && (session.isInUse() ||
+			   session.getLatestAccessedTime() > idleLimit))
+		return false;
+	    long due;
+	    try {
+		int max = session.getMaxInactiveInterval();
+		due = (max < 0) ? -1 :
+		    session.getLatestAccessedTime() + max * 1000L;
+	    } catch (IllegalStateException ex) {
+		return false; // invalidated meanwhile
+	    }
+	    // Remove it first: a request that holds it from now on sees
+	    // it is gone and waits in activate() for the write
+	    remove(session);
+	    if (!force && session.isInUse()) {
+		add(session);
+		return false;
+	    }
+	    Throwable failure;
+	    try {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		session.writeData(new DataOutputStream(b), codec);
+		store.write(id, due, b.toByteArray(), b.size());
+		return true;
+	    } catch (Exception ex) {
+		// an attribute's writeObject may throw anything
+		failure = ex;
+	    } catch (StackOverflowError ex) {
+		// an attribute that contains itself
+		failure = ex;
+	    }
+	    // not written - keep it in memory
+	    log("can't passivate " + id, failure);
+	    add(session);
+	    return false;
+	}
+    }
 
     /**
-     * Stop the background thread that is periodically checking for
-     * session timeouts.
-     */
-    private void threadStop() {
+     * Read a passivated session back into memory.
+     */
+    private StandardSession activate(String id) {
+	synchronized (activationLock) {
+	    StandardSession session = (StandardSession) sessions.get(id);
+	    if (session != null)
+		return session;
+	    SessionFile f = store;
+	    if (f == null)
+		return null;
+	    try {
+		byte data[] = f.read(id);
+		if (data == null)
+		    return null;
+		f.remove(id);
+		if (data.length > 0 && data[0] == (byte) 0xAC) {
+		    // Java serialization, written by an older version
+		    ObjectInputStream in = new SessionSerializer.ACLObjectInputStream
+			(loader, new ByteArrayInputStream(data));
+		    session = (StandardSession) in.readObject();
+		} else {
+		    session = new StandardSession(this);
+		    session.readData(new DataInputStream
+			(new ByteArrayInputStream(data)), codec, loader);
+		}
+	    } catch (Exception ex) {
+		log("can't activate " + id, ex);
+		return null;
+	    }
+	    session.setManager(this);
+	    session.generation = generation;
+	    add(session);
+	    return session;
+	}
+    }
 
-	if (thread == null)
-	    return;
 
-	threadDone = true;
-	thread.interrupt();
-	try {
-	    thread.join();
-	} catch (InterruptedException e) {
-	    ;
-	}
+    // -------------------------------------------------------- Logging
+
+    private static LogHelper loghelper =
+	new LogHelper("tc_log", "StandardManager");
 
-	thread = null;
+    void log(String msg) {
+	if (context != null)
+	    context.log("StandardManager: " + msg);
+	else
+	    loghelper.log(msg);
+    }
 
+    void log(String msg, Throwable t) {
+	if (context != null)
+	    context.log("StandardManager: " + msg, t);
+	else
+	    loghelper.log(msg, t);
     }
 
 
-    // ------------------------------------------------------ Background Thread
+    // -------------------------------------------------------- Scheduled Task
 
 
     /**
-     * The background thread that checks for session timeouts and shutdown.
+     * Called by the scheduler every checkInterval seconds to expire
+     * the sessions that timed out.
      */
     public void run() {
 
-	// Loop until the termination semaphore is set
-	while (!threadDone) {
-	    threadSleep();
-	    processExpires();
-	}
+	processExpires();
 
     }
 
@@ -65,6 +65,10 @@
 package org.apache.tomcat.session;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -72,11 +76,13 @@ import java.io.Serializable;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 import javax.servlet.http.HttpSessionContext;
+import org.apache.tomcat.logging.LogHelper;
 import org.apache.tomcat.util.StringManager;
 
 
@@ -199,6 +205,29 @@ final class StandardSession
     private long thisAccessedTime = creationTime;
 
 
+    /**
+     * The tick of the manager's ExpirationWheel this session is
+     * scheduled at, 0 if none.
+     */
+    transient long expiryTick = 0L;
+
+
+    /**
+     * The class loader generation of the manager the attributes were
+     * loaded with.
+     */
+    transient int generation = 0;
+
+    /**
+     * Number of requests holding this session - a session in use is
+     * not passivated.
+     */
+    private transient volatile int inUse = 0;
+
+    private static final AtomicIntegerFieldUpdater inUseUpdater =
+	AtomicIntegerFieldUpdater.newUpdater(StandardSession.class, "inUse");
+
+
     // ----------------------------------------------------- Session Properties
 
 
@@ -329,6 +358,8 @@ final class StandardSession
     public void setMaxInactiveInterval(int interval) {
 
 	this.maxInactiveInterval = interval;
+	if ((id != null) && (manager != null))
+	    manager.schedule(this);
 
     }
 
@@ -415,6 +446,35 @@ final class StandardSession
     // ------------------------------------------------ Session Package Methods
 
 
+    /**
+     * A request starts using this session.
+     */
+    void hold() {
+	inUseUpdater.incrementAndGet(this);
+    }
+
+
+    /**
+     * A request is done with this session.
+     */
+    void release() {
+	int n;
+	do {
+	    n = inUse;
+	    if (n <= 0)
+		return;
+	} while (!inUseUpdater.compareAndSet(this, n, n - 1));
+    }
+
+
+    /**
+     * Is this session held by a request ?
+     */
+    boolean isInUse() {
+	return (inUse > 0);
+    }
+
+
     /**
      * Return the <code>isValid</code> flag for this session.
      */
@@ -832,6 +892,186 @@ final class StandardSession
 			stream.writeObject(new Hashtable());
 		}
 	}
+
+
+    // -------------------------------------------------------- Codec Methods
+
+
+    /**
+     * Version of the format written by writeData().
+     */
+    static final byte FORMAT_VERSION = 1;
+
+
+    /**
+     * Write the session with the given codec. Like writeObject(), the
+     * attributes that can't be written are left out - and notified with
+     * valueUnbound() if they are listeners.
+     *
+     * Format: byte version, long creationTime, lastAccessedTime and
+     * thisAccessedTime, int maxInactiveInterval, boolean isNew and
+     * isValid, UTF id, then the attributes.
+     */
+    void writeData(DataOutputStream out, SessionCodec codec)
+	throws IOException {
+
+	out.writeByte(FORMAT_VERSION);
+	out.writeLong(creationTime);
+	out.writeLong(lastAccessedTime);
+	out.writeLong(thisAccessedTime);
+	out.writeInt(maxInactiveInterval);
+	out.writeBoolean(isNew);
+	out.writeBoolean(isValid);
+	out.writeUTF(id);
+	writeAttributes(out, codec);
+    }
+
+
+    /**
+     * Read a session written by writeData(). The Manager must be set
+     * by the caller.
+     *
+     * @exception IOException if the data is not in a known format
+     */
+    void readData(DataInputStream in, SessionCodec codec, ClassLoader loader)
+	throws IOException {
+
+	byte version = in.readByte();
+	if (version != FORMAT_VERSION)
+	    throw new IOException("Unknown session format " + version);
+	creationTime = in.readLong();
+	lastAccessedTime = in.readLong();
+	thisAccessedTime = in.readLong();
+	maxInactiveInterval = in.readInt();
+	isNew = in.readBoolean();
+	isValid = in.readBoolean();
+	id = in.readUTF();
+	attributes = readAttributes(in, codec, loader);
+    }
+
+
+    /**
+     * Read the attributes back with a new class loader, after the
+     * context was reloaded. The session object itself is kept, so
+     * requests using it are not affected. Done once per generation.
+     */
+    void migrate(int generation, SessionCodec codec, ClassLoader loader) {
+	synchronized (attributes) {
+	    if (this.generation == generation)
+		return;
+	    try {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		writeAttributes(new DataOutputStream(b), codec);
+		Hashtable results = readAttributes
+		    (new DataInputStream(new ByteArrayInputStream
+					 (b.toByteArray())), codec, loader);
+		// replace in place - getAttribute() doesn't lock
+		Enumeration names = attributes.keys();
+		while (names.hasMoreElements()) {
+		    Object name = names.nextElement();
+		    if (!results.containsKey(name))
+			attributes.remove(name);
+		}
+		attributes.putAll(results);
+	    } catch (Exception ex) {
+		// keep the old attributes
+		log("can't reload " + id, ex);
+	    }
+	    this.generation = generation;
+	}
+    }
+
+
+    /**
+     * Write the attribute count, then name, length and value of each
+     * attribute.
+     */
+    private void writeAttributes(DataOutputStream out, SessionCodec codec)
+	throws IOException {
+
+	Vector names = new Vector();
+	Vector values = new Vector();
+	ByteArrayOutputStream b = new ByteArrayOutputStream();
+	DataOutputStream bout = new DataOutputStream(b);
+	for (Enumeration e = attributes.keys(); e.hasMoreElements() ; ) {
+	    String key = (String) e.nextElement();
+	    Object value = attributes.get(key);
+	    if (value instanceof Serializable) {
+		b.reset();
+		try {
+		    codec.writeValue(bout, value);
+		    bout.flush();
+		    names.addElement(key);
+		    values.addElement(b.toByteArray());
+		    continue;
+		} catch (Exception ex) {
+		    // not serializable after all, or its writeObject
+		    // failed - same as below
+		    log("can't write attribute " + key + " of " + id, ex);
+		} catch (StackOverflowError ex) {
+		    log("can't write attribute " + key + " of " + id, ex);
+		}
+	    }
+	    // see writeObject()
+	    if (value instanceof HttpSessionBindingListener ) {
+		try {
+		    ((HttpSessionBindingListener)value)
+			.valueUnbound(new HttpSessionBindingEvent(this, key));
+		} catch (Exception f) {
+		    // ignored
+		}
+	    }
+	}
+	out.writeInt(names.size());
+	for (int i = 0; i < names.size(); i++) {
+	    byte data[] = (byte[]) values.elementAt(i);
+	    out.writeUTF((String) names.elementAt(i));
+	    out.writeInt(data.length);
+	    out.write(data);
+	}
+    }
+
+
+    /**
+     * Read the attributes written by writeAttributes(). A value that
+     * can't be read ( class no longer available, etc ) is skipped.
+     */
+    private Hashtable readAttributes(DataInputStream in, SessionCodec codec,
+				     ClassLoader loader)
+	throws IOException {
+
+	int n = in.readInt();
+	Hashtable results = new Hashtable(Math.max(n * 2, 11));
+	for (int i = 0; i < n; i++) {
+	    String name = in.readUTF();
+	    byte data[] = new byte[in.readInt()];
+	    in.readFully(data);
+	    try {
+		Object value = codec.readValue(new DataInputStream
+		    (new ByteArrayInputStream(data)), loader);
+		if (value != null)
+		    results.put(name, value);
+	    } catch (Exception ex) {
+		log("can't read attribute " + name + " of " + id, ex);
+	    }
+	}
+	return results;
+    }
+
+
+    /**
+     * Log through the manager - to the context log.
+     */
+    private void log(String msg, Throwable t) {
+	StandardManager m = manager;
+	if (m != null)
+	    m.log(msg, t);
+	else
+	    loghelper.log(msg, t);
+    }
+
+    private static LogHelper loghelper =
+	new LogHelper("tc_log", "StandardSession");
 }
 
 /**
@@ -60,11 +60,11 @@
 
 package org.apache.tomcat.session;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
-import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpSession;
 import org.apache.tomcat.util.*;
 import org.apache.tomcat.core.*;
@@ -90,11 +90,51 @@ import org.apache.tomcat.core.*;
  */
 public final class StandardSessionInterceptor  extends BaseInterceptor {
     int manager_note;
+    // the session held by the request, released in afterBody
+    int session_note;
     static final char SESSIONID_ROUTE_SEP = '.';
 
+    // passivation - see StandardManager
+    boolean persistent=false;
+    int passivateIdle=-1;
+    int maxResident=-1;
+    SessionCodec codec=null;
+
     public StandardSessionInterceptor() {
     }
 
+    /** Save the sessions in the context work dir on shutdown and
+     *  restore them on startup.
+     */
+    public void setPersistent( boolean b ) {
+	persistent=b;
+    }
+
+    /** Move sessions idle for that many seconds to the session file.
+     *  Implies persistent.
+     */
+    public void setPassivateIdle( int seconds ) {
+	passivateIdle=seconds;
+    }
+
+    /** Keep at most that many sessions in memory per context, the
+     *  others go to the session file. Implies persistent.
+     */
+    public void setMaxResident( int max ) {
+	maxResident=max;
+    }
+
+    /** Class name of the SessionCodec for passivated and reloaded
+     *  sessions. Default is BinarySessionCodec.
+     */
+    public void setSessionCodec( String className ) {
+	try {
+	    codec=(SessionCodec)Class.forName( className ).newInstance();
+	} catch( Exception ex ) {
+	    log( "Can't create session codec " + className + " " + ex );
+	}
+    }
+
     // -------------------- Internal methods --------------------
     private StandardManager getManager( Context ctx ) {
 	return (StandardManager)ctx.getContainer().getNote(manager_note);
@@ -108,6 +148,27 @@ public final class StandardSessionInterceptor  extends BaseInterceptor {
     public void engineInit( ContextManager cm ) throws TomcatException {
 	// set-up a per/container note for StandardManager
 	manager_note = cm.getNoteId( ContextManager.CONTAINER_NOTE, "tomcat.standardManager");
+	session_note = cm.getNoteId( ContextManager.REQUEST_NOTE, "tomcat.session.held");
+    }
+
+    /** Mark the session as used by the request, releasing the one it
+     *	held before. A forward maps the same request again - the session
+     *	is held only once. Included requests use the parent's session.
+     */
+    private HttpSession hold( Request request, StandardManager sM,
+			      HttpSession sess )
+    {
+	if( request.getParent() != null )
+	    return sess;
+	HttpSession old=(HttpSession)request.getNote( session_note );
+	if( old == sess )
+	    return sess;
+	if( old != null )
+	    sM.release( old );
+	if( sess != null )
+	    sess=sM.hold( sess );
+	request.setNote( session_note, sess );
+	return sess;
     }
 
     /**
@@ -117,6 +178,7 @@ public final class StandardSessionInterceptor  extends BaseInterceptor {
     public int requestMap(Request request ) {
 	String sessionId = null;
 	HttpSession sess = null;
+	HttpSession found = null;
 	Context ctx=request.getContext();
 	StandardManager sM = getManager( ctx );
 	if( ctx==null ) {
@@ -136,35 +198,38 @@ public final class StandardSessionInterceptor  extends BaseInterceptor {
 	    if (sess != null) {
 		if (debug > 0) log("The URL session ID is valid");
 		request.setSession(sess);
+		found = sess;
 	    }
 	}
 
-	// PF, loop across all cookies named JSESSIONID checking to see if any of them are valid.
-	// There should in most cases be a maximum of 2, and normally there will only be one. The
-	// first valid session cookie is set as the session ID in the request.
-	int count=request.getCookieCount();
-	for( int i=0; i<count; i++ ) {
-		Cookie cookie = request.getCookie(i);
-
-		if (cookie.getName().equals("JSESSIONID")) {
-			sessionId = cookie.getValue();
-                        if (debug > 0) log("Found session id cookie " + sessionId);
-                        request.setRequestedSessionId( sessionId );
-                        request.setSessionIdSource( Request.SESSIONID_FROM_COOKIE );
-                        sess = sM.findSession(sessionId);
-                        if (sess != null)
-                            request.setSession(sess);
-                        break;
-                }
-
+	// The first session cookie is set as the session ID in the request.
+	// Only the value is needed - no Cookie objects are created.
+	sessionId = request.findCookieValue( "JSESSIONID" );
+	if( sessionId != null ) {
+	    if (debug > 0) log("Found session id cookie " + sessionId);
+	    request.setRequestedSessionId( sessionId );
+	    request.setSessionIdSource( Request.SESSIONID_FROM_COOKIE );
+	    sess = sM.findSession(sessionId);
+	    if (sess != null) {
+		request.setSession(sess);
+		found = sess;
+	    }
 	}
 
+	// hold the session we found - if it was passivated meanwhile
+	// it is read back
+	if( found != null ) {
+	    HttpSession held = hold( request, sM, found );
+	    if( held != found )
+		request.setSession( held );
+	}
 	return 0;
     }
 
     public void reload( Request req, Context ctx ) {
 	ClassLoader newLoader = ctx.getServletLoader().getClassLoader();
 	StandardManager sM = getManager( ctx );
+	sM.setClassLoader( newLoader );
 	sM.handleReload(req, newLoader);
     }
 
@@ -177,24 +242,24 @@ public final class StandardSessionInterceptor  extends BaseInterceptor {
 	if( request.getSession( false ) != null )
 	    return 0; // somebody already set the session
 	HttpSession newS=sM.getNewSession(request.getJvmRoute());
-	request.setSession( newS );
+	request.setSession( hold( request, sM, newS ));
 	return 0;
     }
 
     /** Called after request - we need to release the session object.
      *  This is used to prevent removal of session objects during execution,
      *	and may be used by interceptors that want to limit or count the
-     *	sessions.
+     *	sessions. afterBody is called for every request, including the
+     *	ones that failed before the servlet - postService isn't.
      */
-    public int postService(  Request rrequest, Response response ) {
-	Context ctx=rrequest.getContext();
-	if( ctx==null ) return 0;
-
-	StandardManager sm= getManager( ctx );
-	HttpSession sess=rrequest.getSession(false);
+    public int afterBody( Request rrequest, Response response ) {
+	HttpSession sess=(HttpSession)rrequest.getNote( session_note );
 	if( sess == null ) return 0;
+	rrequest.setNote( session_note, null );
 
-	sm.release( sess );
+	Context ctx=rrequest.getContext();
+	if( ctx==null ) return 0;
+	getManager( ctx ).release( sess );
 	return 0;
     }
 
@@ -214,8 +279,20 @@ public final class StandardSessionInterceptor  extends BaseInterceptor {
 	}
 
 	// init is called after all context properties are set.
+	sm.setContext( ctx );
 	sm.setSessionTimeOut( ctx.getSessionTimeOut() );
 	sm.setDistributable( ctx.isDistributable() );
+	if( codec != null )
+	    sm.setSessionCodec( codec );
+
+	if( persistent || passivateIdle >= 0 || maxResident >= 0 ) {
+	    sm.setSessionFile( new File( ctx.getWorkDir(), "SESSIONS.dat" ));
+	    sm.setPassivateIdle( passivateIdle );
+	    sm.setMaxResident( maxResident );
+	    ServletLoader loader=ctx.getServletLoader();
+	    if( loader != null )
+		sm.setClassLoader( loader.getClassLoader() );
+	}
 
 	try {
 	    sm.start();
@@ -0,0 +1,292 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.util;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * The cookies of a request, parsed from all the Cookie headers in one
+ * pass over the bytes. Only the positions of names and values are
+ * recorded: Strings and Cookie objects are created when asked for, and
+ * findCookieValue() doesn't create any Cookie.
+ *
+ * The buffers are kept when the object is recycled.
+ *
+ * Like the old StringTokenizer code, pairs are separated by ';', names
+ * and values are trimmed and RFC 2109 quotes are removed from values.
+ * Names that would be rejected by the Cookie constructor are skipped,
+ * that includes the $Version, $Path and $Domain attributes.
+ */
+public final class Cookies {
+    public static final int INITIAL_SIZE=4;
+
+    /** Reserved names - see javax.servlet.http.Cookie */
+    static final String RESERVED[]= { "Comment", "Discard", "Domain",
+				      "Expires", "Max-Age", "Path",
+				      "Secure", "Version" };
+
+    // copy of the header values
+    private byte buf[]=new byte[256];
+    // name start, name end, value start, value end
+    private int pos[]=new int[ 4 * INITIAL_SIZE ];
+    private Cookie cookies[]=new Cookie[ INITIAL_SIZE ];
+    private int count;
+
+    public Cookies() {
+    }
+
+    public void recycle() {
+	for( int i=0; i< count; i++ )
+	    cookies[i]=null;
+	count=0;
+    }
+
+    /** Parse all the "Cookie" headers
+     */
+    public void processCookies( MimeHeaders headers ) {
+	recycle();
+	int len=0;
+	for( int i=headers.findHeader( "cookie", 0 ); i >= 0;
+	     i=headers.findHeader( "cookie", i + 1 ) ) {
+	    int start=len;
+	    len=append( headers.getField( i ), len );
+	    parse( start, len );
+	}
+    }
+
+    /** Number of cookies
+     */
+    public int getCount() {
+	return count;
+    }
+
+    public Cookie getCookie( int idx ) {
+	if( idx < 0 || idx >= count )
+	    return null;
+	if( cookies[idx]==null )
+	    cookies[idx]=new Cookie( getName( idx ), getValue( idx ) );
+	return cookies[idx];
+    }
+
+    public String getName( int idx ) {
+	int p=idx * 4;
+	return new String( buf, 0, pos[p], pos[p+1] - pos[p] );
+    }
+
+    /** The value as received - if a Cookie was created the servlet may
+     *  have changed its value, use getCookie( idx ).getValue() for that.
+     */
+    public String getValue( int idx ) {
+	int p=idx * 4;
+	return new String( buf, 0, pos[p+2], pos[p+3] - pos[p+2] );
+    }
+
+    /** Position of the first cookie named name at or after starting,
+     *  or -1. Names are case sensitive.
+     */
+    public int findCookie( String name, int starting ) {
+	int len=name.length();
+	for( int i=starting; i< count; i++ ) {
+	    int p=i * 4;
+	    int off=pos[p];
+	    if( pos[p+1] - off != len )
+		continue;
+	    int j=0;
+	    while( j < len && buf[off + j]== name.charAt( j ) )
+		j++;
+	    if( j==len )
+		return i;
+	}
+	return -1;
+    }
+
+    /** Value of the first cookie named name, or null. No Cookie object
+     *  is created.
+     */
+    public String findCookieValue( String name ) {
+	int idx=findCookie( name, 0 );
+	if( idx < 0 )
+	    return null;
+	if( cookies[idx] != null )
+	    return cookies[idx].getValue();
+	return getValue( idx );
+    }
+
+    // -------------------- Parsing --------------------
+
+    /** Copy the header value at the end of buf
+     */
+    private int append( MimeHeaderField mh, int len ) {
+	if( mh.getValueType()==MimeHeaderField.T_BYTES ) {
+	    MessageBytes mb=mh.getValueBytes();
+	    int n=mb.getLength();
+	    ensure( len + n );
+	    System.arraycopy( mb.getBytes(), mb.getOffset(), buf, len, n );
+	    return len + n;
+	}
+	String s=mh.getValue();
+	if( s==null )
+	    return len;
+	int n=s.length();
+	ensure( len + n );
+	s.getBytes( 0, n, buf, len );
+	return len + n;
+    }
+
+    private void ensure( int size ) {
+	if( size <= buf.length )
+	    return;
+	byte tmp[]=new byte[ size * 2 ];
+	System.arraycopy( buf, 0, tmp, 0, buf.length );
+	buf=tmp;
+    }
+
+    private void parse( int start, int end ) {
+	int i=start;
+	while( i < end ) {
+	    i=skipSpaces( i, end );
+	    int ns=i;
+	    while( i < end && buf[i] != '=' && buf[i] != ';' )
+		i++;
+	    int ne=trimEnd( ns, i );
+	    if( i >= end || buf[i]==';' ) {
+		// we have a bad cookie.... just let it go
+		i++;
+		continue;
+	    }
+	    i=skipSpaces( i + 1, end );
+	    int vs=i;
+	    while( i < end && buf[i] != ';' )
+		i++;
+	    int ve=trimEnd( vs, i );
+	    i++;
+
+	    if( ve - vs >= 2 &&
+		( ( buf[vs]=='"' && buf[ve-1]=='"' ) ||
+		  ( buf[vs]=='\'' && buf[ve-1]=='\'' ) ) ) {
+		vs++;
+		ve--;
+	    }
+	    if( isToken( ns, ne ) )
+		add( ns, ne, vs, ve );
+	}
+    }
+
+    private void add( int ns, int ne, int vs, int ve ) {
+	if( count >= cookies.length ) {
+	    Cookie tmp[]=new Cookie[ count * 2 ];
+	    System.arraycopy( cookies, 0, tmp, 0, count );
+	    cookies=tmp;
+	    int tmpPos[]=new int[ count * 8 ];
+	    System.arraycopy( pos, 0, tmpPos, 0, count * 4 );
+	    pos=tmpPos;
+	}
+	int p=count * 4;
+	pos[p]=ns;
+	pos[p+1]=ne;
+	pos[p+2]=vs;
+	pos[p+3]=ve;
+	count++;
+    }
+
+    /** Same check as the Cookie constructor, without the exception
+     */
+    private boolean isToken( int start, int end ) {
+	if( end <= start || buf[start]=='$' )
+	    return false;
+	for( int i=start; i< end; i++ ) {
+	    int c=buf[i] & 0xff;
+	    if( c < 0x20 || c >= 0x7f || c==',' || c==';' || c==' ' )
+		return false;
+	}
+	for( int i=0; i< RESERVED.length; i++ ) {
+	    if( equalsIgnoreCase( RESERVED[i], start, end ) )
+		return false;
+	}
+	return true;
+    }
+
+    private boolean equalsIgnoreCase( String s, int start, int end ) {
+	if( s.length() != end - start )
+	    return false;
+	for( int i=start; i< end; i++ ) {
+	    if( Ascii.toLower( buf[i] ) != Ascii.toLower( s.charAt( i - start ) ) )
+		return false;
+	}
+	return true;
+    }
+
+    private int skipSpaces( int i, int end ) {
+	while( i < end && ( buf[i]==' ' || buf[i]=='\t' ) )
+	    i++;
+	return i;
+    }
+
+    private int trimEnd( int start, int end ) {
+	while( end > start && ( buf[end-1]==' ' || buf[end-1]=='\t' ) )
+	    end--;
+	return end;
+    }
+}
@@ -108,6 +108,9 @@ public class DateTool {
      */
     public final static String OLD_COOKIE_PATTERN = "EEE, dd-MMM-yyyy HH:mm:ss z";
 
+    // SimpleDateFormat is not thread safe - synchronize on the format
+    // object, or use the static methods.
+
     /** DateFormat to be used to format dates
      */
     public final static SimpleDateFormat rfc1123Format =
@@ -131,18 +134,104 @@ public class DateTool {
 	asctimeFormat.setTimeZone(GMT_ZONE);
     }
     
-    private static String rfc1123DS;
-    private static long   rfc1123Sec;
+    // last formatted date, and the current date. Immutable, replaced
+    // when the second changes - no lock to read them.
+    private static volatile FormattedDate lastDate=
+	new FormattedDate( Long.MIN_VALUE, null );
+    private static volatile FormattedDate currentDate=
+	new FormattedDate( Long.MIN_VALUE, null );
 
-    /**
+    /** Format a date in RFC 1123 format. The last result is reused
+     *	for dates in the same second.
      */
     public static String format1123( Date d ) {
-        long dt = d.getTime() % 1000;
-        if ((rfc1123DS != null) && (dt == rfc1123Sec))
-                return rfc1123DS;
+	return format1123( d.getTime() );
+    }
+
+    public static String format1123( long t ) {
+	long sec=seconds( t );
+	FormattedDate fd=lastDate;
+	if( fd.sec != sec ) {
+	    fd=new FormattedDate( sec, format( rfc1123Format, t ));
+	    lastDate=fd;
+	}
+	return fd.s;
+    }
+
+    /** The current time in RFC 1123 format, formatted at most once
+     *	per second.
+     */
+    public static String getCurrentDate() {
+	return getCurrent().s;
+    }
+
+    /** The current date as ISO-8859-1 bytes - shared, don't modify
+     */
+    public static byte[] getCurrentDateBytes() {
+	return getCurrent().b;
+    }
+
+    private static FormattedDate getCurrent() {
+	long now=System.currentTimeMillis();
+	long sec=seconds( now );
+	FormattedDate fd=currentDate;
+	if( fd.sec != sec ) {
+	    fd=new FormattedDate( sec, format( rfc1123Format, now ));
+	    currentDate=fd;
+	}
+	return fd;
+    }
+
+    private static long seconds( long t ) {
+	return t >= 0 ? t / 1000 : ( t - 999 ) / 1000;
+    }
+
+    /** Format with a shared DateFormat
+     */
+    public static String format( DateFormat df, long t ) {
+	synchronized( df ) {
+	    return df.format( new Date( t ));
+	}
+    }
+
+    /** Parse a HTTP date ( RFC 1123, RFC 1036 or asctime format ).
+     *	Return -1 if the date is not valid.
+     */
+    public static long parseDate( String s ) {
+	Date date=parse( rfc1123Format, s );
+	if( date==null )
+	    date=parse( rfc1036Format, s );
+	if( date==null )
+	    date=parse( asctimeFormat, s );
+	return date==null ? -1 : date.getTime();
+    }
+
+    private static Date parse( DateFormat df, String s ) {
+	try {
+	    synchronized( df ) {
+		return df.parse( s );
+	    }
+	} catch( ParseException ex ) {
+	} catch( StringIndexOutOfBoundsException ex ) {
+	}
+	return null;
+    }
+
+    static final class FormattedDate {
+	final long sec;
+	final String s;
+	final byte b[];
 
-        rfc1123DS  = rfc1123Format.format( d );
-        rfc1123Sec = dt;
-        return rfc1123DS;
+	FormattedDate( long sec, String s ) {
+	    this.sec=sec;
+	    this.s=s;
+	    if( s==null ) {
+		b=null;
+	    } else {
+		b=new byte[ s.length() ];
+		for( int i=0; i<b.length; i++ )
+		    b[i]=(byte)s.charAt( i );
+	    }
+	}
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.util;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * GZIP output stream using pooled Deflaters.
+ *
+ * java.util.zip.GZIPOutputStream creates a new Deflater ( with its native
+ * memory ) for each stream. This one takes a Deflater and the output
+ * buffer from a pool and returns them in finish() or release().
+ *
+ * flush() will flush the compressed data written so far ( SYNC_FLUSH ).
+ */
+public class GzipOutputStream extends OutputStream {
+    static final int BUFFER_SIZE=8*1024;
+    static final int POOL_SIZE=64;
+
+    static final int GZIP_MAGIC=0x8b1f;
+    static final byte HEADER[] = {
+	(byte) GZIP_MAGIC, (byte)( GZIP_MAGIC >> 8 ),
+	Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff
+    };
+
+    // Codec objects not returned to the pool ( full ) are released by
+    // the GC
+    static SimplePool pool=new SimplePool( POOL_SIZE );
+
+    static int level=Deflater.DEFAULT_COMPRESSION;
+
+    OutputStream out;
+    Codec codec;
+    CRC32 crc=new CRC32();
+    long total=0;
+    boolean headerSent=false;
+
+    public GzipOutputStream( OutputStream out ) {
+	this.out=out;
+	codec=(Codec)pool.get();
+	if( codec==null )
+	    codec=new Codec();
+    }
+
+    /** Compression level for new Deflaters
+     */
+    public static void setLevel( int l ) {
+	level=l;
+    }
+
+    public void write( int b ) throws IOException {
+	byte one[]=new byte[1];
+	one[0]=(byte)b;
+	write( one, 0, 1 );
+    }
+
+    public void write( byte b[], int off, int len ) throws IOException {
+	if( codec==null )
+	    throw new IOException( "Stream finished" );
+	if( len == 0 ) return;
+	writeHeader();
+	crc.update( b, off, len );
+	total+=len;
+	Deflater def=codec.def;
+	def.setInput( b, off, len );
+	while( ! def.needsInput() )
+	    deflate( Deflater.NO_FLUSH );
+    }
+
+    public void flush() throws IOException {
+	if( codec==null ) return;
+	writeHeader();
+	deflate( Deflater.SYNC_FLUSH );
+	out.flush();
+    }
+
+    /** Write the remaining data and the trailer, and return the
+     *	Deflater to the pool. The underlying stream is not closed.
+     */
+    public void finish() throws IOException {
+	if( codec==null ) return;
+	writeHeader();
+	Deflater def=codec.def;
+	def.finish();
+	while( ! def.finished() )
+	    deflate( Deflater.NO_FLUSH );
+	byte trailer[]=new byte[8];
+	writeInt( (int)crc.getValue(), trailer, 0 );
+	writeInt( (int)total, trailer, 4 );
+	out.write( trailer );
+	release();
+    }
+
+    public void close() throws IOException {
+	finish();
+	out.close();
+    }
+
+    /** Return the Deflater to the pool without finishing the stream
+     *	( i.e. on error )
+     */
+    public void release() {
+	if( codec==null ) return;
+	codec.def.reset();
+	pool.put( codec );
+	codec=null;
+    }
+
+    // -------------------- Implementation --------------------
+
+    private void writeHeader() throws IOException {
+	if( headerSent ) return;
+	headerSent=true;
+	out.write( HEADER );
+    }
+
+    private void deflate( int flush ) throws IOException {
+	Deflater def=codec.def;
+	byte buf[]=codec.buf;
+	int n;
+	do {
+	    n=def.deflate( buf, 0, buf.length, flush );
+	    if( n > 0 )
+		out.write( buf, 0, n );
+	} while( n == buf.length );
+    }
+
+    private static void writeInt( int i, byte b[], int off ) {
+	b[off]=(byte)i;
+	b[off+1]=(byte)( i >> 8 );
+	b[off+2]=(byte)( i >> 16 );
+	b[off+3]=(byte)( i >> 24 );
+    }
+
+    /** A Deflater and its buffer
+     */
+    static final class Codec {
+	Deflater def=new Deflater( level, true ); // raw deflate
+	byte buf[]=new byte[BUFFER_SIZE];
+    }
+}
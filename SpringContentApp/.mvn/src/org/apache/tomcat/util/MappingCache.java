@@ -0,0 +1,281 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded cache for mapping results ( path -> target ), safe to use
+ * from many threads without a global lock.
+ *
+ * Replacement uses the CLOCK algorithm: a hit only sets a flag on the
+ * entry, and the eviction "hand" walks the entries, removing the first
+ * one that was not used since the last pass. This approximates LRU
+ * without reordering a list on each get.
+ *
+ * A path is admitted only on the second miss in a window of recent
+ * misses. Paths seen once ( ids in the URL, scanners ) will not push
+ * the popular entries out of the cache.
+ *
+ * @see PrefixMapper
+ */
+public class MappingCache {
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    int maxSize=DEFAULT_MAX_SIZE;
+
+    ConcurrentHashMap entries=new ConcurrentHashMap();
+
+    // "Seen once" filter - one bit for each hash bucket, cleared after
+    // maxSize misses. Updates are not atomic: a lost bit only delays
+    // the admission of a path.
+    long doorkeeper[];
+    AtomicInteger doorkeeperCount=new AtomicInteger();
+
+    // Eviction hand - only used with the lock held
+    Object evictLock=new Object();
+    Iterator hand;
+
+    AtomicLong hits=new AtomicLong();
+    AtomicLong misses=new AtomicLong();
+    AtomicLong evictions=new AtomicLong();
+    AtomicLong invalidations=new AtomicLong();
+
+    // incremented on each invalidation
+    AtomicInteger generation=new AtomicInteger();
+
+    public MappingCache() {
+	setMaxSize( DEFAULT_MAX_SIZE );
+    }
+
+    public MappingCache( int maxSize ) {
+	setMaxSize( maxSize );
+    }
+
+    // -------------------- Properties --------------------
+
+    /** Max number of entries
+     */
+    public void setMaxSize( int size ) {
+	if( size < 1 ) size=1;
+	maxSize=size;
+	// 4 bits for each entry keeps the false positives low
+	doorkeeper=new long[ ( size * 4 + 63 ) / 64 ];
+	trim();
+    }
+
+    public int getMaxSize() {
+	return maxSize;
+    }
+
+    // -------------------- Counters --------------------
+
+    public long getHits() {
+	return hits.get();
+    }
+
+    public long getMisses() {
+	return misses.get();
+    }
+
+    public long getEvictions() {
+	return evictions.get();
+    }
+
+    /** Entries removed because the mappings changed
+     */
+    public long getInvalidations() {
+	return invalidations.get();
+    }
+
+    public int getEntryCount() {
+	return entries.size();
+    }
+
+    /** Hits / ( hits + misses ), 0 if the cache wasn't used
+     */
+    public double getHitRatio() {
+	long h=hits.get();
+	long total=h + misses.get();
+	return total==0 ? 0 : (double)h / total;
+    }
+
+    public String toString() {
+	return "MappingCache( entries=" + getEntryCount() + " hits=" +
+	    getHits() + " misses=" + getMisses() + " evictions=" +
+	    getEvictions() + " invalidations=" + getInvalidations() + ")";
+    }
+
+    // -------------------- Cache --------------------
+
+    public Object get( String path ) {
+	Entry e=(Entry)entries.get( path );
+	if( e==null ) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	if( ! e.used ) e.used=true;
+	hits.incrementAndGet();
+	return e.target;
+    }
+
+    /** Current generation - read it before computing a mapping and
+     *	pass it to put().
+     */
+    public int getGeneration() {
+	return generation.get();
+    }
+
+    /** Add the result of a mapping. The path is not cached the first
+     *	time it is seen, or if the mappings changed since gen.
+     */
+    public void put( String path, Object target, int gen ) {
+	if( gen != generation.get() || ! admit( path ) )
+	    return;
+	Entry e=new Entry( target );
+	if( entries.put( path, e ) == null )
+	    trim();
+	// invalidated while we were adding it
+	if( gen != generation.get() )
+	    entries.remove( path, e );
+    }
+
+    /** Remove all entries for paths starting with prefix. Called when
+     *	a mapping is added or removed - only the results for paths under
+     *	the changed mapping can be different.
+     */
+    public void invalidate( String prefix ) {
+	generation.incrementAndGet();
+	Iterator it=entries.keySet().iterator();
+	while( it.hasNext() ) {
+	    String s=(String)it.next();
+	    if( s.startsWith( prefix ) ) {
+		it.remove();
+		invalidations.incrementAndGet();
+	    }
+	}
+    }
+
+    public void clear() {
+	generation.incrementAndGet();
+	int n=entries.size();
+	entries.clear();
+	invalidations.addAndGet( n );
+    }
+
+    // -------------------- Implementation --------------------
+
+    boolean admit( String path ) {
+	long dk[]=doorkeeper;
+	int bit=( path.hashCode() & 0x7fffffff ) % ( dk.length * 64 );
+	long mask=1L << ( bit & 63 );
+	if( ( dk[ bit >> 6 ] & mask ) != 0 )
+	    return true;
+	dk[ bit >> 6 ] |= mask;
+	if( doorkeeperCount.incrementAndGet() >= maxSize ) {
+	    // start a new window
+	    doorkeeperCount.set( 0 );
+	    Arrays.fill( dk, 0 );
+	}
+	return false;
+    }
+
+    /** Evict entries until we are under maxSize.
+     */
+    void trim() {
+	if( entries.size() <= maxSize )
+	    return;
+	synchronized( evictLock ) {
+	    // each entry gets a second chance - 2 passes at most
+	    int steps=2 * entries.size() + 1;
+	    while( entries.size() > maxSize && steps-- > 0 ) {
+		if( hand==null || ! hand.hasNext() ) {
+		    hand=entries.entrySet().iterator();
+		    if( ! hand.hasNext() ) break;
+		}
+		Map.Entry me=(Map.Entry)hand.next();
+		Entry e=(Entry)me.getValue();
+		if( e.used ) {
+		    e.used=false;
+		} else {
+		    hand.remove();
+		    evictions.incrementAndGet();
+		}
+	    }
+	}
+    }
+
+    static class Entry {
+	final Object target;
+	// set on hit, cleared by the eviction hand
+	volatile boolean used;
+
+	Entry( Object target ) {
+	    this.target=target;
+	}
+    }
+}
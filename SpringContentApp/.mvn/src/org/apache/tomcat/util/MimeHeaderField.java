@@ -113,12 +113,12 @@ public class MimeHeaderField {
     protected int type = T_NULL;
     protected int nameType=T_NULL;
     
-    protected static final int T_NULL = 0;
-    protected static final int T_STR  = 1;
-    protected static final int T_INT  = 2;
-    protected static final int T_DATE = 3;
-    protected static final int T_BYTES = 4;
-    protected static final int T_CHARS = 5;
+    public static final int T_NULL = 0;
+    public static final int T_STR  = 1;
+    public static final int T_INT  = 2;
+    public static final int T_DATE = 3;
+    public static final int T_BYTES = 4;
+    public static final int T_CHARS = 5;
 
     /**
      * Creates a new, uninitialized header field.
@@ -327,7 +327,7 @@ public class MimeHeaderField {
     }
     
     String formatDate( Date value ) {
-	return DateTool.format1123(value);
+	return DateTool.format1123(value.getTime());
     }
 
     long parseDate( String s ) {
@@ -338,22 +338,9 @@ public class MimeHeaderField {
 
     long parseDate( MessageString value ) {
 	String dateString=value.toString();
-	Date date=null;
-        try {
-            date = DateTool.rfc1123Format.parse(dateString);
-	    return date.getTime();
-	} catch (ParseException e) { }
-
-        try {
-	    date = DateTool.rfc1036Format.parse(dateString);
-	    return date.getTime();
-	} catch (ParseException e) { }
-	
-        try {
-            date = DateTool.asctimeFormat.parse(dateString);
-	    return date.getTime();
-        } catch (ParseException pe) {
-        }
+	long date=DateTool.parseDate( dateString );
+	if( date != -1 )
+	    return date;
 	String msg = sm.getString("httpDate.pe", dateString);
 	throw new IllegalArgumentException(msg);
     }
@@ -376,4 +363,57 @@ public class MimeHeaderField {
 	}
     }
 
+    /**
+     * Returns true if both fields have the same name, ignoring case.
+     * Byte names are compared in place.
+     */
+    public boolean nameEquals(MimeHeaderField f) {
+	if( nameType == T_BYTES && f.nameType == T_BYTES )
+	    return nameB.equalsIgnoreCase( f.nameB.getBytes(),
+					   f.nameB.getOffset(),
+					   f.nameB.getLength() );
+	if( f.nameType == T_BYTES )
+	    return f.nameEquals( getName() );
+	return nameEquals( f.getName() );
+    }
+
+    /**
+     * Returns a case-insensitive hash of the name, the same value
+     * hash( getName() ) would return but without creating a String.
+     */
+    public int nameHash() {
+	int h=0;
+	switch (nameType) {
+	case T_STR:
+	    return hash( name.toString() );
+	case T_CHARS: {
+	    char c[]=nameC.chars;
+	    int end=nameC.offset + nameC.length;
+	    for( int i=nameC.offset; i< end; i++ )
+		h = 31 * h + Ascii.toLower( c[i] );
+	    return h;
+	}
+	case T_BYTES: {
+	    byte b[]=nameB.getBytes();
+	    int end=nameB.getOffset() + nameB.getLength();
+	    for( int i=nameB.getOffset(); i< end; i++ )
+		h = 31 * h + Ascii.toLower( b[i] );
+	    return h;
+	}
+	default:
+	    return 0;
+	}
+    }
+
+    /**
+     * Case-insensitive hash of a header name.
+     */
+    public static int hash(String s) {
+	int h=0;
+	int len=s.length();
+	for( int i=0; i< len; i++ )
+	    h = 31 * h + Ascii.toLower( s.charAt( i ) );
+	return h;
+    }
+
 }
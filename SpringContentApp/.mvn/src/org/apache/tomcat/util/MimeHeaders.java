@@ -112,8 +112,13 @@ import java.util.NoSuchElementException;
  *  TODO:
  *  XXX one-buffer parsing - for http ( other protocols don't need that )
  *  XXX remove unused methods
- *  XXX External enumerations, with 0 GC.
  *  XXX use HeaderName ID
+ *
+ *  Lookups by name go through a small open-addressed index over the
+ *  names, built on the first lookup and dropped on clear() or remove.
+ *  Names are hashed and compared ignoring case, in place for byte
+ *  fields. Use findHeader( name, starting ) to walk all the fields
+ *  with a name without creating any object.
  *  
  * 
  * @author dac@eng.sun.com
@@ -136,6 +141,17 @@ public class MimeHeaders {
      */
     private int count;
 
+    /** Name index - position + 1 of the first field with each name,
+     *  0 for an empty slot. Power of 2 size, linear probing.
+     */
+    private int slots[];
+    /** Name hash of each indexed field */
+    private int hashes[] = new int[DEFAULT_HEADER_SIZE];
+    /** Next field with the same name, -1 at the end of the chain */
+    private int next[] = new int[DEFAULT_HEADER_SIZE];
+    /** Fields 0..indexed-1 are in the index */
+    private int indexed;
+
     /**
      * Creates a new MimeHeaders object using a default buffer size.
      */
@@ -150,6 +166,7 @@ public class MimeHeaders {
 	    headers[i].reset();
 	}
 	count = 0;
+	dropIndex();
     }
 
     /**
@@ -174,12 +191,101 @@ public class MimeHeaders {
      * in the header, an arbitrary one is returned.
      */
     public MimeHeaderField find(String name) {
-        for (int i = 0; i < count; i++) {
-	    if (headers[i].nameEquals(name)) {
-                return headers[i];
-            }
-        }
-        return null;
+	int pos = findHeader( name, 0 );
+	return pos < 0 ? null : headers[pos];
+    }
+
+    /**
+     * Returns the position of the first field with the given name
+     * at or after <code>starting</code>, or -1. Fields with the same
+     * name are found in the order they were added:
+     * <pre>
+     *   for( int i=h.findHeader( name, 0 ); i>=0; i=h.findHeader( name, i+1 ))
+     *       ... h.getField( i ) ...
+     * </pre>
+     */
+    public int findHeader(String name, int starting) {
+	if( name==null )
+	    return -1;
+	updateIndex();
+	int h=MimeHeaderField.hash( name );
+	int mask=slots.length - 1;
+	int s=spread( h ) & mask;
+	int pos;
+	while( (pos=slots[s] - 1) >= 0 ) {
+	    if( hashes[pos]==h && headers[pos].nameEquals( name ) ) {
+		while( pos >= 0 && pos < starting )
+		    pos=next[pos];
+		if( pos >= 0 )
+		    return pos;
+		break;
+	    }
+	    s=(s + 1) & mask;
+	}
+	// fields added without a name yet are not indexed
+	for( int i=( starting > indexed ) ? starting : indexed; i < count; i++ ) {
+	    if( headers[i].nameEquals( name ) )
+		return i;
+	}
+	return -1;
+    }
+
+    // -------------------- Name index --------------------
+
+    private static int spread( int h ) {
+	return h ^ ( h >>> 16 );
+    }
+
+    /** Add the fields appended since the last lookup to the index
+     */
+    private void updateIndex() {
+	if( slots==null || count * 2 > slots.length ) {
+	    int size=16;
+	    while( size < count * 2 )
+		size <<= 1;
+	    slots=new int[size];
+	    indexed=0;
+	} else if( indexed == count ) {
+	    return;
+	}
+	if( hashes.length < count ) {
+	    int tmp[]=new int[headers.length];
+	    System.arraycopy( hashes, 0, tmp, 0, indexed );
+	    hashes=tmp;
+	    tmp=new int[headers.length];
+	    System.arraycopy( next, 0, tmp, 0, indexed );
+	    next=tmp;
+	}
+	int mask=slots.length - 1;
+	for( ; indexed < count; indexed++ ) {
+	    MimeHeaderField mh=headers[indexed];
+	    if( mh.getNameType() == MimeHeaderField.T_NULL )
+		break; // name not set yet - next time
+	    int h=mh.nameHash();
+	    hashes[indexed]=h;
+	    next[indexed]=-1;
+	    int s=spread( h ) & mask;
+	    int pos;
+	    while( (pos=slots[s] - 1) >= 0 ) {
+		if( hashes[pos]==h && mh.nameEquals( headers[pos] ) ) {
+		    while( next[pos] >= 0 )
+			pos=next[pos];
+		    next[pos]=indexed;
+		    break;
+		}
+		s=(s + 1) & mask;
+	    }
+	    if( pos < 0 )
+		slots[s]=indexed + 1;
+	}
+    }
+
+    private void dropIndex() {
+	if( indexed > 0 ) {
+	    for( int i=0; i < slots.length; i++ )
+		slots[i]=0;
+	}
+	indexed=0;
     }
 
     /**
@@ -301,31 +407,42 @@ public class MimeHeaders {
      * @return array values of the fields, or null if none found
      */
     public String[] getHeaders(String name) {
-	Vector values = getHeadersVector(name);
+	int n = getFieldCount(name);
 
-	if (values.size() > 0) {
-	    String retval[] = new String[values.size()];
+	if (n > 0) {
+	    String retval[] = new String[n];
+	    int pos = -1;
 
-	    for (int i = 0; i < retval.length; i++)
-		retval[i] = (String)values.elementAt(i);
+	    for (int i = 0; i < n; i++) {
+		pos = findHeader(name, pos + 1);
+		retval[i] = headers[pos].getValue();
+	    }
 	    return retval;
 	}
 	return null;
     }
 
     /** Same as getHeaders, return a Vector - avoid Vector-[]-Vector conversion
+     *  @deprecated use values() or findHeader()
      */
     public Vector getHeadersVector(String name) {
 	Vector values = new Vector();
 
-	for (int i = 0; i < count; i++) {
-	    if (headers[i].nameEquals(name))
-		values.addElement(headers[i].getValue());
-	}
+	for (int i = findHeader(name, 0); i >= 0; i = findHeader(name, i + 1))
+	    values.addElement(headers[i].getValue());
 
 	return values;
     }
 
+    /**
+     * Returns an enumeration of the string values of all the headers
+     * with the specified name. The values are read as the enumeration
+     * advances, no copy is made.
+     */
+    public Enumeration values(String name) {
+	return new MimeHeadersValues(this, name);
+    }
+
     /**
      * Returns the integer value of a header with the specified name.
      * @param name the header field name
@@ -377,9 +494,8 @@ public class MimeHeaders {
     public int getFieldCount (String name) {
 	int retval = 0;
 
-	for (int i = 0; i < count; i++)
-	    if (headers [i].nameEquals (name))
-		retval++;
+	for (int i = findHeader(name, 0); i >= 0; i = findHeader(name, i + 1))
+	    retval++;
 
 	return retval;
     }
@@ -390,6 +506,11 @@ public class MimeHeaders {
      * @param name the name of the header field to be removed
      */
     public void removeHeader(String name) {
+	if (findHeader(name, 0) < 0)
+	    return;
+	// the positions change
+	dropIndex();
+
         // XXX
         // warning: rather sticky code; heavily tuned
 
@@ -488,6 +609,32 @@ public class MimeHeaders {
     }
 }
 
+/** Values of the fields with one name, following the name index
+ */
+class MimeHeadersValues implements Enumeration {
+    private MimeHeaders headers;
+    private String name;
+    private int pos;
+
+    MimeHeadersValues(MimeHeaders headers, String name) {
+	this.headers=headers;
+	this.name=name;
+	pos=headers.findHeader( name, 0 );
+    }
+
+    public boolean hasMoreElements() {
+	return pos >= 0;
+    }
+
+    public Object nextElement() {
+	if( pos < 0 )
+	    throw new NoSuchElementException();
+	String value=headers.getField( pos ).getValue();
+	pos=headers.findHeader( name, pos + 1 );
+	return value;
+    }
+}
+
 class MimeHeadersEnumerator implements Enumeration {
     private static StringManager sm =
         StringManager.getManager("org.apache.tomcat.util");
@@ -76,119 +76,170 @@ import java.util.*;
  *  XXX make sure the code is useable as a general path mapper - or at least a bridge
  *  can be created between SimpleMapper and a patern matcher like the one in XPath
  *
+ *  The maps are compiled into a trie ( one node per char ), matching
+ *  is a single walk over the path - no substrings, no locks. The trie
+ *  is immutable and is rebuilt on the first match after a change, so
+ *  adding or removing mappings doesn't affect requests in progress.
+ *
  * @author Costin Manolache
  */
 public class PrefixMapper {
-    // host -> PrefixMapper for virtual hosts
-    Hashtable vhostMaps=new Hashtable();
+    // host -> PrefixMapper for virtual hosts. Copy on write, lookups
+    // don't lock.
+    volatile HashMap vhostMaps=new HashMap();
 
 
     Hashtable prefixMappedServlets;
     Hashtable exactMappedServlets;
 
-        // Cache the most recent mappings
-    // Disabled by default ( since we haven't implemented
-    // capacity and remove ). 
-    Hashtable mapCache;
-    // By using TreeMap instead of SimpleMap you go from 143 to 161 RPS
-    // ( at least on my machine )
-    // Interesting - even if SimpleHashtable is faster than Hashtable
-    // most of the time, the average is very close for both - it seems
-    // that while the synchronization in Hashtable is locking, GC have
-    // a chance to work, while in SimpleHashtable case GC creates big
-    // peeks. That will go away with more reuse, so we should use SH.
-
-    // An alternative to explore after everything works is to use specialized
-    // mappers ( extending this one for example ) using 1.2 collections
-    // TreeMap mapCache;
+    // Compiled form of the two maps, null after a change
+    volatile Node trie;
+
+    // Cache the most recent mappings. Bounded, and the entries
+    // under a mapping are invalidated when the mapping changes.
+    // With the trie a miss costs about the same as a hit, the cache
+    // is disabled by default.
+    MappingCache mapCache;
     boolean mapCacheEnabled=false;
+    int mapCacheSize=MappingCache.DEFAULT_MAX_SIZE;
 
     
     public PrefixMapper() {
 	prefixMappedServlets=new Hashtable();
 	exactMappedServlets=new Hashtable();
-	mapCache=new Hashtable();
+	mapCache=new MappingCache( mapCacheSize );
     }
 
     public void setMapCache( boolean v ) {
 	mapCacheEnabled=v;
+	if( ! v ) mapCache.clear();
+	Iterator it=vhostMaps.values().iterator();
+	while( it.hasNext() )
+	    ((PrefixMapper)it.next()).setMapCache( v );
     }
-    
-//     public void removeMapping( String host, String path ) {
-// 	// XXX not implemented
-//     }
 
-    /** Remove all mappings matching path
+    /** Max number of cached mapping results ( per host )
      */
-    public void removeAllMappings( String host, String path ) {
-	PrefixMapper vmap=this;
-	if( host!=null ) {
-	    host=host.toLowerCase();
-	    vmap=(PrefixMapper)vhostMaps.get(host);
-	}
-	
-	// remove all paths starting with path
-	Enumeration en=vmap.prefixMappedServlets.keys();
-	while( en.hasMoreElements() ) {
-	    String s=(String)en.nextElement();
-	    if( s.startsWith( path ))
-		vmap.prefixMappedServlets.remove( s );
-	}
-	
-	en=vmap.exactMappedServlets.keys();
-	while( en.hasMoreElements() ) {
-	    String s=(String)en.nextElement();
-	    if( s.startsWith( path ))
-		vmap.exactMappedServlets.remove( s );
-	}
-	// reset the cache
-	mapCache=new Hashtable();
-	
+    public void setMapCacheSize( int size ) {
+	mapCacheSize=size;
+	mapCache.setMaxSize( size );
+	Iterator it=vhostMaps.values().iterator();
+	while( it.hasNext() )
+	    ((PrefixMapper)it.next()).setMapCacheSize( size );
     }
 
-    /**
+    /** Return the mapping cache for a host ( null for the default
+     *	server ), or null if the host has no mappings.
      */
-    void addMapping( String path, Object target ) {
-	prefixMappedServlets.put( path, target);
+    public MappingCache getMapCache( String host ) {
+	PrefixMapper vmap=getHostMap( host );
+	return vmap==null ? null : vmap.mapCache;
     }
 
-    /**
+    /** Remove a prefix mapping
      */
-    void addExactMapping( String path, Object target ) {
-	exactMappedServlets.put( path, target);
+    public void removeMapping( String host, String path ) {
+	PrefixMapper vmap=getHostMap( host );
+	if( vmap!=null ) vmap.removeMapping( path );
     }
-    
+
+    /** Remove an exact mapping
+     */
+    public void removeExactMapping( String host, String path ) {
+	PrefixMapper vmap=getHostMap( host );
+	if( vmap!=null ) vmap.removeExactMapping( path );
+    }
+
+    /** Remove all mappings matching path
+     */
+    public void removeAllMappings( String host, String path ) {
+	PrefixMapper vmap=getHostMap( host );
+	if( vmap!=null ) vmap.removeAllMappings( path );
+    }
+
     /**
      */
     public void addMapping( String host, String path, Object target ) {
 	if( host == null )
-	    prefixMappedServlets.put( path, target);
-	else {
-	    host=host.toLowerCase();
-	    PrefixMapper vmap=(PrefixMapper)vhostMaps.get( host );
-	    if( vmap == null ) {
-		vmap=new PrefixMapper();
-		vhostMaps.put( host, vmap );
-		vmap.setMapCache( mapCacheEnabled );
-	    }
-	    vmap.addMapping( path, target );
-	}
+	    addMapping( path, target );
+	else
+	    getOrCreateHostMap( host ).addMapping( path, target );
     }
 
     /**
      */
     public void addExactMapping( String host, String path, Object target ) {
 	if( host==null )
-	    exactMappedServlets.put( path, target);
-	else {
-	    host=host.toLowerCase();
-	    PrefixMapper vmap=(PrefixMapper)vhostMaps.get( host );
-	    if( vmap == null ) {
-		vmap=new PrefixMapper();
-		vhostMaps.put( host, vmap );
-	    }
-	    vmap.addExactMapping( path, target );
+	    addExactMapping( path, target );
+	else
+	    getOrCreateHostMap( host ).addExactMapping( path, target );
+    }
+
+    // -------------------- Changes for this host --------------------
+    // All changes are synchronized with compile()
+
+    synchronized void addMapping( String path, Object target ) {
+	prefixMappedServlets.put( path, target);
+	trie=null;
+	// paths under the new prefix may have mapped to a shorter one
+	mapCache.invalidate( path );
+    }
+
+    synchronized void addExactMapping( String path, Object target ) {
+	exactMappedServlets.put( path, target);
+	trie=null;
+	mapCache.invalidate( path );
+    }
+
+    synchronized void removeMapping( String path ) {
+	prefixMappedServlets.remove( path );
+	trie=null;
+	mapCache.invalidate( path );
+    }
+
+    synchronized void removeExactMapping( String path ) {
+	exactMappedServlets.remove( path );
+	trie=null;
+	mapCache.invalidate( path );
+    }
+
+    synchronized void removeAllMappings( String path ) {
+	// remove all paths starting with path
+	Enumeration en=prefixMappedServlets.keys();
+	while( en.hasMoreElements() ) {
+	    String s=(String)en.nextElement();
+	    if( s.startsWith( path ))
+		prefixMappedServlets.remove( s );
+	}
+	
+	en=exactMappedServlets.keys();
+	while( en.hasMoreElements() ) {
+	    String s=(String)en.nextElement();
+	    if( s.startsWith( path ))
+		exactMappedServlets.remove( s );
+	}
+	trie=null;
+	// drop the cached results under path
+	mapCache.invalidate( path );
+    }
+
+    PrefixMapper getHostMap( String host ) {
+	if( host==null ) return this;
+	return (PrefixMapper)vhostMaps.get( host.toLowerCase() );
+    }
+
+    synchronized PrefixMapper getOrCreateHostMap( String host ) {
+	host=host.toLowerCase();
+	PrefixMapper vmap=(PrefixMapper)vhostMaps.get( host );
+	if( vmap == null ) {
+	    vmap=new PrefixMapper();
+	    vmap.setMapCacheSize( mapCacheSize );
+	    vmap.setMapCache( mapCacheEnabled );
+	    HashMap newMaps=new HashMap( vhostMaps );
+	    newMaps.put( host, vmap );
+	    vhostMaps=newMaps;
 	}
+	return vmap;
     }
     
     
@@ -198,50 +249,133 @@ public class PrefixMapper {
      */
     public Object getLongestPrefixMatch( String host, String path ) {
 	Object container = null;
-        String s = path;
 
 	PrefixMapper myMap=null;
 	if( host!=null ) {
-	    myMap=(PrefixMapper)vhostMaps.get( host );
-	    if( myMap==null ) {
-		myMap=(PrefixMapper)vhostMaps.get( host.toLowerCase() );
+	    HashMap vmaps=vhostMaps;
+	    if( ! vmaps.isEmpty() ) {
+		myMap=(PrefixMapper)vmaps.get( host );
+		if( myMap==null ) {
+		    myMap=(PrefixMapper)vmaps.get( host.toLowerCase() );
+		}
 	    }
 	}
 	if( myMap==null ) myMap = this; // default server
 
-	
-	container=myMap.exactMappedServlets.get( path );
-	if( container != null ) return container; // and we're done!
-
 	/** Cache for request results - exploit the fact that few
 	 *  request are more "popular" than other.
 	 *  Disable it if you want to benchmark the mapper !!!
 	 */
+	int gen=0;
 	if( myMap.mapCacheEnabled ) {
+	    gen=myMap.mapCache.getGeneration();
 	    container=myMap.mapCache.get(path);
 	    if( container!=null ) return container;
 	}
-		
-	while (s.length() >= 0) {
-	    //if(debug>8) context.log( "Prefix: " + s  );
-	    container = myMap.prefixMappedServlets.get(s);
-	    
-	    if (container == null) {
-		// if empty string didn't map, time to give up
-		if ( s.length() == 0 )
-                    break;
-		s=URLUtil.removeLast( s );
-	    }  else {
-		if( myMap.mapCacheEnabled ) {
-		    // XXX implement LRU or another replacement alghoritm
-		    myMap.mapCache.put( path, container );
+
+	container=myMap.match( path );
+	if( container!=null && myMap.mapCacheEnabled ) {
+	    myMap.mapCache.put( path, container, gen );
+	}
+	return container;
+    }
+
+    /** Exact match, or the longest prefix. A prefix matches full
+     *	segments only - "/foo" matches "/foo/bar" but not "/foobar",
+     *	same as stripping the path with URLUtil.removeLast().
+     */
+    Object match( String path ) {
+	Node n=trie;
+	if( n==null ) n=compile();
+
+	Object found=n.prefix; // ""
+	int len=path.length();
+	for( int i=0; i<len; i++ ) {
+	    n=n.child( path.charAt( i ) );
+	    if( n==null ) return found;
+	    if( n.prefix != null ) {
+		// n is path[0..i]
+		int next=i+1;
+		if( next==len || path.charAt( next )=='/' ||
+		    ( next==1 && path.charAt( 0 )=='/' ))
+		    found=n.prefix;
+	    }
+	}
+	if( n.exact!=null ) return n.exact; // and we're done!
+	return found;
+    }
+
+    synchronized Node compile() {
+	if( trie!=null ) return trie;
+	Node root=new Node();
+	Enumeration en=prefixMappedServlets.keys();
+	while( en.hasMoreElements() ) {
+	    String s=(String)en.nextElement();
+	    root.add( s ).prefix=prefixMappedServlets.get( s );
+	}
+	en=exactMappedServlets.keys();
+	while( en.hasMoreElements() ) {
+	    String s=(String)en.nextElement();
+	    root.add( s ).exact=exactMappedServlets.get( s );
+	}
+	trie=root;
+	return root;
+    }
+
+    /** Trie node. Not modified after it is published.
+     */
+    static final class Node {
+	// sorted, for binary search
+	char keys[]=new char[0];
+	Node kids[]=new Node[0];
+	Object prefix;
+	Object exact;
+
+	Node child( char c ) {
+	    if( keys.length==1 ) // most nodes
+		return keys[0]==c ? kids[0] : null;
+	    int lo=0;
+	    int hi=keys.length-1;
+	    while( lo <= hi ) {
+		int mid=( lo + hi ) >>> 1;
+		char k=keys[mid];
+		if( k < c ) lo=mid+1;
+		else if( k > c ) hi=mid-1;
+		else return kids[mid];
+	    }
+	    return null;
+	}
+
+	/** Return the node for path, creating it if needed
+	 */
+	Node add( String path ) {
+	    Node n=this;
+	    for( int i=0; i<path.length(); i++ ) {
+		char c=path.charAt( i );
+		Node k=n.child( c );
+		if( k==null ) {
+		    k=new Node();
+		    n.insert( c, k );
 		}
-		return container;
+		n=k;
 	    }
+	    return n;
+	}
+
+	void insert( char c, Node k ) {
+	    int pos=0;
+	    while( pos < keys.length && keys[pos] < c ) pos++;
+	    char newKeys[]=new char[ keys.length + 1 ];
+	    Node newKids[]=new Node[ keys.length + 1 ];
+	    System.arraycopy( keys, 0, newKeys, 0, pos );
+	    System.arraycopy( kids, 0, newKids, 0, pos );
+	    newKeys[pos]=c;
+	    newKids[pos]=k;
+	    System.arraycopy( keys, pos, newKeys, pos+1, keys.length-pos );
+	    System.arraycopy( kids, pos, newKids, pos+1, kids.length-pos );
+	    keys=newKeys;
+	    kids=newKids;
 	}
-	return container;
     }
 
 }
-
- 
@@ -0,0 +1,428 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.tomcat.logging.*; 
+
+/**
+ * A thread pool with a work queue.
+ *
+ * Actions are handed to idle workers through a LinkedTransferQueue - no
+ * pool monitor is taken on the normal path. If no worker is waiting a new
+ * one is started ( up to maxThreads ), then the action is queued ( up to
+ * maxQueueSize ). When the queue is full the pool is saturated and the
+ * reject policy decides:
+ *
+ *  "wait"   - the caller waits for a worker, up to maxWait ms ( 0 = forever ).
+ *             This is the behavior of the default pool, and applies back
+ *             pressure to the acceptor. If maxWait expires the action is
+ *             rejected.
+ *  "reject" - runIt throws a PoolExhaustedException immediately, the
+ *             endpoint will drop the connection.
+ *
+ * The pool counts busy, idle and queued actions, rejected actions and the
+ * time an action waits before a worker starts it ( handoff time ).
+ *
+ * Each worker calls getInitData() once, for the first action it runs.
+ *
+ * With PoolTcpEndpoint the actions are the accept loops ( TcpWorkerThread ),
+ * so a queued action is an acceptor waiting for a thread, not a
+ * connection. With NioTcpEndpoint they are connections with a complete
+ * request head.
+ */
+public class QueueThreadPool extends ThreadPool {
+
+    public static final int MAX_QUEUE_SIZE = 100;
+
+    public static final String POLICY_WAIT = "wait";
+    public static final String POLICY_REJECT = "reject";
+
+    protected int maxQueueSize = MAX_QUEUE_SIZE;
+    protected boolean rejectWhenFull = false;
+    protected int maxWait = 0;
+
+    LinkedTransferQueue queue;
+
+    AtomicInteger threadCount=new AtomicInteger();
+    AtomicInteger threadsBusy=new AtomicInteger();
+    AtomicInteger queued=new AtomicInteger();
+    AtomicLong rejected=new AtomicLong();
+    AtomicLong handoffCount=new AtomicLong();
+    AtomicLong handoffTime=new AtomicLong(); // ns
+    volatile long maxHandoffTime=0; // ns
+
+    long lastExhaustedLog=0;
+
+    public QueueThreadPool() {
+	super();
+    }
+
+    // -------------------- Configuration --------------------
+
+    /** Max number of actions waiting for a worker.
+     */
+    public void setMaxQueueSize(int size) {
+	maxQueueSize=size;
+    }
+
+    public int getMaxQueueSize() {
+	return maxQueueSize;
+    }
+
+    /** What to do when all workers are busy and the queue is full,
+     *  "wait" or "reject"
+     */
+    public void setRejectPolicy(String policy) {
+	rejectWhenFull=POLICY_REJECT.equalsIgnoreCase( policy );
+    }
+
+    public String getRejectPolicy() {
+	return rejectWhenFull ? POLICY_REJECT : POLICY_WAIT;
+    }
+
+    /** Max time ( ms ) to wait for space in the queue, 0 for no limit.
+     */
+    public void setMaxWait(int maxWait) {
+	this.maxWait=maxWait;
+    }
+
+    public int getMaxWait() {
+	return maxWait;
+    }
+
+    // -------------------- Gauges --------------------
+
+    public int getCurrentThreadCount() {
+	return threadCount.get();
+    }
+
+    public int getCurrentThreadsBusy() {
+	return threadsBusy.get();
+    }
+
+    /** Number of actions waiting for a worker
+     */
+    public int getQueueSize() {
+	return queued.get();
+    }
+
+    /** Number of actions rejected since the pool started
+     */
+    public long getRejectedCount() {
+	return rejected.get();
+    }
+
+    /** Average time ( microseconds ) between runIt and the start of the
+     *  action in a worker.
+     */
+    public long getHandoffTime() {
+	long count=handoffCount.get();
+	if( count==0 ) return 0;
+	return handoffTime.get() / count / 1000;
+    }
+
+    /** Max handoff time ( microseconds )
+     */
+    public long getMaxHandoffTime() {
+	return maxHandoffTime / 1000;
+    }
+
+    // -------------------- Pool --------------------
+
+    public synchronized void start() {
+        adjustLimits();
+	if( maxQueueSize < 0 ) maxQueueSize=0;
+	queue=new LinkedTransferQueue();
+	stopThePool=false;
+	for( int i=0; i<minSpareThreads; i++ ) {
+	    threadCount.incrementAndGet();
+	    new Worker( this );
+	}
+    }
+
+    /**
+     * Executes a given Runnable on a thread in the pool, depending
+     * on the policy may block or throw PoolExhaustedException if the
+     * pool is saturated.
+     */
+    public void runIt(ThreadPoolRunnable r) {
+        if(null == r) {
+            throw new NullPointerException();
+        }
+        if(stopThePool) {
+            throw new IllegalStateException();
+        }
+	Task task=new Task( r );
+	if( offer( task ) )
+	    return;
+
+	// saturated
+	logExhausted();
+	if( rejectWhenFull )
+	    reject();
+	waitForWorker( task );
+    }
+
+    /**
+     * Like runIt, but returns false instead of waiting when the pool is
+     * saturated. With the "reject" policy it still throws
+     * PoolExhaustedException.
+     */
+    public boolean tryRunIt(ThreadPoolRunnable r) {
+        if(null == r) {
+            throw new NullPointerException();
+        }
+        if(stopThePool) {
+            throw new IllegalStateException();
+        }
+	if( offer( new Task( r ) ) )
+	    return true;
+
+	logExhausted();
+	if( rejectWhenFull )
+	    reject();
+	return false;
+    }
+
+    /** Hand the task to a worker without waiting
+     *  @return false if the pool is saturated
+     */
+    private boolean offer( Task task ) {
+	// idle worker waiting - direct handoff
+	task.queued=false;
+	if( queue.tryTransfer( task ) )
+	    return true;
+	task.queued=true;
+
+	// start a new worker, it'll take the task from the queue
+	int count=threadCount.get();
+	while( count < maxThreads ) {
+	    if( threadCount.compareAndSet( count, count+1 )) {
+		queued.incrementAndGet();
+		queue.offer( task );
+		new Worker( this );
+		return true;
+	    }
+	    count=threadCount.get();
+	}
+
+	return enqueue( task );
+    }
+
+    /** Queue the task if there is space
+     */
+    private boolean enqueue( Task task ) {
+	if( queued.incrementAndGet() > maxQueueSize ) {
+	    queued.decrementAndGet();
+	    return false;
+	}
+	queue.offer( task );
+	return true;
+    }
+
+    /** Wait until a worker takes the task ( "wait" policy )
+     */
+    private void waitForWorker( Task task ) {
+	long deadline=( maxWait > 0 ) ? System.currentTimeMillis() + maxWait : 0;
+	task.queued=false;
+	try {
+	    while( ! stopThePool ) {
+		long wait=WORK_WAIT_TIMEOUT;
+		if( deadline > 0 ) {
+		    wait=deadline - System.currentTimeMillis();
+		    if( wait <= 0 )
+			break;
+		}
+		if( queue.tryTransfer( task, wait, TimeUnit.MILLISECONDS ))
+		    return;
+	    }
+	} catch( InterruptedException ex ) {
+	}
+	if( stopThePool )
+	    throw new IllegalStateException();
+	reject();
+    }
+
+    private void reject() {
+	rejected.incrementAndGet();
+	throw new PoolExhaustedException("Pool exhausted with " +
+					 threadCount.get() + " threads and " +
+					 queued.get() + " queued actions");
+    }
+
+    private void logExhausted() {
+	long now=System.currentTimeMillis();
+	if( now - lastExhaustedLog < WORK_WAIT_TIMEOUT ) return;
+	lastExhaustedLog=now;
+	loghelper.log("Pool exhausted with " + threadCount.get() +
+		      " threads, " + queued.get() + " queued, " +
+		      rejected.get() + " rejected");
+    }
+
+    public synchronized void shutdown() {
+        if(!stopThePool) {
+            stopThePool = true;
+	    // wake up the idle workers
+	    for( int i=threadCount.get(); i>0; i-- )
+		queue.offer( Task.STOP );
+	}
+    }
+
+    /** Workers harvest themselves
+     */
+    protected void checkSpareControllers() {
+    }
+
+    // -------------------- Worker side --------------------
+
+    /** Take the next task, null if the worker should end
+     */
+    Task take() throws InterruptedException {
+	while( true ) {
+	    Task task=(Task)queue.poll( WORK_WAIT_TIMEOUT, TimeUnit.MILLISECONDS );
+	    if( task==null ) {
+		// idle for a while - end if there are too many spare workers
+		int count=threadCount.get();
+		if( count - threadsBusy.get() > maxSpareThreads &&
+		    threadCount.compareAndSet( count, count-1 ))
+		    return null;
+		continue;
+	    }
+	    if( task==Task.STOP ) {
+		threadCount.decrementAndGet();
+		return null;
+	    }
+	    if( task.queued )
+		queued.decrementAndGet();
+	    long time=System.nanoTime() - task.start;
+	    handoffCount.incrementAndGet();
+	    handoffTime.addAndGet( time );
+	    if( time > maxHandoffTime ) maxHandoffTime=time;
+	    return task;
+	}
+    }
+
+    /** An action and the time runIt was called
+     */
+    static final class Task {
+	static final Task STOP=new Task( null );
+
+	ThreadPoolRunnable toRun;
+	long start;
+	boolean queued=true; // false if handed directly to a waiting worker
+
+	Task( ThreadPoolRunnable toRun ) {
+	    this.toRun=toRun;
+	    start=System.nanoTime();
+	}
+    }
+
+    /**
+     * A worker thread - takes tasks from the queue.
+     */
+    static final class Worker implements Runnable {
+	QueueThreadPool p;
+	Object thData[]=null;
+	boolean noThData=true;
+
+	Worker( QueueThreadPool p ) {
+	    this.p=p;
+	    Thread t=new Thread( this );
+	    t.setName( nextThreadName( "QueueThreadPool" ));
+	    t.start();
+	}
+
+	public void run() {
+	    try {
+		while( true ) {
+		    Task task=p.take();
+		    if( task==null ) break;
+		    p.threadsBusy.incrementAndGet();
+		    try {
+			if( noThData ) {
+			    thData=task.toRun.getInitData();
+			    noThData=false;
+			}
+			task.toRun.runIt( thData );
+		    } catch( Throwable t ) {
+			p.loghelper.log("Caught exception executing " +
+					task.toRun.toString(), t, Logger.ERROR);
+			// the thread data may be in a bad state
+			noThData=true;
+			thData=null;
+		    } finally {
+			p.threadsBusy.decrementAndGet();
+		    }
+		}
+	    } catch( InterruptedException ex ) {
+		p.threadCount.decrementAndGet();
+	    }
+	}
+    }
+}
@@ -64,18 +64,15 @@ import org.apache.tomcat.core.*;
 import org.apache.tomcat.util.*;
 
 /**
- * The reaper is a background thread with which ticks every minute
- * and calls registered objects to allow reaping of old session
- * data.
+ * The reaper calls registered objects every minute to allow reaping
+ * of old session data. It runs in the shared Scheduler thread.
  * 
  * @author James Duncan Davidson [duncan@eng.sun.com]
  * @author Costin Manolache
  */
-public class Reaper extends Thread {
+public class Reaper implements Runnable {
 
     public Reaper() {
-	this.setDaemon(true);
-	this.setName("TomcatReaper");
     }
 
     private int interval = 1000 * 60; //ms
@@ -91,7 +88,7 @@ public class Reaper extends Thread {
     /** Adding and removing callbacks is synchronized
      */
     Object lock=new Object();
-    static boolean running=true;
+    Scheduler.Task task;
     
     public int addCallback( ThreadPoolRunnable c, int interval ) {
 	synchronized( lock ) {
@@ -109,26 +106,27 @@ public class Reaper extends Thread {
 	}
     }
 
+    /** Register with the shared scheduler
+     */
+    public void start() {
+	if( task==null )
+	    task=Scheduler.getDefault().schedule( "TomcatReaper", this, interval );
+    }
+
     public void stopReaper() {
-	running=false;
-	this.notify();
+	if( task!=null ) {
+	    task.cancel();
+	    task=null;
+	}
     }
     
     public void run() {
-	while (running) {
-	    try {
-		this.sleep(interval);
-	    } catch (InterruptedException ie) {
-		// sometimes will happen
-	    }
-	    
-	    for( int i=0; i< count; i++ ) {
-		ThreadPoolRunnable callB=cbacks[i];
-		// it may be null if a callback is removed.
-		//  I think the code is correct
-		if( callB!= null ) {
-		    callB.runIt( tdata[i] );
-		}
+	for( int i=0; i< count; i++ ) {
+	    ThreadPoolRunnable callB=cbacks[i];
+	    // it may be null if a callback is removed.
+	    //  I think the code is correct
+	    if( callB!= null ) {
+		callB.runIt( tdata[i] );
 	    }
 	}
     }
@@ -66,13 +66,24 @@ import java.util.*;
 import java.text.*;
 
 /**
- *   This class needs javadoc. To contribute please send patches to
- *   the tomcat-dev 
- *   <a href="http://jakarta.apache.org/site/mail.html">mailing list</a>.
+ * Buffered input stream that can be reused with a different stream.
+ *
+ * Unlike java.io.BufferedInputStream the methods are not synchronized -
+ * the stream belongs to one request and is read by one thread at a time.
+ * A monitor held during a blocking read would also pin a virtual thread
+ * to its carrier.
  */
-public class RecycleBufferedInputStream extends BufferedInputStream {
+public class RecycleBufferedInputStream extends InputStream {
+    static final int DEFAULT_BUFFER_SIZE=8192;
+
+    protected InputStream in;
+    protected byte buf[];
+    protected int count=0;
+    protected int pos=0;
+
     public RecycleBufferedInputStream( InputStream is ) {
-	super( is );
+	this.in=is;
+	buf=new byte[DEFAULT_BUFFER_SIZE];
     }
 
     public void setInputStream( InputStream is ) {
@@ -86,4 +97,85 @@ public class RecycleBufferedInputStream extends BufferedInputStream {
 	this.count=0;
 	this.pos=0;
     }
+
+    /** Fill the buffer if empty. Return false on end of stream.
+     */
+    private boolean fill() throws IOException {
+	if( pos < count ) return true;
+	pos=0;
+	count=0;
+	int n=in.read( buf, 0, buf.length );
+	if( n <= 0 ) return false;
+	count=n;
+	return true;
+    }
+
+    /** Return the next byte without consuming it, -1 at end of stream.
+     */
+    public int peek() throws IOException {
+	if( ! fill() ) return -1;
+	return buf[pos] & 0xff;
+    }
+
+    public int read() throws IOException {
+	if( ! fill() ) return -1;
+	return buf[pos++] & 0xff;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+	if( len==0 ) return 0;
+	int avail=count - pos;
+	if( avail <= 0 ) {
+	    // big reads go directly to the stream
+	    if( len >= buf.length ) return in.read( b, off, len );
+	    if( ! fill() ) return -1;
+	    avail=count - pos;
+	}
+	int n=( avail < len ) ? avail : len;
+	System.arraycopy( buf, pos, b, off, n );
+	pos+=n;
+	return n;
+    }
+
+    /** Copy bytes up to and including the next LF, at most len bytes.
+     *	Return the number of bytes copied, -1 at end of stream.
+     */
+    public int readLine(byte b[], int off, int len) throws IOException {
+	int total=0;
+	while( total < len ) {
+	    if( ! fill() ) return ( total==0 ) ? -1 : total;
+	    int start=pos;
+	    int end=count;
+	    if( end - start > len - total )
+		end=start + len - total;
+	    boolean eol=false;
+	    while( pos < end ) {
+		if( buf[pos++] == '\n' ) {
+		    eol=true;
+		    break;
+		}
+	    }
+	    System.arraycopy( buf, start, b, off + total, pos - start );
+	    total+=pos - start;
+	    if( eol ) break;
+	}
+	return total;
+    }
+
+    public long skip(long n) throws IOException {
+	if( n <= 0 ) return 0;
+	int avail=count - pos;
+	if( avail <= 0 ) return in.skip( n );
+	if( avail < n ) n=avail;
+	pos+=n;
+	return n;
+    }
+
+    public int available() throws IOException {
+	return ( count - pos ) + in.available();
+    }
+
+    public void close() throws IOException {
+	if( in!=null ) in.close();
+    }
 }
@@ -163,105 +163,104 @@ public class RequestUtil {
 	return new BufferedReader(r);
     }
 
+    /** @deprecated RequestImpl uses Cookies, that creates the Cookie
+     *  objects only when needed
+     */
     public static void processCookies( Request request, Vector cookies ) {
-	// XXX bug in original RequestImpl - might not work if multiple
-	// cookie headers.
-	//
-	// XXX need to use the cookies hint in RequestAdapter
-    	String cookieString = request.getHeader("cookie");
-	
-	if (cookieString != null) {
-            StringTokenizer tok = new StringTokenizer(cookieString,
-                                                      ";", false);
-            while (tok.hasMoreTokens()) {
-                String token = tok.nextToken();
-                int i = token.indexOf("=");
-                if (i > -1) {
-
-                    // XXX
-                    // the trims here are a *hack* -- this should
-                    // be more properly fixed to be spec compliant
-                    
-                    String name = token.substring(0, i).trim();
-                    String value = token.substring(i+1, token.length()).trim();
-                    // RFC 2109 and bug 
-                    value=stripQuote( value );
-
-                    // Wrap the cookie creation in a try/catch to prevent bad
-                    // cookie names from killing the request -- Bug #1141
-                    try {
-                        Cookie cookie = new Cookie(name, value);
-                        cookies.addElement(cookie);
-                    }
-                    catch ( java.lang.IllegalArgumentException iae ) {
-                        
-                        // Log the original cookie header string, so we
-                        // can see what is causing this
-                        System.err.println(iae.getMessage() + "\n" +
-                                           "Cookie Header: " + cookieString);
-                    }
-
-                } else {
-                    // we have a bad cookie.... just let it go
-                }
-            }
-        }
+	Cookies parser=new Cookies();
+	parser.processCookies( request.getMimeHeaders() );
+	int count=parser.getCount();
+	for( int i=0; i< count; i++ )
+	    cookies.addElement( parser.getCookie( i ) );
     }
 
     
+    public static void processFormData(String data, Hashtable parameters) {
+	if( data==null ) return; // no parameters
+	int len=data.length();
+	byte b[]=new byte[len];
+	data.getBytes( 0, len, b, 0 );
+	processFormData( b, 0, len, parameters, Integer.MAX_VALUE );
+    }
+
     /**
+     * Decode urlencoded form data and add the parameters to the table,
+     * after the values already there. The bytes are decoded in place -
+     * the buffer is destroyed - and each name and value is turned into
+     * a String only once. Pairs without '=' are ignored.
      *
-     * Strips quotes from the start and end of the cookie string
-     * This conforms to RFC 2109
-     * 
-     * @param value            a <code>String</code> specifying the cookie 
-     *                         value (possibly quoted).
-     *
-     * @see #setValue
-     *
+     * @param max stop after that many parameters
+     * @return the number of parameters added, or max + 1 if more
+     *	parameters were found - the extra ones are dropped
+     * @exception IllegalArgumentException If a '%' is not
+     * followed by a valid 2-digit hex number.
      */
-    private static String stripQuote( String value )
+    public static int processFormData( byte b[], int off, int len,
+				       Hashtable parameters, int max )
     {
-	//	System.out.println("Strip quote from " + value );
-	if (((value.startsWith("\"")) && (value.endsWith("\""))) ||
-	    ((value.startsWith("'") && (value.endsWith("'"))))) {
-	    try {
-		return value.substring(1,value.length()-1);
-	    } catch (Exception ex) { 
-	    }
-	}
-	return value;
-    }  
-    
-    public static void processFormData(String data, Hashtable parameters) {
-        // XXX
-        // there's got to be a faster way of doing this.
-	if( data==null ) return; // no parameters
-        StringTokenizer tok = new StringTokenizer(data, "&", false);
-        while (tok.hasMoreTokens()) {
-            String pair = tok.nextToken();
-	    int pos = pair.indexOf('=');
-	    if (pos != -1) {
-		String key = unUrlDecode(pair.substring(0, pos));
-		String value = unUrlDecode(pair.substring(pos+1,
-							  pair.length()));
-		String values[];
-		if (parameters.containsKey(key)) {
-		    String oldValues[] = (String[])parameters.get(key);
-		    values = new String[oldValues.length + 1];
-		    for (int i = 0; i < oldValues.length; i++) {
-			values[i] = oldValues[i];
-		    }
-		    values[oldValues.length] = value;
-		} else {
-		    values = new String[1];
-		    values[0] = value;
+	int end=off + len;
+	int added=0;
+	int start=off;	// start of the current pair
+	int w=off;	// next decoded byte
+	int eq=-1;	// end of the decoded name
+	for( int i=off; i<=end; i++ ) {
+	    if( i==end || b[i]=='&' ) {
+		if( eq >= 0 ) {
+		    if( added >= max )
+			return max + 1;
+		    addParameter( parameters,
+				  new String( b, 0, start, eq - start ),
+				  new String( b, 0, eq, w - eq ) );
+		    added++;
 		}
-		parameters.put(key, values);
-	    } else {
-		// we don't have a valid chunk of form data, ignore
+		start=w=i + 1;
+		eq=-1;
+		continue;
 	    }
-        }
+	    byte c=b[i];
+	    if( c=='=' && eq < 0 ) {
+		eq=w;
+		continue;
+	    }
+	    if( c=='+' ) {
+		c=' ';
+	    } else if( c=='%' && i + 2 < end &&
+		       b[i+1] != '&' && b[i+2] != '&' ) {
+		int hi=hexValue( b[i+1] );
+		int lo=hexValue( b[i+2] );
+		if( hi < 0 || lo < 0 )
+		    throw new IllegalArgumentException( "Decode error " );
+		c=(byte)( ( hi << 4 ) + lo );
+		i+=2;
+	    }
+	    // an incomplete escape at the end of a pair is kept as is
+	    b[w++]=c;
+	}
+	return added;
+    }
+
+    private static int hexValue( byte c ) {
+	if( c >= '0' && c <= '9' ) return c - '0';
+	if( c >= 'a' && c <= 'f' ) return c - 'a' + 10;
+	if( c >= 'A' && c <= 'F' ) return c - 'A' + 10;
+	return -1;
+    }
+
+    /** Append a value to the ones already stored for name
+     */
+    public static void addParameter( Hashtable parameters, String name,
+				     String value )
+    {
+	String oldValues[] = (String[])parameters.get(name);
+	String values[];
+	if (oldValues == null) {
+	    values = new String[1];
+	} else {
+	    values = new String[oldValues.length + 1];
+	    System.arraycopy(oldValues, 0, values, 0, oldValues.length);
+	}
+	values[values.length - 1] = value;
+	parameters.put(name, values);
     }
 
     public static int readData(InputStream in, byte buf[], int length) {
@@ -418,6 +417,40 @@ public class RequestUtil {
         return (Locale)l.elementAt(0);
     }
 
+    /** True if the Accept-Encoding header of the request allows the
+     *	encoding ( with a non-zero quality, or by "*" ).
+     */
+    public static boolean acceptsEncoding( Request req, String encoding ) {
+	String accept=req.getHeader( "Accept-Encoding" );
+	if( accept == null ) return false;
+
+	boolean star=false;
+	StringTokenizer st=new StringTokenizer( accept, "," );
+	while( st.hasMoreTokens() ) {
+	    String token=st.nextToken();
+	    String name=token;
+	    float q=1;
+	    int semi=token.indexOf( ';' );
+	    if( semi >= 0 ) {
+		name=token.substring( 0, semi );
+		String param=token.substring( semi + 1 ).trim();
+		if( param.startsWith( "q=" )) {
+		    try {
+			q=Float.valueOf( param.substring( 2 ).trim() ).floatValue();
+		    } catch( NumberFormatException ex ) {
+			q=0;
+		    }
+		}
+	    }
+	    name=name.trim();
+	    if( name.equalsIgnoreCase( encoding ))
+		return q > 0;
+	    if( name.equals( "*" ))
+		star= q > 0;
+	}
+	return star;
+    }
+
     public static Enumeration getLocales(HttpServletRequest req) {
 	    String acceptLanguage = req.getHeader("Accept-Language");
     	// Short circuit with an empty enumeration if null header
@@ -559,60 +592,9 @@ public class RequestUtil {
     // This also avoid passing HttpHeaders - which was required to access
     // HttpHeaderFiled to access HttpDate to access the parsing code.
 
-    // we force our locale here as all http dates are in english
-    private final static Locale loc = Locale.US;
-
-    // all http dates are expressed as time at GMT
-    private final static TimeZone zone = TimeZone.getTimeZone("GMT");
-
-    // format for RFC 1123 date string -- "Sun, 06 Nov 1994 08:49:37 GMT"
-    private final static String rfc1123Pattern ="EEE, dd MMM yyyyy HH:mm:ss z";
-
-    // format for RFC 1036 date string -- "Sunday, 06-Nov-94 08:49:37 GMT"
-    private final static String rfc1036Pattern ="EEEEEEEEE, dd-MMM-yy HH:mm:ss z";
-
-    // format for C asctime() date string -- "Sun Nov  6 08:49:37 1994"
-    private final static String asctimePattern ="EEE MMM d HH:mm:ss yyyyy";
-
-    private final static SimpleDateFormat rfc1123Format =
-	new SimpleDateFormat(rfc1123Pattern, loc);
-
-    private final static SimpleDateFormat rfc1036Format =
-	new SimpleDateFormat(rfc1036Pattern, loc);
-
-    private final static SimpleDateFormat asctimeFormat =
-	new SimpleDateFormat(asctimePattern, loc);
-
+    // The formats are shared with DateTool ( and synchronized )
     public static long toDate( String dateString ) {
-	// XXX
-	Date date=null;
-	try {
-            date = rfc1123Format.parse(dateString);
-	} catch (ParseException e) { }
-          catch (StringIndexOutOfBoundsException e) { }
-	
-        if( date==null)
-	    try {
-		date = rfc1036Format.parse(dateString);
-	    } catch (ParseException e) { }
-              catch (StringIndexOutOfBoundsException e) { }
-	
-        if( date==null)
-	    try {
-		date = asctimeFormat.parse(dateString);
-	    } catch (ParseException pe) {
-	    }
-              catch (StringIndexOutOfBoundsException e) { }
-
-	if(date==null) {
-	    return -1;
-	}
-
-	// Original code was: 
-	//	Calendar calendar = new GregorianCalendar(zone, loc);
-	//calendar.setTime(date);
-	// calendar.getTime().getTime();
-	return date.getTime();
+	return DateTool.parseDate( dateString );
     }
     
 }
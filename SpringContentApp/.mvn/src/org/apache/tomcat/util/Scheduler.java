@@ -0,0 +1,334 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.util;
+
+import java.util.Random;
+import java.util.Vector;
+import org.apache.tomcat.logging.LogHelper;
+
+/**
+ * One background thread for all the periodic work of the engine -
+ * session expiration, reapers, class reload checks, log flushes.
+ * Replaces the sleeper thread each component used to start.
+ *
+ * Tasks are kept in a hashed timer wheel with TICK ms resolution.
+ * The first run of a periodic task is at a random point of its
+ * interval and every run gets a small random delay, so components
+ * started together don't wake up together.
+ *
+ * Tasks run in the scheduler thread and should be short - a slow task
+ * delays the others. Run counts and times are kept for each task.
+ */
+public final class Scheduler implements Runnable {
+    public static final long TICK=100;
+    static final int WHEEL_SIZE=512;
+
+    private static Scheduler defaultScheduler;
+
+    private Task wheel[]=new Task[ WHEEL_SIZE ];
+    private Vector tasks=new Vector();
+    private Random random=new Random();
+    private long startTime;
+    private long currentTick;
+    private Thread thread;
+    private boolean running;
+    private String name;
+
+    static LogHelper loghelper = new LogHelper("tc_log", "Scheduler");
+
+    public Scheduler( String name ) {
+	this.name=name;
+	startTime=System.currentTimeMillis();
+    }
+
+    /** The scheduler shared by all the components, started on first use
+     */
+    public static synchronized Scheduler getDefault() {
+	if( defaultScheduler==null ) {
+	    defaultScheduler=new Scheduler( "TomcatScheduler" );
+	    defaultScheduler.start();
+	}
+	return defaultScheduler;
+    }
+
+    // -------------------- Registration --------------------
+
+    /** Run r every interval ms, until the task is cancelled.
+     */
+    public Task schedule( String taskName, Runnable r, long interval ) {
+	Task t=new Task( taskName, r, interval );
+	long first=( interval > 0 ) ? 1 + nextRandom( interval ) : 0;
+	synchronized( this ) {
+	    tasks.addElement( t );
+	    add( t, first );
+	}
+	return t;
+    }
+
+    /** Run r once, after delay ms
+     */
+    public Task scheduleOnce( String taskName, Runnable r, long delay ) {
+	Task t=new Task( taskName, r, 0 );
+	synchronized( this ) {
+	    tasks.addElement( t );
+	    add( t, delay );
+	}
+	return t;
+    }
+
+    /** Snapshot of the registered tasks, for monitoring
+     */
+    public synchronized Task[] getTasks() {
+	Task result[]=new Task[ tasks.size() ];
+	tasks.copyInto( result );
+	return result;
+    }
+
+    // -------------------- Wheel --------------------
+
+    // called with the lock held
+    private void add( Task t, long delay ) {
+	long ticks=( delay + TICK - 1 ) / TICK;
+	if( ticks < 1 ) ticks=1;
+	t.dueTick=currentTick + ticks;
+	int b=(int)( t.dueTick % WHEEL_SIZE );
+	t.next=wheel[b];
+	wheel[b]=t;
+    }
+
+    /** Remove the due tasks of one bucket, keep the ones for later rounds
+     */
+    private synchronized Task expire( long tick ) {
+	int b=(int)( tick % WHEEL_SIZE );
+	Task due=null;
+	Task keep=null;
+	Task t=wheel[b];
+	while( t != null ) {
+	    Task next=t.next;
+	    if( t.cancelled ) {
+		tasks.removeElement( t );
+	    } else if( t.dueTick <= tick ) {
+		t.next=due;
+		due=t;
+	    } else {
+		t.next=keep;
+		keep=t;
+	    }
+	    t=next;
+	}
+	wheel[b]=keep;
+	return due;
+    }
+
+    private synchronized void reschedule( Task t ) {
+	if( t.cancelled || t.interval <= 0 ) {
+	    tasks.removeElement( t );
+	    return;
+	}
+	// up to 5% later
+	add( t, t.interval + nextRandom( t.interval / 20 + 1 ) );
+    }
+
+    private long nextRandom( long max ) {
+	synchronized( random ) {
+	    return ( random.nextLong() & Long.MAX_VALUE ) % max;
+	}
+    }
+
+    // -------------------- Thread --------------------
+
+    public synchronized void start() {
+	if( thread != null )
+	    return;
+	running=true;
+	thread=new Thread( this, name );
+	thread.setDaemon( true );
+	thread.start();
+    }
+
+    public void stop() {
+	Thread t;
+	synchronized( this ) {
+	    running=false;
+	    t=thread;
+	    thread=null;
+	}
+	if( t != null )
+	    t.interrupt();
+    }
+
+    public void run() {
+	while( running ) {
+	    long now=System.currentTimeMillis();
+	    long nowTick=( now - startTime ) / TICK;
+	    if( nowTick <= currentTick ) {
+		try {
+		    Thread.sleep( startTime + ( currentTick + 1 ) * TICK - now );
+		} catch( InterruptedException ex ) {
+		}
+		continue;
+	    }
+	    // after a pause or a slow task, every bucket is due once
+	    if( nowTick - currentTick > WHEEL_SIZE )
+		currentTick=nowTick - WHEEL_SIZE;
+	    while( currentTick < nowTick ) {
+		long tick;
+		synchronized( this ) {
+		    tick=++currentTick;
+		}
+		Task t=expire( tick );
+		while( t != null ) {
+		    Task next=t.next;
+		    t.runTask();
+		    reschedule( t );
+		    t=next;
+		}
+	    }
+	}
+    }
+
+    // -------------------- Task --------------------
+
+    /** A registered task, with its run statistics
+     */
+    public static final class Task {
+	String name;
+	Runnable runnable;
+	long interval;
+	long dueTick;
+	Task next;
+	volatile boolean cancelled;
+
+	int runs;
+	long totalTime;
+	long maxTime;
+	long lastRun;
+
+	Task( String name, Runnable r, long interval ) {
+	    this.name=name;
+	    this.runnable=r;
+	    this.interval=interval;
+	}
+
+	/** The task will not run again. A run in progress completes.
+	 */
+	public void cancel() {
+	    cancelled=true;
+	}
+
+	public boolean isCancelled() {
+	    return cancelled;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public long getInterval() {
+	    return interval;
+	}
+
+	public int getRunCount() {
+	    return runs;
+	}
+
+	/** Time spent in the task, in ms */
+	public long getTotalTime() {
+	    return totalTime;
+	}
+
+	/** Longest run, in ms */
+	public long getMaxTime() {
+	    return maxTime;
+	}
+
+	/** Start of the last run */
+	public long getLastRun() {
+	    return lastRun;
+	}
+
+	void runTask() {
+	    if( cancelled )
+		return;
+	    long start=System.currentTimeMillis();
+	    try {
+		runnable.run();
+	    } catch( Throwable ex ) {
+		loghelper.log( "Error in " + name, ex );
+	    }
+	    long time=System.currentTimeMillis() - start;
+	    runs++;
+	    totalTime+=time;
+	    if( time > maxTime )
+		maxTime=time;
+	    lastRun=start;
+	}
+
+	public String toString() {
+	    return name + " runs=" + runs + " total=" + totalTime +
+		"ms max=" + maxTime + "ms";
+	}
+    }
+}
@@ -142,6 +142,29 @@ public class ThreadPool  {
         stopThePool = false;
     }
 
+    /** Pool types, for createThreadPool
+     */
+    public static final String TYPE_DEFAULT = "default";
+    public static final String TYPE_VIRTUAL = "virtual";
+    public static final String TYPE_QUEUE = "queue";
+
+    /**
+     * Create a pool of the given type. "virtual" will run each action
+     * in a new virtual thread ( if the VM supports it ), "queue" will
+     * use a work queue, anything else returns the default pool.
+     */
+    public static ThreadPool createThreadPool(String type) {
+	if( TYPE_QUEUE.equalsIgnoreCase( type ) )
+	    return new QueueThreadPool();
+	if( TYPE_VIRTUAL.equalsIgnoreCase( type ) ) {
+	    if( VirtualThreadPool.isSupported() )
+		return new VirtualThreadPool();
+	    new LogHelper("tc_log", "ThreadPool").
+		log("Virtual threads not supported, using the default pool");
+	}
+	return new ThreadPool();
+    }
+
     public synchronized void start() {
         adjustLimits();
 
@@ -173,6 +196,18 @@ public class ThreadPool  {
         return maxSpareThreads;
     }
 
+    /** Number of threads in the pool
+     */
+    public int getCurrentThreadCount() {
+        return currentThreadCount;
+    }
+
+    /** Number of threads running an action
+     */
+    public int getCurrentThreadsBusy() {
+        return currentThreadsBusy;
+    }
+
     //
     // You may wonder what you see here ... basically I am trying
     // to maintain a stack of threads. This way locality in time
@@ -238,6 +273,39 @@ public class ThreadPool  {
         c.runIt(r);
     }
 
+    /**
+     * Executes a given Runnable if a thread is free ( or can be opened ),
+     * never blocks. Used by callers that can't wait, like the
+     * NioTcpEndpoint poller.
+     *
+     * @return false if all the threads are busy
+     */
+    public boolean tryRunIt(ThreadPoolRunnable r) {
+
+        if(null == r) {
+            throw new NullPointerException();
+        }
+
+        if(0 == currentThreadCount || stopThePool) {
+            throw new IllegalStateException();
+        }
+
+        ControlRunnable c = null;
+
+        synchronized(this) {
+            if(currentThreadsBusy == currentThreadCount) {
+                if(currentThreadCount >= maxThreads)
+                    return false;
+                openThreads(currentThreadCount + minSpareThreads);
+            }
+            c = (ControlRunnable)pool.lastElement();
+            pool.removeElement(c);
+            currentThreadsBusy++;
+        }
+        c.runIt(r);
+        return true;
+    }
+
     /**
      * Stop the thread pool
      */
@@ -369,6 +437,14 @@ public class ThreadPool  {
     void log( String s ) {
 	loghelper.log(s);
     }
+
+    static int threadNumber = 0;
+
+    /** Name for a new pool thread - the threads show up in thread dumps
+     */
+    static synchronized String nextThreadName(String prefix) {
+        return prefix + "-" + (++threadNumber);
+    }
     
     /** 
      * Periodically execute an action - cleanup in this case
@@ -382,6 +458,7 @@ public class ThreadPool  {
             shouldTerminate = false;
             this.p = p;
             t = new Thread(this);
+            t.setName(nextThreadName("ThreadPool-Monitor"));
             t.start();
         }
 
@@ -465,6 +542,7 @@ public class ThreadPool  {
             shouldRun = false;
             this.p = p;
             t = new Thread(this);
+            t.setName(nextThreadName("ThreadPool"));
             t.start();
 	    noThData=true;
 	    thData=null;
@@ -551,4 +629,14 @@ public class ThreadPool  {
             this.notify();
         }
     }
+
+    /**
+     * Thrown by runIt if the pool can't take more actions. The caller
+     * should give up the action ( i.e. drop the connection ).
+     */
+    public static class PoolExhaustedException extends IllegalStateException {
+	public PoolExhaustedException(String s) {
+	    super(s);
+	}
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.tomcat.util;
+
+import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.reflect.*;
+
+import org.apache.tomcat.logging.*; 
+
+/**
+ * A "pool" that runs each action in a new virtual thread.
+ *
+ * Virtual threads are cheap to create and to block, so there is no need
+ * to keep idle threads or to limit the number of busy ones - blocking
+ * servlet I/O scales with the number of connections. maxThreads is only
+ * used as the size of the per thread data cache.
+ *
+ * The per thread data ( ThreadPoolRunnable.getInitData() ) can't be kept
+ * in the thread, since each action has a new one. It is kept in a
+ * SimplePool and reused by the next action.
+ *
+ * Virtual threads are available in JDK21 and later, they are accessed
+ * using introspection so the code still compiles and runs on older VMs.
+ * Use isSupported() to check.
+ */
+public class VirtualThreadPool extends ThreadPool {
+
+    static ThreadFactory factory=createFactory();
+
+    // per thread data returned by finished actions
+    SimplePool thDataPool;
+
+    // running actions
+    AtomicInteger busy=new AtomicInteger();
+
+    public VirtualThreadPool() {
+	super();
+    }
+
+    /** Return true if the VM can create virtual threads
+     */
+    public static boolean isSupported() {
+	return factory != null;
+    }
+
+    public synchronized void start() {
+        adjustLimits();
+	thDataPool=new SimplePool( maxThreads );
+	stopThePool=false;
+	// virtual threads are daemons, the monitor keeps the VM running
+        monitor = new MonitorRunnable(this);
+    }
+
+    /**
+     * Executes the action in a new virtual thread, never blocks.
+     */
+    public void runIt(ThreadPoolRunnable r) {
+        if(null == r) {
+            throw new NullPointerException();
+        }
+        if(stopThePool || factory == null) {
+            throw new IllegalStateException();
+        }
+	factory.newThread( new VirtualRunnable( this, r ) ).start();
+    }
+
+    /** A new thread is always available
+     */
+    public boolean tryRunIt(ThreadPoolRunnable r) {
+	runIt( r );
+	return true;
+    }
+
+    public synchronized void shutdown() {
+        if(!stopThePool) {
+            stopThePool = true;
+            monitor.terminate();
+            monitor = null;
+        }
+    }
+
+    /** Each running action has its own thread
+     */
+    public int getCurrentThreadCount() {
+	return busy.get();
+    }
+
+    public int getCurrentThreadsBusy() {
+	return busy.get();
+    }
+
+    /** No idle threads to harvest
+     */
+    protected void checkSpareControllers() {
+    }
+
+    // -------------------- Implementation --------------------
+
+    private static ThreadFactory createFactory() {
+	try {
+	    // Thread.ofVirtual().factory()
+	    Method ofVirtual=Thread.class.getMethod( "ofVirtual", new Class[0] );
+	    Object builder=ofVirtual.invoke( null, new Object[0] );
+	    Class builderC=Class.forName( "java.lang.Thread$Builder" );
+	    Method factoryM=builderC.getMethod( "factory", new Class[0] );
+	    return (ThreadFactory)factoryM.invoke( builder, new Object[0] );
+	} catch( Exception ex ) {
+	    return null; // not supported
+	}
+    }
+
+    /**
+     * Runs the action, with per thread data from the pool
+     */
+    static class VirtualRunnable implements Runnable {
+	VirtualThreadPool p;
+	ThreadPoolRunnable toRun;
+
+	VirtualRunnable( VirtualThreadPool p, ThreadPoolRunnable toRun ) {
+	    this.p=p;
+	    this.toRun=toRun;
+	}
+
+	public void run() {
+	    Object thData[]=(Object [])p.thDataPool.get();
+	    p.busy.incrementAndGet();
+	    try {
+		if( thData==null )
+		    thData=toRun.getInitData();
+		toRun.runIt( thData );
+		// reuse the data only if the action ended normally
+		if( thData != null )
+		    p.thDataPool.put( thData );
+	    } catch( Throwable t ) {
+		p.loghelper.log("Caught exception executing " + toRun.toString(),
+				t, Logger.ERROR);
+	    } finally {
+		p.busy.decrementAndGet();
+	    }
+	}
+    }
+}